@@ -1,15 +1,25 @@
 package admin;
 
+import cli.AdvancedShell;
+import cli.Command;
 import controller.IAdminConsole;
 import model.ComputationRequestInfo;
 import util.Config;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
 import java.security.Key;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
 
 /**
  * Please note that this class is not needed for Lab 1, but will later be
@@ -22,6 +32,8 @@ public class AdminConsole implements IAdminConsole, Runnable {
 	private Config config;
 	private InputStream userRequestStream;
 	private PrintStream userResponseStream;
+	private AdvancedShell shell;
+	private IAdminConsole controller;
 
 	/**
 	 * @param componentName
@@ -39,13 +51,53 @@ public class AdminConsole implements IAdminConsole, Runnable {
 		this.config = config;
 		this.userRequestStream = userRequestStream;
 		this.userResponseStream = userResponseStream;
-
-		// TODO
 	}
 
 	@Override
 	public void run() {
-		// TODO
+		String port = config.getString("controller.rmi.port");
+		ScriptEngine engine = new ScriptEngineManager().getEngineByName("JavaScript");
+		try {
+			// the remote object of the cloud controller
+			int portNr = ((Double) engine.eval(port)).intValue();
+			controller = (IAdminConsole) LocateRegistry.getRegistry(config.getString("controller.host"), portNr).lookup(config.getString("binding.name"));
+		} catch (ScriptException e) {
+			throw new RuntimeException("Invalid RMI port expression '" + port + "'.", e);
+		} catch (RemoteException | NotBoundException e) {
+			throw new RuntimeException("Cannot reach the cloud controller.", e);
+		}
+
+		shell = new AdvancedShell(componentName, userRequestStream, userResponseStream, userResponseStream);
+		shell.register(this);
+		new Thread(shell).start();
+		shell.printLine("'" + getClass().getName() + "' is up! Enter command.");
+	}
+
+	/**
+	 * Prints the operator statistics of the cloud controller
+	 *
+	 * @return one line per operator, the most used first
+	 * @throws RemoteException
+	 */
+	@Command("statistics")
+	public String printStatistics() throws RemoteException {
+		StringBuilder statistics = new StringBuilder();
+		for (Map.Entry<Character, Long> count : statistics().entrySet()) {
+			statistics.append(String.format("%s %d%n", count.getKey(), count.getValue()));
+		}
+		return statistics.length() > 0 ? statistics.toString().trim() : "No operators used yet.";
+	}
+
+	/**
+	 * Shuts down the admin console
+	 *
+	 * @return shutdown message
+	 * @throws IOException
+	 */
+	@Command
+	public String exit() throws IOException {
+		shell.close();
+		return "Shut down completed! Bye ..";
 	}
 
 	@Override
@@ -63,8 +115,7 @@ public class AdminConsole implements IAdminConsole, Runnable {
 
 	@Override
 	public LinkedHashMap<Character, Long> statistics() throws RemoteException {
-		// TODO Auto-generated method stub
-		return null;
+		return controller.statistics();
 	}
 
 	@Override
@@ -87,6 +138,6 @@ public class AdminConsole implements IAdminConsole, Runnable {
 	public static void main(String[] args) {
 		AdminConsole adminConsole = new AdminConsole(args[0], new Config(
 				"admin"), System.in, System.out);
-		// TODO: start the admin console
+		new Thread(adminConsole).start();
 	}
 }
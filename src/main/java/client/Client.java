@@ -1,18 +1,18 @@
 package client;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.PrintStream;
-import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.net.ConnectException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.ArrayList;
 
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
@@ -24,6 +24,7 @@ import javax.script.ScriptException;
 import cli.Command;
 import cli.AdvancedShell;
 import util.Config;
+import util.FramedConnection;
 import util.Keys;
 import util.Message;
 import util.SecurityUtils;
@@ -39,6 +40,7 @@ public class Client implements IClientCli, Runnable {
 	private AdvancedShell shell;
 	private String loggedInUser = null;
 	private Socket controllerSocket = null;
+	private FramedConnection connection = null;
 	private boolean acceptCommands = true;
 	private Message message = new Message();
 	private Thread shellThread;
@@ -191,6 +193,20 @@ public class Client implements IClientCli, Runnable {
 		this.controllerSocket = controllerSocket;
 	}
 
+	/**
+	 * @return the connection
+	 */
+	private synchronized FramedConnection getConnection() {
+		return connection;
+	}
+
+	/**
+	 * @param connection the connection to set
+	 */
+	private synchronized void setConnection(FramedConnection connection) {
+		this.connection = connection;
+	}
+
 	/**
 	 * @return the acceptCommands
 	 */
@@ -431,8 +447,8 @@ public class Client implements IClientCli, Runnable {
 				getShell().printLine("Error: Can't RSA-encrypt request: '" + new String(data) + "'!");
 				return null;
 			}
-			// encode Base64 (binary to char)
-			encodeData = SecurityUtils.encodeB64(encryptData);
+			// encode Base64 (binary to char), not needed for framed messages
+			encodeData = encode(encryptData);
 			if (encodeData == null) {
 				getShell().printLine("Error: Can't Base64-encode request: '" + new String(data) + "'!");
 				return null;
@@ -447,8 +463,8 @@ public class Client implements IClientCli, Runnable {
 				// Mist auf der Leitung, wenn der Server den Socket abwrgt
 				return null;
 			}
-			// decode Base64 (char to binary)
-			decodeData = SecurityUtils.decodeB64(responseData);
+			// decode Base64 (char to binary), framed messages are binary already
+			decodeData = decode(responseData);
 			if (decodeData == null) {
 				getShell().printLine("Error: Can't Base64-decode response: '" + new String(responseData) + "'!");
 				return null;
@@ -468,8 +484,8 @@ public class Client implements IClientCli, Runnable {
 				getShell().printLine("Error: Can't AES-encrypt request: '" + new String(data) + "'!");
 				return null;
 			}
-			// encode Base64 (binary to char)
-			encodeData = SecurityUtils.encodeB64(encryptData);
+			// encode Base64 (binary to char), not needed for framed messages
+			encodeData = encode(encryptData);
 			if (encodeData == null) {
 				getShell().printLine("Error: Can't Base64-encode request: '" + new String(data) + "'!");
 				return null;
@@ -480,8 +496,8 @@ public class Client implements IClientCli, Runnable {
 				getShell().printLine("Error: No data received!");
 				return null;
 			}
-			// decode Base64 (char to binary)
-			decodeData = SecurityUtils.decodeB64(responseData);
+			// decode Base64 (char to binary), framed messages are binary already
+			decodeData = decode(responseData);
 			if (decodeData == null) {
 				getShell().printLine("Error: Can't Base64-decode response: '" + new String(responseData) + "'!");
 				return null;
@@ -499,6 +515,64 @@ public class Client implements IClientCli, Runnable {
 		}
 	}
 	
+	/**
+	 * @param data binary data
+	 * @return data ready to be sent on the current connection
+	 */
+	private byte[] encode(byte[] data) {
+		if (getConnection() != null) {
+			return getConnection().encode(data);
+		}
+		return SecurityUtils.encodeB64(data);
+	}
+
+	/**
+	 * @param data received data
+	 * @return binary data
+	 */
+	private byte[] decode(byte[] data) {
+		if (getConnection() != null) {
+			return getConnection().decode(data);
+		}
+		return SecurityUtils.decodeB64(data);
+	}
+
+	/**
+	 * Encrypts and writes one request without waiting for a response
+	 *
+	 * @param data
+	 * @throws IOException
+	 */
+	private void writeRequest(byte[] data) throws IOException {
+		byte[] encryptData = SecurityUtils.encryptAES(data, getSecretKey(), getInitVector());
+		if (encryptData == null) {
+			throw new IOException("Can't AES-encrypt request: '" + new String(data) + "'!");
+		}
+		getConnection().write(encode(encryptData));
+	}
+
+	/**
+	 * Reads and decrypts the next response
+	 *
+	 * @return the response or null if the controller disconnected
+	 * @throws IOException
+	 */
+	private byte[] readResponse() throws IOException {
+		byte[] responseData = getConnection().read();
+		if (responseData == null || new String(responseData).contains(getMessage().controller_disconnected)) {
+			return null;
+		}
+		byte[] decodeData = decode(responseData);
+		if (decodeData == null) {
+			throw new IOException("Can't Base64-decode response: '" + new String(responseData) + "'!");
+		}
+		byte[] decryptData = SecurityUtils.decryptAES(decodeData, getSecretKey(), getInitVector());
+		if (decryptData == null) {
+			throw new IOException("Can't AES-decrypt response: '" + new String(responseData) + "'!");
+		}
+		return decryptData;
+	}
+
 	/**
 	 * Wrappers for 'byte[] response(byte[] request, boolean loggedIn)'
 	 * 
@@ -523,7 +597,7 @@ public class Client implements IClientCli, Runnable {
 	 * @return response
 	 */
 	private byte[] recvResponse(byte[] request, boolean loggedIn) {
-		String inString = "";
+		byte[] response = null;
 		String requestString = new String(request);
 
 		if (isAcceptCommands()) {
@@ -537,44 +611,15 @@ public class Client implements IClientCli, Runnable {
 			}
 
 			try {
-				// create a writer to send messages to the server
-				PrintWriter serverWriter = new PrintWriter(getControllerSocket().getOutputStream(), true);
-				if (serverWriter.checkError()) {
-					getShell().printErrLine(getMessage().controller_disconnected);
-					closeTCP();
-					return null;
-				}
-
 				// write provided user input to the socket
-				serverWriter.println(requestString);
-
-				// create a reader to retrieve messages send by the server
-				BufferedReader serverReader = new BufferedReader(new InputStreamReader(getControllerSocket().getInputStream()));
-				// read server response
-				// inString = serverReader.readLine();
-				// not only read 1 line, read all
-				inString = null;
-				Character myChar = null;
-				if ((myChar = (char) serverReader.read()) != -1) {
-					inString = myChar.toString();
-					while (serverReader.ready()) {
-						if ((myChar = (char) serverReader.read()) == -1) {
-							// ready (data available) but unexpected end of input found 
-							getShell().printErrLine("!Error: Read-Problems!");
-							closeTCP();
-							try {
-								return (byte[]) getShell().invoke(requestString);
-							} catch (Throwable e) {
-								return null;
-							}
-						}
-						inString += myChar.toString();
-					}
-				}
-				if (inString == null && requestString.trim().equals("!exit")) {
+				getConnection().write(request);
+
+				// read server response, exactly one line or frame
+				response = getConnection().read();
+				if (response == null && requestString.trim().equals("!exit")) {
 					// disconnected, wie von "!exit" geplant
-					inString = getMessage().controller_disconnected;
-				} else if (inString == null || inString.contains(getMessage().controller_disconnected)) {
+					response = getMessage().controller_disconnected.getBytes();
+				} else if (response == null || new String(response).contains(getMessage().controller_disconnected)) {
 					// sonst immer unerwartet disconnected
 					getShell().printErrLine(getMessage().controller_disconnected);
 					closeTCP();
@@ -584,10 +629,6 @@ public class Client implements IClientCli, Runnable {
 						return null;
 					}
 				}
-				// strip all trailing \n or \r
-				while (inString.endsWith("\n") || inString.endsWith("\r")) {
-					inString = inString.substring(0, inString.length() - 1);
-				}
 			} catch (SocketException e) {
 				getShell().printErrLine(getMessage().controller_disconnected);
 				closeTCP();
@@ -606,7 +647,7 @@ public class Client implements IClientCli, Runnable {
 				}
 			}
 			// return the server response, which will be written on console
-			return inString.getBytes();
+			return response;
 		} else {
 			getShell().printErrLine(getMessage().controller_disconnected);
 			// closeTCP();
@@ -661,6 +702,7 @@ public class Client implements IClientCli, Runnable {
 			// getShell().printErrLine("Socket closed.");
 		}
 		setControllerSocket(null);
+		setConnection(null);
 		setLoggedInUser(null);
 	}
 
@@ -690,6 +732,15 @@ public class Client implements IClientCli, Runnable {
 		    portNr = ((Double) engine.eval(port)).intValue();
 
 		    setControllerSocket(new Socket(getConfig().getString("controller.host"), portNr));
+		    setConnection(new FramedConnection(getControllerSocket()));
+
+		    // ask for length prefixed messages, old controllers only speak lines
+		    if (getConfig().getString("controller.framing").equals("true") && ! getConnection().negotiate()) {
+		    	// the controller refused and dropped the connection, so reconnect in line mode
+		    	closeTCP();
+		    	setControllerSocket(new Socket(getConfig().getString("controller.host"), portNr));
+		    	setConnection(new FramedConnection(getControllerSocket()));
+		    }
 		} catch (ScriptException e) {
 			return "!Error: Invalid port expression '" + port + "'.";
 			// return "!Error: Invalid port expression '" + port + "'.\n" + e.getMessage() + "\n" +e.getStackTrace().toString();
@@ -939,6 +990,121 @@ public class Client implements IClientCli, Runnable {
 		return responseString;
 	}
 
+	/* (non-Javadoc)
+	 * @see client.IClientCli#pipeline(java.lang.String)
+	 */
+	@Override
+	@Command
+	public String pipeline(String terms) throws IOException {
+
+		if (! loggedIn()) {
+			return "You have to login first!";
+		}
+
+		ArrayList<String> list = new ArrayList<String>();
+		for (String term : terms.split(";")) {
+			if (term.trim().length() > 0) {
+				list.add(term.trim());
+			}
+		}
+		String[] results = new String[list.size()];
+		int window = getConfig().getInt("pipeline.window");
+		int sent = 0;
+		int received = 0;
+		try {
+			while (received < list.size()) {
+				// keep up to 'window' tagged terms in flight, the tag is the index
+				while (sent < list.size() && sent - received < window) {
+					writeRequest(String.format("!computeTagged %d %s", sent, list.get(sent)).getBytes());
+					sent++;
+				}
+
+				// responses arrive in any order: '!tagged <tag> <result>'
+				byte[] response = readResponse();
+				if (response == null) {
+					getShell().printErrLine(getMessage().controller_disconnected);
+					closeTCP();
+					return null;
+				}
+				String[] parts = new String(response).split("\\s+", 3);
+				received++;
+				if (parts.length < 2 || ! parts[0].equals("!tagged")) {
+					// e.g. an old controller not supporting tagged requests
+					drainResponses(sent - received);
+					return new String(response);
+				}
+				results[Integer.parseInt(parts[1])] = (parts.length > 2 ? parts[2] : "");
+			}
+		} catch (SocketException e) {
+			getShell().printErrLine(getMessage().controller_disconnected);
+			closeTCP();
+			return null;
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			drainResponses(sent - received);
+			return "!Error: Invalid tag in response!";
+		}
+
+		StringBuilder output = new StringBuilder();
+		for (int index = 0; index < results.length; index++) {
+			if (index > 0) {
+				output.append("\n");
+			}
+			output.append(list.get(index)).append(" = ").append(results[index]);
+		}
+		return output.toString();
+	}
+
+	/**
+	 * Reads and discards the responses of requests still in flight,
+	 * so they are not taken as the response of a later command
+	 * @param outstanding number of responses still to come
+	 * @throws IOException
+	 */
+	private void drainResponses(int outstanding) throws IOException {
+		try {
+			for (; outstanding > 0; outstanding--) {
+				if (readResponse() == null) {
+					getShell().printErrLine(getMessage().controller_disconnected);
+					closeTCP();
+					return;
+				}
+			}
+		} catch (SocketException e) {
+			getShell().printErrLine(getMessage().controller_disconnected);
+			closeTCP();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see client.IClientCli#computeBatch(java.lang.String)
+	 */
+	@Override
+	@Command
+	public String computeBatch(String terms) throws IOException {
+
+		if (! loggedIn()) {
+			return "You have to login first!";
+		}
+
+		// '@<file>' reads the terms from a local file, one or more per line
+		if (terms.trim().startsWith("@")) {
+			File termFile = new File(terms.trim().substring(1));
+			if (! termFile.isFile()) {
+				return "!Error: Can't find term file '" + termFile.getPath() + "'!";
+			}
+			StringBuilder joined = new StringBuilder();
+			for (String line : Files.readAllLines(termFile.toPath(), Charset.defaultCharset())) {
+				if (line.trim().length() > 0) {
+					joined.append(line.trim()).append(";");
+				}
+			}
+			terms = joined.toString();
+		}
+
+		// one request and one response for all terms
+		return sendRequest("!computeBatch " + terms);
+	}
+
 	// --- additional Commands not requested in assignment
 
 	// TODO Remove additional commands
@@ -85,6 +85,47 @@ public interface IClientCli {
 	 */
 	String authenticate(String username) throws IOException;
 
+	/**
+	 * Evaluates several terms pipelined on the current session.
+	 * <p/>
+	 * All terms are sent as tagged requests without waiting for each result,
+	 * the results are shown in the order of the terms.
+	 * E.g.:
+	 * 
+	 * <pre>
+	 * &gt; !pipeline 1 + 2; 3 * 4
+	 * 1 + 2 = 3
+	 * 3 * 4 = 12
+	 * </pre>
+	 *
+	 * @param terms
+	 *            the terms, separated by ';'
+	 * @return the results
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	String pipeline(String terms) throws IOException;
+
+	/**
+	 * Evaluates many terms in one request, the credits are charged once for the whole batch.
+	 * <p/>
+	 * E.g.:
+	 * 
+	 * <pre>
+	 * &gt; !computeBatch 1 + 2; 3 * 4
+	 * 1 + 2 = 3
+	 * 3 * 4 = 12
+	 * &gt; !computeBatch @terms.txt
+	 * </pre>
+	 *
+	 * @param terms
+	 *            the terms, separated by ';', or '@' followed by a file with one term per line
+	 * @return one result per term, in the order of the terms
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	String computeBatch(String terms) throws IOException;
+
 	// --- remote Commands support
 
 	/**
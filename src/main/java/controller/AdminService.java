@@ -0,0 +1,68 @@
+package controller;
+
+import java.rmi.RemoteException;
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import admin.INotificationCallback;
+import model.ComputationRequestInfo;
+
+/**
+ * Remote object of the cloud controller serving the admin console via RMI
+ */
+public class AdminService implements IAdminConsole {
+
+	private final CloudController controller;
+
+	/**
+	 * @param controller
+	 */
+	public AdminService(CloudController controller) {
+		this.controller = controller;
+	}
+
+	/* (non-Javadoc)
+	 * @see controller.IAdminConsole#subscribe(java.lang.String, int, admin.INotificationCallback)
+	 */
+	@Override
+	public boolean subscribe(String username, int credits, INotificationCallback callback) throws RemoteException {
+		// credit notifications are not supported yet
+		return false;
+	}
+
+	/* (non-Javadoc)
+	 * @see controller.IAdminConsole#getLogs()
+	 */
+	@Override
+	public List<ComputationRequestInfo> getLogs() throws RemoteException {
+		// the logs are kept by the nodes
+		return new ArrayList<ComputationRequestInfo>();
+	}
+
+	/* (non-Javadoc)
+	 * @see controller.IAdminConsole#statistics()
+	 */
+	@Override
+	public LinkedHashMap<Character, Long> statistics() throws RemoteException {
+		// only sums the counters, the computations are not blocked
+		return controller.getOperatorStatistics().snapshot();
+	}
+
+	/* (non-Javadoc)
+	 * @see controller.IAdminConsole#getControllerPublicKey()
+	 */
+	@Override
+	public Key getControllerPublicKey() throws RemoteException {
+		throw new RemoteException("Public key of the controller is not supported yet.");
+	}
+
+	/* (non-Javadoc)
+	 * @see controller.IAdminConsole#setUserPublicKey(java.lang.String, byte[])
+	 */
+	@Override
+	public void setUserPublicKey(String username, byte[] key) throws RemoteException {
+		throw new RemoteException("Public keys of users are not supported yet.");
+	}
+}
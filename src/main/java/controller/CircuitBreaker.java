@@ -0,0 +1,129 @@
+package controller;
+
+/**
+ * Circuit breaker of one node.
+ * It opens after consecutive failed or too slow requests, the node gets no requests then.
+ * After the open time a few probe requests are let through (half-open),
+ * if they all succeed the breaker closes again, otherwise it opens again.
+ */
+public class CircuitBreaker {
+
+	/**
+	 * States of a breaker
+	 */
+	public enum State { CLOSED, OPEN, HALF_OPEN }
+
+	private final int maxFailures;
+	private final long maxLatency;		// ms
+	private final long openTime;		// ms
+	private final int probes;
+
+	private State state = State.CLOSED;
+	private int failures = 0;			// consecutive failures while closed
+	private long openedAt = 0L;			// ms
+	private int probesSent = 0;
+	private int probesSucceeded = 0;
+
+	/**
+	 * @param maxFailures number of consecutive failures opening the breaker
+	 * @param maxLatency latency in ms above which a response counts as a failure, 0 for no limit
+	 * @param openTime time in ms the breaker stays open before probing
+	 * @param probes number of successful probe requests closing the breaker
+	 */
+	public CircuitBreaker(int maxFailures, long maxLatency, long openTime, int probes) {
+		this.maxFailures = Math.max(1, maxFailures);
+		this.maxLatency = maxLatency;
+		this.openTime = openTime;
+		this.probes = Math.max(1, probes);
+	}
+
+	/**
+	 * Checks without side effects whether a request would be let through,
+	 * used by the load balancers to route around the node
+	 *
+	 * @return true if the node may get requests
+	 */
+	public synchronized boolean isAvailable() {
+		switch (state) {
+		case OPEN:
+			return System.currentTimeMillis() - openedAt >= openTime;
+		case HALF_OPEN:
+			return probesSent < probes;
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * To be called before a request is sent,
+	 * in the half-open state every allowed request is a probe
+	 *
+	 * @return false if the request must not be sent to the node
+	 */
+	public synchronized boolean allowRequest() {
+		if (state == State.OPEN) {
+			if (System.currentTimeMillis() - openedAt < openTime) {
+				return false;
+			}
+			state = State.HALF_OPEN;
+			probesSent = 0;
+			probesSucceeded = 0;
+		}
+		if (state == State.HALF_OPEN) {
+			if (probesSent >= probes) {
+				return false;
+			}
+			probesSent++;
+		}
+		return true;
+	}
+
+	/**
+	 * To be called when the response of an allowed request arrived
+	 *
+	 * @param success false if the node failed
+	 * @param latency latency of the request in ms
+	 */
+	public synchronized void complete(boolean success, double latency) {
+		if (success && maxLatency > 0 && latency > maxLatency) {
+			// too slow is as bad as no answer
+			success = false;
+		}
+		switch (state) {
+		case CLOSED:
+			if (success) {
+				failures = 0;
+			} else if (++failures >= maxFailures) {
+				open();
+			}
+			break;
+		case HALF_OPEN:
+			if (! success) {
+				open();
+			} else if (++probesSucceeded >= probes) {
+				state = State.CLOSED;
+				failures = 0;
+			}
+			break;
+		default:
+			// a late response of a request sent before the breaker opened
+			break;
+		}
+	}
+
+	/**
+	 * Opens the breaker, called with the lock held
+	 */
+	private void open() {
+		state = State.OPEN;
+		openedAt = System.currentTimeMillis();
+		failures = 0;
+	}
+
+	/**
+	 * @return the current state
+	 */
+	public synchronized State getState() {
+		return state;
+	}
+}
@@ -4,7 +4,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.rmi.AlreadyBoundException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
 
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
@@ -13,11 +22,19 @@ import javax.script.ScriptException;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
+import controller.balancer.LoadBalancer;
+import controller.balancer.LoadBalancers;
+import controller.tcp.NioControllerListener;
+import controller.tcp.NioControllerSelector;
+import controller.tcp.NioNodeSelector;
 import controller.tcp.TcpControllerClient;
 import controller.tcp.TcpControllerListener;
 import controller.tcp.TcpControllerNode;
+import controller.udp.NioUdpControllerListener;
 import controller.udp.UdpControllerListener;
 import util.Config;
+import util.HandlerThreads;
+import util.HashedWheelTimer;
 import util.Message;
 import cli.Command;
 import cli.AdvancedShell;
@@ -28,6 +45,9 @@ import cli.AdvancedShell;
  */
 public class CloudController implements ICloudControllerCli, Runnable {
 
+	// buckets of the liveness timer, one turn covers node timeouts up to this number of check periods
+	private static final int LIVENESS_WHEEL_SIZE = 64;
+
 	private String controllerName;
 	private Config config;
 	private InputStream userRequestStream;
@@ -40,6 +60,15 @@ public class CloudController implements ICloudControllerCli, Runnable {
 	private Thread shellThread;
 	private boolean acceptCommands = true;
 	private Message message = new Message();
+	private TermEvaluator termEvaluator;
+	private JobTable jobTable;
+	private NioNodeSelector nodeSelector;
+	private final NodeRegistry nodeRegistry = new NodeRegistry();
+	private LoadBalancer loadBalancer;
+	private final HashedWheelTimer livenessTimer;
+	private final OperatorStatistics operatorStatistics = new OperatorStatistics();
+	private AdminService adminService;
+	private Registry registry;
 
 	/**
 	 * @param controllerName
@@ -65,6 +94,39 @@ public class CloudController implements ICloudControllerCli, Runnable {
 		 * test the application manually, simply use System.in and System.out.
 		 */
 		this.setShell(new AdvancedShell(controllerName, userRequestStream, userResponseStream, userErrorStream));
+		this.loadBalancer = LoadBalancers.create(config.getString("controller.balancer"), nodeRegistry);
+		// one thread watches the timeouts of all nodes
+		this.livenessTimer = new HashedWheelTimer(HandlerThreads.platformFactory("Liveness-Timer"), config.getInt("node.checkPeriod"), LIVENESS_WHEEL_SIZE);
+		this.termEvaluator = new TermEvaluator(this);
+		this.jobTable = new JobTable(termEvaluator, config.getInt("job.max"), config.getInt("job.max.user"), config.getInt("job.ttl"));
+	}
+
+	/**
+	 * @return the jobTable of all asynchronously submitted terms
+	 */
+	public synchronized JobTable getJobTable() {
+		return jobTable;
+	}
+
+	/**
+	 * @return the nodeSelector multiplexing the connections to all nodes
+	 */
+	public synchronized NioNodeSelector getNodeSelector() {
+		return nodeSelector;
+	}
+
+	/**
+	 * @param nodeSelector the nodeSelector to set
+	 */
+	private synchronized void setNodeSelector(NioNodeSelector nodeSelector) {
+		this.nodeSelector = nodeSelector;
+	}
+
+	/**
+	 * @return the termEvaluator shared by all client sessions
+	 */
+	public synchronized TermEvaluator getTermEvaluator() {
+		return termEvaluator;
 	}
 
 	/**
@@ -167,92 +229,75 @@ public class CloudController implements ICloudControllerCli, Runnable {
 	}
  
 	/**
-	 * @return
+	 * @return the nodeRegistry indexing all known nodes
 	 */
-	public ConcurrentHashMap<ControllerNode, String> getNodesMap() {
-		ConcurrentHashMap<ControllerNode, String> threadsMap = new ConcurrentHashMap<>();
-		String type;
-		String checkClass = ControllerNode.class.getName();
-		for (Object thread : getThreadsMap().keySet()) {
-			type = getThreadsMap().get(thread);
-			if (type != null && type.equals(checkClass)) {
-				threadsMap.put((ControllerNode) thread, type);
-			}
-		}
-		return threadsMap;
+	public NodeRegistry getNodeRegistry() {
+		return nodeRegistry;
 	}
- 
+
 	/**
-	 * @param active
-	 * @return
+	 * @return the operators counted by all client sessions, no lock on the compute path
 	 */
-	public ConcurrentHashMap<ControllerNode, String> getNodesMap(boolean active) {
-		ConcurrentHashMap<ControllerNode, String> threadsMap = new ConcurrentHashMap<>();
-		String type;
-		String checkClass = ControllerNode.class.getName();
-		for (Object thread : getThreadsMap().keySet()) {
-			type = getThreadsMap().get(thread);
-			if (type != null && type.equals(checkClass) && ((ControllerNode) thread).isActive() == active) {
-				threadsMap.put((ControllerNode) thread, type);
-			}
-		}
-		return threadsMap;
+	public OperatorStatistics getOperatorStatistics() {
+		return operatorStatistics;
 	}
- 
+
 	/**
-	 * @param active
-	 * @param operations
-	 * @return
+	 * @return the adminService
 	 */
-	public ConcurrentHashMap<ControllerNode, String> getNodesMap(boolean active, Character operation) {
-		ConcurrentHashMap<ControllerNode, String> threadsMap = new ConcurrentHashMap<>();
-		String type;
-		String checkClass = ControllerNode.class.getName();
-		for (Object thread : getThreadsMap().keySet()) {
-			type = getThreadsMap().get(thread);
-			if (type != null && type.equals(checkClass) && ((ControllerNode) thread).isActive() == active && ((ControllerNode) thread).getOperations().contains(operation.toString())) {
-				threadsMap.put((ControllerNode) thread, type);
-			}
-		}
-		return threadsMap;
+	private synchronized AdminService getAdminService() {
+		return adminService;
 	}
- 
+
+	/**
+	 * @param adminService the adminService to set
+	 */
+	private synchronized void setAdminService(AdminService adminService) {
+		this.adminService = adminService;
+	}
+
+	/**
+	 * @return the registry
+	 */
+	private synchronized Registry getRegistry() {
+		return registry;
+	}
+
+	/**
+	 * @param registry the registry to set
+	 */
+	private synchronized void setRegistry(Registry registry) {
+		this.registry = registry;
+	}
+
+	/**
+	 * @return the timer watching the liveness of all nodes
+	 */
+	public HashedWheelTimer getLivenessTimer() {
+		return livenessTimer;
+	}
+
+	/**
+	 * @return the loadBalancer choosing the node of every operation
+	 */
+	public synchronized LoadBalancer getLoadBalancer() {
+		return loadBalancer;
+	}
+
 	/**
 	 * @param address
 	 * @param port
-	 * @return
+	 * @return the node or null if unknown
 	 */
 	public ControllerNode getNode(String address, String port) {
-		String type;
-		String checkClass = ControllerNode.class.getName();
-		ControllerNode foundNode = null;
-		for (Object thread : getThreadsMap().keySet()) {
-			type = getThreadsMap().get(thread);
-			if (type != null && type.equals(checkClass)) {
-				foundNode = (ControllerNode) thread;
-				if (foundNode.getNodeAddress().equals(address) && foundNode.getNodePort().equals(port)) {
-					return foundNode;
-				}
-			}
-		}
-		return null;
+		return getNodeRegistry().getNode(address, port);
 	}
 	
+	/**
+	 * @return all operators supported by at least one active node
+	 */
 	public String listOperations() {
-		String operations = "";
-		String operation = "";
-		String nodeOperations = "";
-		ConcurrentHashMap<ControllerNode, String> activeNodesMap = getNodesMap(true);
-		for (ControllerNode node : activeNodesMap.keySet()) {
-			nodeOperations = node.getOperations();
-			for (int pos = 0; pos < nodeOperations.length(); pos++) {
-				operation = nodeOperations.substring(pos, pos + 1);
-				if (! operations.contains(operation)) {
-					operations += operation;
-				}
-			}
-		}
-		return operations;
+		return getNodeRegistry().getOperations();
 	}
  
 	/**
@@ -408,16 +453,35 @@ public class CloudController implements ICloudControllerCli, Runnable {
 		int portNr = 0;
 	    ScriptEngineManager mgr = new ScriptEngineManager();
 	    ScriptEngine engine = mgr.getEngineByName("JavaScript");
+
+		try {
+			// one thread for the I/O of all node connections, before the first node says hello
+			setNodeSelector(new NioNodeSelector(this));
+			getNodeSelector().start();
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot open node selector.", e);
+		}
+
 		try {
 			// constructs a UDP datagram socket and binds it to the specified port
 			port = getConfig().getString("udp.port");
 		    portNr = ((Double) engine.eval(port)).intValue();
 		    
-		    // create Datagram-Socket
-			setDatagramSocket(new DatagramSocket(portNr));
-
-			// create a new thread to listen for incoming packets
-			new UdpControllerListener(this, getDatagramSocket()).start();
+			if (getConfig().getString("udp.frontend").equals("nio")) {
+				// create Datagram-Channel, the socket is kept for closeUDP()
+				DatagramChannel datagramChannel = DatagramChannel.open();
+				datagramChannel.bind(new InetSocketAddress(portNr));
+				setDatagramSocket(datagramChannel.socket());
+
+				// parse the packets in place, without the shell, on some shards
+				new NioUdpControllerListener(this, datagramChannel, getConfig().getInt("udp.nio.shards")).start();
+			} else {
+			    // create Datagram-Socket
+				setDatagramSocket(new DatagramSocket(portNr));
+
+				// create a new thread to listen for incoming packets
+				new UdpControllerListener(this, getDatagramSocket()).start();
+			}
 		} catch (ScriptException e) {
 			throw new RuntimeException("Invalid UDP port expression '" + port + "'.", e);
 		} catch (IOException e) {
@@ -430,11 +494,21 @@ public class CloudController implements ICloudControllerCli, Runnable {
 			port = getConfig().getString("tcp.port");
 		    portNr = ((Double) engine.eval(port)).intValue();
 		    
-		    // create Server-Socket
-			setServerSocket(new ServerSocket(portNr));
-			
-			// handle incoming connections from client in a separate thread
-			new TcpControllerListener(this, getServerSocket()).start();
+			if (getConfig().getString("tcp.frontend").equals("nio")) {
+				// create Server-Channel, the socket is kept for closeTCP()
+				ServerSocketChannel serverChannel = ServerSocketChannel.open();
+				serverChannel.bind(new InetSocketAddress(portNr));
+				setServerSocket(serverChannel.socket());
+
+				// multiplex all client sessions on a few selector threads
+				new NioControllerListener(this, serverChannel).start();
+			} else {
+			    // create Server-Socket
+				setServerSocket(new ServerSocket(portNr));
+
+				// handle incoming connections from client in a separate thread
+				new TcpControllerListener(this, getServerSocket()).start();
+			}
 		} catch (ScriptException e) {
 			throw new RuntimeException("Invalid TCP port expression '" + port + "'.", e);
 		} catch (IOException e) {
@@ -442,6 +516,20 @@ public class CloudController implements ICloudControllerCli, Runnable {
 			throw new RuntimeException("Cannot listen on TCP port.", e);
 		}
 
+		try {
+			// serve the admin console via RMI
+			port = getConfig().getString("controller.rmi.port");
+		    portNr = ((Double) engine.eval(port)).intValue();
+			setRegistry(LocateRegistry.createRegistry(portNr));
+			setAdminService(new AdminService(this));
+			getRegistry().bind(getConfig().getString("binding.name"), UnicastRemoteObject.exportObject(getAdminService(), 0));
+		} catch (ScriptException e) {
+			throw new RuntimeException("Invalid RMI port expression '" + port + "'.", e);
+		} catch (IOException | AlreadyBoundException e) {
+			// the controller works without admin console
+			getShell().printErrLine("Cannot serve the admin console: " + e.getMessage());
+		}
+
 		/*
 		 * register all commands the Shell should support. In this example
 		 * this class implements all desired commands.
@@ -488,6 +576,34 @@ public class CloudController implements ICloudControllerCli, Runnable {
 					} catch (InterruptedException e) {
 						// do nothing
 					}
+				} else if (type.equals(NioControllerListener.class.getName())) {
+					((NioControllerListener) thread).close();
+					try {
+						((NioControllerListener) thread).join();
+					} catch (InterruptedException e) {
+						// do nothing
+					}
+				} else if (type.equals(NioControllerSelector.class.getName())) {
+					((NioControllerSelector) thread).close();
+					try {
+						((NioControllerSelector) thread).join();
+					} catch (InterruptedException e) {
+						// do nothing
+					}
+				} else if (type.equals(NioNodeSelector.class.getName())) {
+					((NioNodeSelector) thread).close();
+					try {
+						((NioNodeSelector) thread).join();
+					} catch (InterruptedException e) {
+						// do nothing
+					}
+				} else if (type.equals(NioUdpControllerListener.class.getName())) {
+					((NioUdpControllerListener) thread).close();
+					try {
+						((NioUdpControllerListener) thread).join();
+					} catch (InterruptedException e) {
+						// do nothing
+					}
 				} else if (type.equals(UdpControllerListener.class.getName())) {
 					((UdpControllerListener) thread).close();
 					try {
@@ -519,6 +635,13 @@ public class CloudController implements ICloudControllerCli, Runnable {
 			
 			closeTCP();			// Only to be save, if no thread exists, otherwise they will close it
 			closeUDP();			// Only to be save, if no thread exists, otherwise they will close it
+			closeRMI();
+
+			// stop evaluating pipelined terms
+			getTermEvaluator().close();
+
+			// no more node timeouts
+			getLivenessTimer().close();
 			
 			// close shell
 			if (getShell() != null) {
@@ -540,6 +663,35 @@ public class CloudController implements ICloudControllerCli, Runnable {
 		}
 	}
 
+	/**
+	 * Stops serving the admin console
+	 */
+	public void closeRMI() {
+		if (getRegistry() != null) {
+			try {
+				getRegistry().unbind(getConfig().getString("binding.name"));
+			} catch (NotBoundException e) {
+				// do nothing
+			} catch (IOException e) {
+				getShell().printErrLine("Error while closing the admin console: " + e.getMessage());
+			}
+			try {
+				UnicastRemoteObject.unexportObject(getRegistry(), true);
+			} catch (NoSuchObjectException e) {
+				// already unexported
+			}
+		}
+		if (getAdminService() != null) {
+			try {
+				UnicastRemoteObject.unexportObject(getAdminService(), true);
+			} catch (NoSuchObjectException e) {
+				// already unexported
+			}
+		}
+		setRegistry(null);
+		setAdminService(null);
+	}
+
 	/**
 	 * Closes the TCP listening socket
 	 */
@@ -578,9 +730,13 @@ public class CloudController implements ICloudControllerCli, Runnable {
 		int nodeCount = 0;
 		String result = "";
 		String format = "%n%d. IP: %s, Port: %s (%s), Operations: \'%s\', Usage: %d";
-		for (ControllerNode node : getNodesMap().keySet()) {
+		for (ControllerNode node : getNodeRegistry().getNodes()) {
 			nodeCount++;
-			result += String.format(format, nodeCount, node.getNodeAddress(), node.getNodePort(), (node.isActive() ? "online" : "offline"), node.getOperations(), node.getUsage());
+			String state = (node.isActive() ? "online" : "offline");
+			if (node.getCircuitBreaker().getState() != CircuitBreaker.State.CLOSED) {
+				state += ", circuit " + node.getCircuitBreaker().getState().toString().toLowerCase().replace('_', '-');
+			}
+			result += String.format(format, nodeCount, node.getNodeAddress(), node.getNodePort(), state, node.getOperations(), node.getUsage());
 		}
 		if (nodeCount == 0) {
 			result = "No nodes are active.";
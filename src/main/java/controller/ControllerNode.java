@@ -2,19 +2,25 @@ package controller;
 
 import java.io.IOException;
 import java.net.Socket;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
 
 import controller.CloudController;
-import controller.tcp.TcpControllerClient;
+import controller.tcp.NioControllerNode;
+import controller.tcp.NioNodeSelector;
 import controller.tcp.TcpControllerNode;
 import cli.AdvancedShell;
+import util.FramedConnection;
+import util.HashedWheelTimer;
+import util.Message;
 
 /**
  * Object to organize all TCP-controller-node-objects 
  * but just for one node,
- * started for each new compute-command for this node,
- * threads will communicate with the node on own sockets
+ * their persistent connections to the node are kept in a pool
+ * and reused for the following compute-commands.
+ * Asynchronous requests share one multiplexed connection to the node.
  */
 public class ControllerNode {
 
@@ -22,13 +28,24 @@ public class ControllerNode {
 	private AdvancedShell controllerShell;
 	private boolean acceptCommands = true;
 	private final String threadType;
-	// private Message message = new Message();
+	private Message message = new Message();
 	private String operations;
 	private String nodeAddress;
 	private String nodePort;
 	private boolean active = false;
-	private Timer timer;
+	private final HashedWheelTimer.Timeout liveness;
 	private int usage = 0;
+	private Boolean framing = null;		// unknown until first connection
+	private final NodeConnectionPool pool;
+	private final NioNodeSelector nodeSelector;
+	private final Object channelLock = new Object();
+	private NioControllerNode channel = null;
+	private boolean multiplexing;
+	private final NodeRegistry registry;
+	private final NodeStatistics statistics = new NodeStatistics();
+	private final CircuitBreaker breaker;
+	private final PhiAccrualDetector detector;
+	private final int requestTimeout;
 
 	/**
 	 * @param controller the cloud component object
@@ -38,6 +55,14 @@ public class ControllerNode {
 	 * @param timer inactivity-timeout
 	 */
 	public ControllerNode(CloudController controller, String nodeAddress, String nodePort, String operations, int timer) {
+		this.registry = controller.getNodeRegistry();
+		this.liveness = controller.getLivenessTimer().newTimeout(new Runnable() {
+			@Override
+			public void run() {
+				setActive(false);
+				getControllerShell().printLine(String.format("Node '%s:%s' set inactive by liveness timeout", getNodeAddress(), getNodePort()));
+			}
+		});
 		this.setController(controller);
 		this.setNodeAddress(nodeAddress);
 		this.setNodePort(nodePort);
@@ -47,7 +72,18 @@ public class ControllerNode {
 	    this.setControllerShell(controller.getShell());
 		this.threadType = this.getClass().getName();
 		// this.setName(getThreadType() + " " + this.getName());
+		this.pool = new NodeConnectionPool(controller.getConfig().getInt("node.pool.size"), controller.getConfig().getInt("node.pool.idle"));
+		this.nodeSelector = controller.getNodeSelector();
+		this.setMultiplexing(Boolean.parseBoolean(controller.getConfig().getString("node.multiplex").trim()));
+		this.breaker = new CircuitBreaker(controller.getConfig().getInt("node.breaker.failures"), controller.getConfig().getInt("node.breaker.latency"),
+				controller.getConfig().getInt("node.breaker.open"), controller.getConfig().getInt("node.breaker.probes"));
+		// a request taking longer than the breaker tolerates is given up
+		this.requestTimeout = controller.getConfig().getInt("node.breaker.latency");
+		this.detector = new PhiAccrualDetector(controller.getConfig().getInt("node.phi.window"),
+				Double.parseDouble(controller.getConfig().getString("node.phi.minStdDev")), Double.parseDouble(controller.getConfig().getString("node.phi.suspect")));
 
+		// index the new node before the timer may change its state
+		getRegistry().register(this, isActive(), getOperations(), getUsage());
 		setTimer(timer);
 		
 		// register in shared list to be accessible from outside, even if this is not a really thread, just an object
@@ -66,12 +102,13 @@ public class ControllerNode {
 	 */
 	private synchronized void setUsage(int usage) {
 		this.usage = usage;
+		getRegistry().updateUsage(this, usage);
 	}
 
 	/**
 	 * @param usage the usage to set
 	 */
-	public void increaseUsage(String value) {
+	public synchronized void increaseUsage(String value) {
 		if (value.contains("-")) {
 			setUsage(getUsage() + (value.length() - 1) * 50);
 		} else {
@@ -108,38 +145,19 @@ public class ControllerNode {
 	}
 
 	/**
-	 * @return the timer
+	 * Restarts the inactivity-timeout
+	 *
+	 * @param timeout
 	 */
-	private synchronized Timer getTimer() {
-		return timer;
+	private void setTimer(int timeout) {
+		liveness.reset(timeout);
 	}
 
 	/**
-	 * @param timer the timer to set
+	 * @return false if the node is closed and has to be registered again
 	 */
-	private synchronized void setTimer(Timer timer) {
-		this.timer = timer;
-	}
-
-	/**
-	 * @param timeout
-	 */
-	private void setTimer(int timeout) {
-		// inner TimerTask-class
-		class TimeoutTask extends TimerTask {
-			@Override public void run() {
-				setActive(false);
-				getControllerShell().printLine(String.format("Node '%s:%s' set inactive by TimeoutTask '%s'", getNodeAddress(), getNodePort(), this.toString()));
-			}
-		}
-		
-		if (getTimer() != null) {
-			getTimer().cancel();
-			// getControllerShell().printLine(String.format("Timer '%s' canceled by ControllerNode '%s'\n", getTimer().toString(), this.toString()));
-		}
-		setTimer(new Timer());
-		getTimer().schedule(new TimeoutTask(), timeout);
-		// getControllerShell().printLine(String.format("New Timer '%s' started with Timeout=%d by ControllerNode '%s'", getTimer().toString(), timeout, this.toString()));
+	public synchronized boolean isOpen() {
+		return isAcceptCommands();
 	}
 
 	/**
@@ -154,8 +172,11 @@ public class ControllerNode {
 	 */
 	private synchronized void setActive(boolean active) {
 		this.active = active;
-		if (! active && getTimer() != null) {
-			getTimer().cancel();
+		getRegistry().update(this, active, getOperations());
+		if (! active) {
+			liveness.cancel();
+			// the node is probably gone, don't keep its connections
+			getPool().clear();
 		}
 	}
 
@@ -164,9 +185,12 @@ public class ControllerNode {
 	 */
 	public synchronized void setActive(int timeout) {
 		if (! isActive()) {
+			// the intervals before the node was offline don't matter any more
+			detector.reset();
 			setActive(true);
 			getControllerShell().printLine(String.format("Reactivate Node '%s:%s'", getNodeAddress(), getNodePort()));
 		}
+		detector.heartbeat();
 		setTimer(timeout);
 	}
 
@@ -195,7 +219,10 @@ public class ControllerNode {
 	 * @param operations the operations to set
 	 */
 	public synchronized void setOperations(String operations) {
-		this.operations = operations.trim();
+		if (! operations.trim().equals(this.operations)) {
+			this.operations = operations.trim();
+			getRegistry().update(this, isActive(), this.operations);
+		}
 	}
 
 	/**
@@ -241,36 +268,271 @@ public class ControllerNode {
 		return threadType;
 	}
 
-	public String request(String request, TcpControllerClient tcpControllerClient) {
-		String response = null;
-		Socket nodeSocket = null;
+	/**
+	 * @return the pool
+	 */
+	private NodeConnectionPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * @return the latency statistics of the requests of this node
+	 */
+	public NodeStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * @return the circuit breaker of this node
+	 */
+	public CircuitBreaker getCircuitBreaker() {
+		return breaker;
+	}
+
+	/**
+	 * @return suspicion level (phi) of the node, grows with the silence since its last alive packet
+	 */
+	public double getSuspicion() {
+		return detector.phi();
+	}
+
+	/**
+	 * @return true if the node is suspected to be gone, although it is still active
+	 */
+	public boolean isSuspect() {
+		return detector.isSuspect();
+	}
+
+	/**
+	 * @return false if the circuit breaker of this node is open, so it should get no requests
+	 */
+	public boolean isAvailable() {
+		return breaker.isAvailable();
+	}
+
+	/**
+	 * @return the registry indexing this node
+	 */
+	private NodeRegistry getRegistry() {
+		return registry;
+	}
+
+	/**
+	 * @return the message
+	 */
+	private synchronized Message getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return the nodeSelector serving the multiplexed connection
+	 */
+	private NioNodeSelector getNodeSelector() {
+		return nodeSelector;
+	}
+
+	/**
+	 * @return true if asynchronous requests use the multiplexed connection
+	 */
+	private synchronized boolean isMultiplexing() {
+		return multiplexing;
+	}
+
+	/**
+	 * @param multiplexing the multiplexing to set
+	 */
+	private synchronized void setMultiplexing(boolean multiplexing) {
+		this.multiplexing = multiplexing;
+	}
+
+	/**
+	 * @return true if the node speaks framed mode, null if still unknown
+	 */
+	private synchronized Boolean getFraming() {
+		return framing;
+	}
+
+	/**
+	 * @param framing the framing to set
+	 */
+	private synchronized void setFraming(Boolean framing) {
+		this.framing = framing;
+	}
+
+	/**
+	 * Opens a new connection to the node,
+	 * framed mode is negotiated only once per node and pipelined afterwards
+	 *
+	 * @return the connection
+	 * @throws IOException
+	 */
+	private FramedConnection connect() throws IOException {
+		int port = Integer.parseInt(getNodePort());
+		FramedConnection connection = new FramedConnection(open(port));
+		if (getFraming() == null) {
+			boolean framed = connection.negotiate();
+			setFraming(framed);
+			if (! framed) {
+				// old nodes close the connection after the unknown command
+				connection.close();
+				connection = new FramedConnection(open(port));
+			}
+		} else if (getFraming()) {
+			connection.startFramed();
+		}
+		return connection;
+	}
+
+	/**
+	 * @param port TCP port of the node
+	 * @return a new socket whose reads time out like the requests on the multiplexed connection
+	 * @throws IOException
+	 */
+	private Socket open(int port) throws IOException {
+		Socket socket = new Socket(getNodeAddress(), port);
+		socket.setSoTimeout(requestTimeout);
+		return socket;
+	}
+
+	/**
+	 * Sends a request to the node and waits for its response,
+	 * a pooled connection is used if available, otherwise a new one is opened.
+	 * A pooled connection may have been closed by the node meanwhile,
+	 * then the request is repeated once on a new connection.
+	 * A node which can't be reached answers node_disconnected, it stays registered
+	 * until the circuit breaker or the liveness timeout takes it out.
+	 *
+	 * @param request
+	 * @return response of the node
+	 */
+	public String request(String request) {
+		TcpControllerNode tcpControllerNode = getPool().borrow();
+		if (tcpControllerNode != null) {
+			String response = tcpControllerNode.request(request);
+			if (tcpControllerNode.isOpen()) {
+				getPool().release(tcpControllerNode);
+				return response;
+			}
+			// the connection closed itself on a communication error, so try a fresh one
+		}
+
+		FramedConnection connection;
 		try {
-		    // create new local Node-Socket
-			nodeSocket = new Socket(getNodeAddress(), Integer.parseInt(getNodePort()));
-			// handle outgoing connection to node in an own object
-			TcpControllerNode tcpControllerNode = new TcpControllerNode(getController(), nodeSocket);
-			// send request and wait for response
-			response = tcpControllerNode.request(request);
-			// and finally close the node-socket 
-			nodeSocket.close();
-			nodeSocket = null;
+		    // create new local Node-Connection
+			connection = connect();
 		} catch (NumberFormatException e) {
-			throw new RuntimeException(String.format("Invalid port '%d'.", getNodePort()), e);
+			throw new RuntimeException(String.format("Invalid port '%s'.", getNodePort()), e);
 		} catch (IOException e) {
-			if (nodeSocket != null) {
-				try {
-					nodeSocket.close();
-				} catch (IOException e1) {
-					// do nothing
-				}
-				nodeSocket  = null;
-			}
-			close();
-			throw new RuntimeException("Cannot communicate with Node.", e);
+			// the node is busy or gone, the request fails like on a lost connection
+			return getMessage().node_disconnected;
 		}
+		// handle outgoing connection to node in an own object
+		tcpControllerNode = new TcpControllerNode(getController(), connection);
+		// send request and wait for response
+		String response = tcpControllerNode.request(request);
+		// and finally keep the node-connection for the next request
+		getPool().release(tcpControllerNode);
 		return response;
 	}
 	
+	/**
+	 * @return the open multiplexed connection, a new one if the last one broke,
+	 *         which may still be connecting
+	 * @throws IOException
+	 */
+	private NioControllerNode getChannel() throws IOException {
+		synchronized (channelLock) {
+			if (channel == null || channel.isClosed()) {
+				channel = NioControllerNode.open(getNodeSelector(), getNodeAddress(), Integer.parseInt(getNodePort()),
+						getController().getTermEvaluator().getTimer(), requestTimeout);
+			}
+			return channel;
+		}
+	}
+
+	/**
+	 * Sends a request to the node without waiting for its response.
+	 * Many requests can be in flight on the multiplexed connection,
+	 * nodes not supporting it are served by blocking requests on the threads of the selector.
+	 * The future is completed on the I/O thread, so dependent actions must not block.
+	 *
+	 * @param request
+	 * @return future response of the node, node_disconnected if the circuit breaker is open
+	 *         or the node can't be reached
+	 */
+	public CompletableFuture<String> requestAsync(final String request) {
+		final CompletableFuture<String> response = new CompletableFuture<String>();
+		if (! getCircuitBreaker().allowRequest()) {
+			// route around the node, as if it was gone
+			response.complete(getMessage().node_disconnected);
+			return response;
+		}
+		final long start = getStatistics().start();
+		response.whenComplete(new BiConsumer<String, Throwable>() {
+			@Override
+			public void accept(String result, Throwable failure) {
+				boolean success = failure == null && result != null && ! result.contains(getMessage().node_disconnected);
+				getCircuitBreaker().complete(success, (System.nanoTime() - start) / 1000000.0);
+				getStatistics().complete(start, success);
+			}
+		});
+		if (! isMultiplexing()) {
+			requestBlocking(request, response);
+			return response;
+		}
+
+		NioControllerNode nioControllerNode;
+		try {
+			nioControllerNode = getChannel();
+		} catch (NumberFormatException e) {
+			response.completeExceptionally(new RuntimeException(String.format("Invalid port '%s'.", getNodePort()), e));
+			return response;
+		} catch (IOException e) {
+			// counted as failure by the circuit breaker
+			response.complete(getMessage().node_disconnected);
+			return response;
+		}
+		nioControllerNode.request(request).whenComplete(new BiConsumer<String, Throwable>() {
+			@Override
+			public void accept(String result, Throwable failure) {
+				if (failure instanceof UnsupportedOperationException) {
+					// an old node, use blocking requests from now on
+					setMultiplexing(false);
+					requestBlocking(request, response);
+				} else if (failure != null) {
+					response.completeExceptionally(failure);
+				} else {
+					response.complete(result);
+				}
+			}
+		});
+		return response;
+	}
+
+	/**
+	 * Runs a blocking request on a pooled connection in the background
+	 *
+	 * @param request
+	 * @param response completed with the response of the node
+	 */
+	private void requestBlocking(final String request, final CompletableFuture<String> response) {
+		try {
+			getNodeSelector().execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						response.complete(request(request));
+					} catch (RuntimeException e) {
+						response.completeExceptionally(e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// controller is shutting down
+			response.complete(getMessage().controller_disconnected);
+		}
+	}
+
 	/**
 	 * Atomic method to disable the use of commands
 	 *  
@@ -292,12 +554,21 @@ public class ControllerNode {
 		if (disableCommands()) {
 			// only entered by the first close() 
 	
-			if (getTimer() != null) {
-				getTimer().cancel();
+			liveness.cancel();
+
+			// close all idle node-connections
+			getPool().close();
+			synchronized (channelLock) {
+				if (channel != null) {
+					channel.close();
+				}
 			}
 			
-			// finally remove from list of active threads
+			// finally remove from list of active threads and from the node indexes
 			this.getController().getThreadsMap().remove(this);
+			synchronized (this) {
+				getRegistry().unregister(this);
+			}
 			
 			// TODO more cleanup?
 			
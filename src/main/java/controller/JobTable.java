@@ -0,0 +1,184 @@
+package controller;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded table of asynchronously evaluated terms (jobs) of all users.
+ * Jobs are evaluated by the workers of the {@link TermEvaluator},
+ * completed jobs expire after a configurable time.
+ * Completed jobs are kept in completion order, so expiring and evicting
+ * only ever look at the oldest ones.
+ */
+public class JobTable {
+
+	/**
+	 * One submitted term
+	 */
+	private static class Job {
+		private final long id;
+		private final String userId;
+		private final String term;
+		private String result = null;
+		private long completed = 0L;
+
+		private Job(long id, String userId, String term) {
+			this.id = id;
+			this.userId = userId;
+			this.term = term;
+		}
+	}
+
+	private final TermEvaluator termEvaluator;
+	private final int maxJobs;
+	private final int maxRunningPerUser;
+	private final long timeToLive;
+	private final Map<Long, Job> jobs = new HashMap<Long, Job>();
+	private final Map<Long, Job> completed = new LinkedHashMap<Long, Job>();
+	private final Map<String, Integer> running = new HashMap<String, Integer>();
+	private long nextId = 1L;
+
+	/**
+	 * @param termEvaluator evaluates the jobs
+	 * @param maxJobs maximum number of running and completed jobs
+	 * @param maxRunningPerUser maximum number of running jobs of one user
+	 * @param timeToLive time in ms a completed job is kept
+	 */
+	public JobTable(TermEvaluator termEvaluator, int maxJobs, int maxRunningPerUser, long timeToLive) {
+		this.termEvaluator = termEvaluator;
+		this.maxJobs = maxJobs;
+		this.maxRunningPerUser = maxRunningPerUser;
+		this.timeToLive = timeToLive;
+	}
+
+	/**
+	 * Starts to evaluate a term in the background
+	 *
+	 * @param user the logged-in user paying the operations
+	 * @param term the mathematical term
+	 * @return the job id, or -1 if the table is full or the user has too many running jobs
+	 */
+	public long submit(ControllerUser user, String term) {
+		final Job job;
+		synchronized (this) {
+			purge();
+			Integer userRunning = running.get(user.getUserId());
+			if (userRunning != null && userRunning >= maxRunningPerUser) {
+				return -1L;
+			}
+			if (jobs.size() >= maxJobs && ! evictCompleted()) {
+				// all jobs are still running
+				return -1L;
+			}
+			job = new Job(nextId++, user.getUserId(), term);
+			jobs.put(job.id, job);
+			running.put(job.userId, (userRunning == null ? 1 : userRunning + 1));
+		}
+		termEvaluator.computeAsync(user, term, new TermEvaluator.ResultHandler() {
+			@Override
+			public void handle(String result) {
+				synchronized (JobTable.this) {
+					job.result = result;
+					job.completed = System.currentTimeMillis();
+					completed.put(job.id, job);
+					int userRunning = running.get(job.userId);
+					if (userRunning > 1) {
+						running.put(job.userId, userRunning - 1);
+					} else {
+						running.remove(job.userId);
+					}
+				}
+			}
+		});
+		return job.id;
+	}
+
+	/**
+	 * @param user owner of the job
+	 * @param id job id
+	 * @return state of the job
+	 */
+	public synchronized String status(ControllerUser user, long id) {
+		Job job = find(user, id);
+		if (job == null) {
+			return String.format("!Error: Unknown job %d!", id);
+		}
+		return String.format("Job %d (%s): %s", job.id, job.term, (job.completed == 0L ? "running" : "done"));
+	}
+
+	/**
+	 * @param user owner of the job
+	 * @param id job id
+	 * @return result of the job, if completed
+	 */
+	public synchronized String result(ControllerUser user, long id) {
+		Job job = find(user, id);
+		if (job == null) {
+			return String.format("!Error: Unknown job %d!", id);
+		}
+		if (job.completed == 0L) {
+			return String.format("Job %d is still running.", job.id);
+		}
+		return job.result;
+	}
+
+	/**
+	 * @param user owner of the job
+	 * @param id job id
+	 * @return the job, if it exists, belongs to the user and is not expired
+	 */
+	private Job find(ControllerUser user, long id) {
+		Job job = jobs.get(id);
+		if (job == null || ! job.userId.equals(user.getUserId())) {
+			return null;
+		}
+		if (isExpired(job, System.currentTimeMillis())) {
+			jobs.remove(id);
+			completed.remove(id);
+			return null;
+		}
+		return job;
+	}
+
+	/**
+	 * @param job
+	 * @param now
+	 * @return true if the job completed longer than the time-to-live ago
+	 */
+	private boolean isExpired(Job job, long now) {
+		return job.completed != 0L && now - job.completed > timeToLive;
+	}
+
+	/**
+	 * Removes the oldest completed job, called with the lock held
+	 *
+	 * @return false if no job is completed
+	 */
+	private boolean evictCompleted() {
+		Iterator<Job> iterator = completed.values().iterator();
+		if (! iterator.hasNext()) {
+			return false;
+		}
+		jobs.remove(iterator.next().id);
+		iterator.remove();
+		return true;
+	}
+
+	/**
+	 * Removes all expired jobs, called with the lock held.
+	 * Stops at the first job which is not expired, all later ones completed after it.
+	 */
+	private void purge() {
+		long now = System.currentTimeMillis();
+		for (Iterator<Job> iterator = completed.values().iterator(); iterator.hasNext(); ) {
+			Job job = iterator.next();
+			if (! isExpired(job, now)) {
+				break;
+			}
+			jobs.remove(job.id);
+			iterator.remove();
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package controller;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import controller.tcp.TcpControllerNode;
+
+/**
+ * Idle persistent connections of one node.
+ * The most recently used connection is reused first,
+ * connections unused for longer than the idle time are closed lazily.
+ */
+public class NodeConnectionPool {
+
+	/**
+	 * One idle connection
+	 */
+	private static class Entry {
+		private final TcpControllerNode tcpControllerNode;
+		private final long released;
+
+		private Entry(TcpControllerNode tcpControllerNode, long released) {
+			this.tcpControllerNode = tcpControllerNode;
+			this.released = released;
+		}
+	}
+
+	private final int maxIdle;
+	private final long idleTime;
+	private final Deque<Entry> idle = new ArrayDeque<Entry>();
+	private boolean closed = false;
+
+	/**
+	 * @param maxIdle maximum number of idle connections kept
+	 * @param idleTime time in ms an idle connection is kept
+	 */
+	public NodeConnectionPool(int maxIdle, long idleTime) {
+		this.maxIdle = maxIdle;
+		this.idleTime = idleTime;
+	}
+
+	/**
+	 * @return a healthy idle connection, or null if a new one has to be opened
+	 */
+	public TcpControllerNode borrow() {
+		List<TcpControllerNode> broken = new ArrayList<TcpControllerNode>();
+		TcpControllerNode tcpControllerNode = null;
+		synchronized (this) {
+			evictExpired(broken);
+			Entry entry;
+			while (tcpControllerNode == null && (entry = idle.pollFirst()) != null) {
+				if (entry.tcpControllerNode.isHealthy()) {
+					tcpControllerNode = entry.tcpControllerNode;
+				} else {
+					broken.add(entry.tcpControllerNode);
+				}
+			}
+		}
+		closeAll(broken);
+		return tcpControllerNode;
+	}
+
+	/**
+	 * Returns a connection after a successful request,
+	 * it is closed instead if the pool is full or closed
+	 *
+	 * @param tcpControllerNode
+	 */
+	public void release(TcpControllerNode tcpControllerNode) {
+		synchronized (this) {
+			if (! closed && idle.size() < maxIdle && tcpControllerNode.isHealthy()) {
+				idle.addFirst(new Entry(tcpControllerNode, System.currentTimeMillis()));
+				return;
+			}
+		}
+		tcpControllerNode.close();
+	}
+
+	/**
+	 * Closes all idle connections, the pool stays usable
+	 */
+	public void clear() {
+		List<TcpControllerNode> removed = new ArrayList<TcpControllerNode>();
+		synchronized (this) {
+			for (Entry entry : idle) {
+				removed.add(entry.tcpControllerNode);
+			}
+			idle.clear();
+		}
+		closeAll(removed);
+	}
+
+	/**
+	 * Closes all idle connections, released connections are closed from now on
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+		}
+		clear();
+	}
+
+	/**
+	 * Removes connections idle for too long, called with the lock held
+	 *
+	 * @param expired collects the removed connections
+	 */
+	private void evictExpired(List<TcpControllerNode> expired) {
+		long now = System.currentTimeMillis();
+		Entry entry;
+		// the oldest connections are at the end
+		while ((entry = idle.peekLast()) != null && now - entry.released > idleTime) {
+			expired.add(idle.pollLast().tcpControllerNode);
+		}
+	}
+
+	/**
+	 * Closes connections outside of the lock
+	 *
+	 * @param tcpControllerNodes
+	 */
+	private static void closeAll(List<TcpControllerNode> tcpControllerNodes) {
+		for (TcpControllerNode tcpControllerNode : tcpControllerNodes) {
+			tcpControllerNode.close();
+		}
+	}
+}
@@ -0,0 +1,259 @@
+package controller;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Typed registry of all known nodes of the controller.
+ * Besides the nodes by address it keeps an index of the active nodes per operator,
+ * maintained incrementally whenever a node changes, so lookups don't scan anything.
+ * The index of an operator is ordered by the usage of the nodes,
+ * so the poorest node supporting an operator is always the first one.
+ * A second index per operator allows random access for the load balancers,
+ * it changes only if nodes come, go or change their operations.
+ * Writers of one node are serialized by the lock of that node, readers never block.
+ */
+public class NodeRegistry {
+
+	/**
+	 * Position of a node in the usage ordered indexes, replaced whenever the usage changes
+	 */
+	private static final class Entry {
+		private final ControllerNode node;
+		private final int usage;
+		private final long serial;		// ties of the same usage in order of registration
+
+		private Entry(ControllerNode node, int usage, long serial) {
+			this.node = node;
+			this.usage = usage;
+			this.serial = serial;
+		}
+	}
+
+	private static final Comparator<Entry> BY_USAGE = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry entry1, Entry entry2) {
+			if (entry1.usage != entry2.usage) {
+				return (entry1.usage < entry2.usage ? -1 : 1);
+			}
+			return Long.compare(entry1.serial, entry2.serial);
+		}
+	};
+
+	private final Map<String, ControllerNode> nodes = new ConcurrentHashMap<>();
+	private final Set<ControllerNode> activeNodes = ConcurrentHashMap.newKeySet();
+	private final Set<ControllerNode> activeView = Collections.unmodifiableSet(activeNodes);
+	private final Map<Character, ConcurrentSkipListSet<Entry>> activeNodesByOperator = new ConcurrentHashMap<>();
+	private final Map<Character, CopyOnWriteArrayList<ControllerNode>> activeListsByOperator = new ConcurrentHashMap<>();
+	private final Map<Character, List<ControllerNode>> listViews = new ConcurrentHashMap<>();
+	private final Map<ControllerNode, String> indexedOperations = new ConcurrentHashMap<>();
+	private final Map<ControllerNode, Entry> entries = new ConcurrentHashMap<>();
+	private final AtomicLong serials = new AtomicLong();
+
+	/**
+	 * @param nodeAddress
+	 * @param nodePort
+	 * @return key of a node
+	 */
+	private static String key(String nodeAddress, String nodePort) {
+		return nodeAddress + ":" + nodePort;
+	}
+
+	/**
+	 * Adds a new node, it is indexed with its current state
+	 *
+	 * @param node
+	 * @param active
+	 * @param operations
+	 * @param usage
+	 */
+	public synchronized void register(ControllerNode node, boolean active, String operations, int usage) {
+		nodes.put(key(node.getNodeAddress(), node.getNodePort()), node);
+		entries.put(node, new Entry(node, usage, serials.getAndIncrement()));
+		update(node, active, operations);
+	}
+
+	/**
+	 * Re-indexes a node after its state changed,
+	 * to be called by the node holding its own lock, so updates of one node keep their order
+	 *
+	 * @param node
+	 * @param active the new state
+	 * @param operations the new operations
+	 */
+	public synchronized void update(ControllerNode node, boolean active, String operations) {
+		Entry entry = entries.get(node);
+		if (entry == null) {
+			// already unregistered
+			return;
+		}
+		String indexed = indexedOperations.remove(node);
+		if (indexed != null) {
+			for (int pos = 0; pos < indexed.length(); pos++) {
+				operatorSet(indexed.charAt(pos)).remove(entry);
+				operatorList(indexed.charAt(pos)).remove(node);
+			}
+		}
+		if (active) {
+			activeNodes.add(node);
+			for (int pos = 0; pos < operations.length(); pos++) {
+				operatorSet(operations.charAt(pos)).add(entry);
+				operatorList(operations.charAt(pos)).addIfAbsent(node);
+			}
+			indexedOperations.put(node, operations);
+		} else {
+			activeNodes.remove(node);
+		}
+	}
+
+	/**
+	 * Moves a node to its new position in the usage ordered indexes,
+	 * to be called by the node holding its own lock.
+	 * The new position is added before the old one is removed,
+	 * so concurrent readers always find the node.
+	 *
+	 * @param node
+	 * @param usage the new usage
+	 */
+	public void updateUsage(ControllerNode node, int usage) {
+		Entry entry = entries.get(node);
+		if (entry == null || entry.usage == usage) {
+			return;
+		}
+		Entry moved = new Entry(node, usage, entry.serial);
+		entries.put(node, moved);
+		String indexed = indexedOperations.get(node);
+		if (indexed != null) {
+			for (int pos = 0; pos < indexed.length(); pos++) {
+				ConcurrentSkipListSet<Entry> set = operatorSet(indexed.charAt(pos));
+				set.add(moved);
+				set.remove(entry);
+			}
+		}
+	}
+
+	/**
+	 * Removes a closed node from all indexes
+	 *
+	 * @param node
+	 */
+	public synchronized void unregister(ControllerNode node) {
+		update(node, false, "");
+		entries.remove(node);
+		nodes.remove(key(node.getNodeAddress(), node.getNodePort()), node);
+	}
+
+	/**
+	 * @param operator
+	 * @return the index set of the operator, created on first use
+	 */
+	private ConcurrentSkipListSet<Entry> operatorSet(char operator) {
+		ConcurrentSkipListSet<Entry> set = activeNodesByOperator.get(operator);
+		if (set == null) {
+			ConcurrentSkipListSet<Entry> created = new ConcurrentSkipListSet<Entry>(BY_USAGE);
+			set = activeNodesByOperator.putIfAbsent(operator, created);
+			if (set == null) {
+				set = created;
+			}
+		}
+		return set;
+	}
+
+	/**
+	 * @param operator
+	 * @return the random access index of the operator, created on first use, called with the lock held
+	 */
+	private CopyOnWriteArrayList<ControllerNode> operatorList(char operator) {
+		CopyOnWriteArrayList<ControllerNode> list = activeListsByOperator.get(operator);
+		if (list == null) {
+			list = new CopyOnWriteArrayList<ControllerNode>();
+			activeListsByOperator.put(operator, list);
+			listViews.put(operator, Collections.unmodifiableList(list));
+		}
+		return list;
+	}
+
+	/**
+	 * @param nodeAddress
+	 * @param nodePort
+	 * @return the node or null if unknown
+	 */
+	public ControllerNode getNode(String nodeAddress, String nodePort) {
+		return nodes.get(key(nodeAddress, nodePort));
+	}
+
+	/**
+	 * @return all known nodes, active or not
+	 */
+	public Collection<ControllerNode> getNodes() {
+		return Collections.unmodifiableCollection(nodes.values());
+	}
+
+	/**
+	 * @return all active nodes, a live read-only view
+	 */
+	public Set<ControllerNode> getActiveNodes() {
+		return activeView;
+	}
+
+	/**
+	 * @param operator
+	 * @return true if at least one active node supports the operator
+	 */
+	public boolean isSupported(char operator) {
+		ConcurrentSkipListSet<Entry> set = activeNodesByOperator.get(operator);
+		return set != null && ! set.isEmpty();
+	}
+
+	/**
+	 * @param operator
+	 * @param excluded nodes not to choose
+	 * @return the available active node with the lowest usage supporting the operator, or null
+	 */
+	public ControllerNode getPoorestNode(char operator, Collection<ControllerNode> excluded) {
+		ConcurrentSkipListSet<Entry> set = activeNodesByOperator.get(operator);
+		if (set == null) {
+			return null;
+		}
+		for (Entry entry : set) {
+			// usually the first one
+			if (entry.node.isAvailable() && ! excluded.contains(entry.node)) {
+				return entry.node;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param operator
+	 * @return the active nodes supporting the operator, a live read-only list
+	 */
+	public List<ControllerNode> getActiveNodeList(char operator) {
+		List<ControllerNode> list = listViews.get(operator);
+		if (list == null) {
+			return Collections.emptyList();
+		}
+		return list;
+	}
+
+	/**
+	 * @return all operators supported by at least one active node
+	 */
+	public String getOperations() {
+		StringBuilder operations = new StringBuilder();
+		for (Map.Entry<Character, ConcurrentSkipListSet<Entry>> entry : activeNodesByOperator.entrySet()) {
+			if (! entry.getValue().isEmpty()) {
+				operations.append(entry.getKey());
+			}
+		}
+		return operations.toString();
+	}
+}
@@ -0,0 +1,114 @@
+package controller;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency statistics of the requests of one node, used by the load balancers.
+ * The latency is an exponentially weighted moving average (EWMA),
+ * so it follows changes of the node quickly without storing samples.
+ * For percentiles the latencies of the last responses are kept in a small ring.
+ */
+public class NodeStatistics {
+
+	// weight of the newest sample
+	private static final double ALPHA = 0.2;
+	// number of latencies kept for percentiles
+	private static final int SAMPLES = 128;
+
+	private final AtomicInteger outstanding = new AtomicInteger();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private double latency = 0.0;		// ms, 0 until the first response
+	private final double[] samples = new double[SAMPLES];
+	private int sampleCount = 0;		// number of samples, at most SAMPLES
+	private int samplePos = 0;			// next position in the ring
+
+	/**
+	 * To be called when a request is sent
+	 *
+	 * @return start time of the request
+	 */
+	public long start() {
+		outstanding.incrementAndGet();
+		return System.nanoTime();
+	}
+
+	/**
+	 * To be called when the response of a request arrived
+	 *
+	 * @param start start time of the request
+	 * @param success false if the node failed, such requests don't change the latency
+	 */
+	public void complete(long start, boolean success) {
+		outstanding.decrementAndGet();
+		requests.incrementAndGet();
+		if (! success) {
+			failures.incrementAndGet();
+			return;
+		}
+		double sample = (System.nanoTime() - start) / 1000000.0;
+		synchronized (this) {
+			latency = (latency == 0.0 ? sample : ALPHA * sample + (1.0 - ALPHA) * latency);
+			samples[samplePos] = sample;
+			samplePos = (samplePos + 1) % SAMPLES;
+			sampleCount = Math.min(sampleCount + 1, SAMPLES);
+		}
+	}
+
+	/**
+	 * @return number of requests waiting for their response
+	 */
+	public int getOutstanding() {
+		return outstanding.get();
+	}
+
+	/**
+	 * @return number of completed requests
+	 */
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * @return number of failed requests
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * @return average latency in ms, 0 if unknown
+	 */
+	public synchronized double getLatency() {
+		return latency;
+	}
+
+	/**
+	 * @param percentile e.g. 95
+	 * @param minSamples minimal number of known latencies
+	 * @return latency in ms not exceeded by the given percentage of the last responses,
+	 * 		0 if less than minSamples latencies are known
+	 */
+	public double getLatencyPercentile(int percentile, int minSamples) {
+		double[] sorted;
+		synchronized (this) {
+			if (sampleCount == 0 || sampleCount < minSamples) {
+				return 0.0;
+			}
+			sorted = Arrays.copyOf(samples, sampleCount);
+		}
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return String.format("Latency: %.2f ms, Outstanding: %d, Requests: %d, Failures: %d", getLatency(), getOutstanding(), getRequests(), getFailures());
+	}
+}
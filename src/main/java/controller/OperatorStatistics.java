@@ -0,0 +1,77 @@
+package controller;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts how often every operator is used in the computed terms.
+ * Every operator has its own striped counter, so concurrent sessions don't contend on one value,
+ * a snapshot only sums up the stripes.
+ */
+public class OperatorStatistics {
+
+	// counters of the ASCII operators, the others are looked up
+	private static final int ASCII = 128;
+
+	private final LongAdder[] ascii = new LongAdder[ASCII];
+	private final ConcurrentHashMap<Character, LongAdder> others = new ConcurrentHashMap<Character, LongAdder>();
+
+	public OperatorStatistics() {
+		for (int index = 0; index < ASCII; index++) {
+			ascii[index] = new LongAdder();
+		}
+	}
+
+	/**
+	 * @param operator an operator of a computed term
+	 */
+	public void record(char operator) {
+		if (operator < ASCII) {
+			ascii[operator].increment();
+		} else {
+			LongAdder counter = others.get(operator);
+			if (counter == null) {
+				LongAdder created = new LongAdder();
+				counter = others.putIfAbsent(operator, created);
+				if (counter == null) {
+					counter = created;
+				}
+			}
+			counter.increment();
+		}
+	}
+
+	/**
+	 * @return the used operators and their counts, the most used first
+	 */
+	public LinkedHashMap<Character, Long> snapshot() {
+		List<Map.Entry<Character, Long>> counts = new ArrayList<Map.Entry<Character, Long>>();
+		for (int index = 0; index < ASCII; index++) {
+			long count = ascii[index].sum();
+			if (count > 0) {
+				counts.add(new AbstractMap.SimpleImmutableEntry<Character, Long>((char) index, count));
+			}
+		}
+		for (Map.Entry<Character, LongAdder> other : others.entrySet()) {
+			counts.add(new AbstractMap.SimpleImmutableEntry<Character, Long>(other.getKey(), other.getValue().sum()));
+		}
+		Collections.sort(counts, new Comparator<Map.Entry<Character, Long>>() {
+			@Override
+			public int compare(Map.Entry<Character, Long> first, Map.Entry<Character, Long> second) {
+				return Long.compare(second.getValue(), first.getValue());
+			}
+		});
+		LinkedHashMap<Character, Long> statistics = new LinkedHashMap<Character, Long>();
+		for (Map.Entry<Character, Long> count : counts) {
+			statistics.put(count.getKey(), count.getValue());
+		}
+		return statistics;
+	}
+}
@@ -0,0 +1,92 @@
+package controller;
+
+/**
+ * Phi accrual failure detector of one node.
+ * It learns the distribution of the intervals between the alive packets of the node
+ * and tells how suspicious the silence since the last packet is (phi),
+ * phi = 1 means a chance of 10% that the node is still alive, phi = 2 of 1% and so on.
+ * The intervals are assumed normally distributed, approximated by a logistic function.
+ */
+public class PhiAccrualDetector {
+
+	// intervals needed before phi is calculated
+	private static final int MIN_SAMPLES = 3;
+
+	private final long[] intervals;
+	private final double minStdDev;
+	private final double threshold;
+	private int count = 0;
+	private int next = 0;
+	private double sum = 0.0;
+	private double squares = 0.0;
+	private long last = -1L;		// ms, -1 before the first packet
+
+	/**
+	 * @param window number of intervals kept
+	 * @param minStdDev minimal standard deviation in ms, avoids suspicion of very regular nodes on small delays
+	 * @param threshold phi above which the node is suspected
+	 */
+	public PhiAccrualDetector(int window, double minStdDev, double threshold) {
+		this.intervals = new long[Math.max(MIN_SAMPLES, window)];
+		this.minStdDev = minStdDev;
+		this.threshold = threshold;
+	}
+
+	/**
+	 * To be called for every alive packet of the node
+	 */
+	public synchronized void heartbeat() {
+		long now = System.currentTimeMillis();
+		if (last >= 0) {
+			long interval = now - last;
+			if (count == intervals.length) {
+				// forget the oldest interval
+				sum -= intervals[next];
+				squares -= (double) intervals[next] * intervals[next];
+			} else {
+				count++;
+			}
+			intervals[next] = interval;
+			next = (next + 1) % intervals.length;
+			sum += interval;
+			squares += (double) interval * interval;
+		}
+		last = now;
+	}
+
+	/**
+	 * Forgets the history, e.g. after the node was offline
+	 */
+	public synchronized void reset() {
+		count = 0;
+		next = 0;
+		sum = 0.0;
+		squares = 0.0;
+		last = -1L;
+	}
+
+	/**
+	 * @return suspicion level of the node, 0 while too few packets are known
+	 */
+	public synchronized double phi() {
+		if (count < MIN_SAMPLES) {
+			return 0.0;
+		}
+		double mean = sum / count;
+		double stdDev = Math.max(minStdDev, Math.sqrt(Math.max(0.0, squares / count - mean * mean)));
+		double elapsed = System.currentTimeMillis() - last;
+		double y = (elapsed - mean) / stdDev;
+		double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+		if (elapsed > mean) {
+			return -Math.log10(e / (1.0 + e));
+		}
+		return -Math.log10(1.0 - 1.0 / (1.0 + e));
+	}
+
+	/**
+	 * @return true if phi is above the threshold
+	 */
+	public boolean isSuspect() {
+		return phi() > threshold;
+	}
+}
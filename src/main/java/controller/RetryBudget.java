@@ -0,0 +1,58 @@
+package controller;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the retries of failed node requests to a share of all requests,
+ * so a failing cluster is not flooded with retries.
+ * Every request deposits its share, every retry withdraws a whole request,
+ * a small reserve allows retries while there is little traffic.
+ */
+public class RetryBudget {
+
+	// units of one retry
+	private static final long RETRY = 100;
+
+	private final int percent;
+	private final long maximum;
+	private final AtomicLong balance;
+
+	/**
+	 * @param percent retries allowed per 100 requests
+	 * @param reserve retries allowed without any requests, also the maximum saved up
+	 */
+	public RetryBudget(int percent, int reserve) {
+		this.percent = percent;
+		this.maximum = Math.max(1, reserve) * RETRY;
+		this.balance = new AtomicLong(reserve * RETRY);
+	}
+
+	/**
+	 * To be called for every first request
+	 */
+	public void deposit() {
+		long current;
+		do {
+			current = balance.get();
+			if (current >= maximum) {
+				return;
+			}
+		} while (! balance.compareAndSet(current, Math.min(maximum, current + percent)));
+	}
+
+	/**
+	 * To be called before a retry
+	 *
+	 * @return false if the budget is exhausted and the request must not be retried
+	 */
+	public boolean withdraw() {
+		long current;
+		do {
+			current = balance.get();
+			if (current < RETRY) {
+				return false;
+			}
+		} while (! balance.compareAndSet(current, current - RETRY));
+		return true;
+	}
+}
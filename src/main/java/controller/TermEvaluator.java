@@ -0,0 +1,868 @@
+package controller;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import cli.AdvancedShell;
+import util.HandlerThreads;
+import util.Message;
+
+/**
+ * Object to evaluate mathematical terms of logged-in users,
+ * shared by all client front ends (thread-per-client and NIO),
+ * every operation is forwarded to the node chosen by the load balancer.
+ * Node requests don't block any thread, the workers only prepare the next operation.
+ * Optionally a slow operation is hedged: if the node did not answer within its usual latency
+ * the same operation is sent to a second node and the first answer wins.
+ * If a node fails, the operation is retried on another node after a short random backoff,
+ * the term continues with the last intermediate result.
+ */
+public class TermEvaluator {
+
+	/**
+	 * Receives the result of an asynchronously evaluated term
+	 */
+	public interface ResultHandler {
+		void handle(String result);
+	}
+
+	// numbers without leading decimal point, no grouping separator and '.' or ',' as decimal separator
+	private static final Pattern NUMBER_PATTERN = Pattern.compile("[-\\+]?\\d+([,\\.]\\d+)?([eE][-\\+]?\\d+)?");
+	private static final Pattern WHITESPACE_PATTERN = Pattern.compile(".*\\s+.*");
+	// latencies a node must have answered before its percentile is trusted
+	private static final int HEDGE_MIN_SAMPLES = 16;
+
+	private CloudController controller;
+	private AdvancedShell controllerShell;
+	private Message message = new Message();
+	private ExecutorService workers;
+	private ScheduledThreadPoolExecutor timer;
+	private boolean hedging;
+	private int hedgePercentile;
+	private long hedgeDelay;
+	private int maxRetries;
+	private long retryBackoff;
+	private RetryBudget retryBudget;
+	private final OperatorStatistics operatorStatistics;
+
+	/**
+	 * @param controller the cloud controller object
+	 */
+	public TermEvaluator(CloudController controller) {
+		this.setController(controller);
+		this.setControllerShell(controller.getShell());
+		this.setWorkers(Executors.newFixedThreadPool(controller.getConfig().getInt("compute.workers")));
+		ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, HandlerThreads.platformFactory("Compute-Timer"));
+		// most hedges are cancelled because the node answered in time
+		timer.setRemoveOnCancelPolicy(true);
+		this.setTimer(timer);
+		this.setHedging(Boolean.parseBoolean(controller.getConfig().getString("compute.hedge").trim()));
+		this.setHedgePercentile(controller.getConfig().getInt("compute.hedge.percentile"));
+		this.setHedgeDelay(controller.getConfig().getInt("compute.hedge.delay"));
+		this.setMaxRetries(controller.getConfig().getInt("compute.retry.max"));
+		this.setRetryBackoff(controller.getConfig().getInt("compute.retry.backoff"));
+		this.setRetryBudget(new RetryBudget(controller.getConfig().getInt("compute.retry.budget"), controller.getConfig().getInt("compute.retry.reserve")));
+		this.operatorStatistics = controller.getOperatorStatistics();
+	}
+
+	/**
+	 * @return the workers evaluating asynchronous terms
+	 */
+	private synchronized ExecutorService getWorkers() {
+		return workers;
+	}
+
+	/**
+	 * @param workers the workers to set
+	 */
+	private synchronized void setWorkers(ExecutorService workers) {
+		this.workers = workers;
+	}
+
+	/**
+	 * @return the timer sending hedged and retried requests and ending overdue node requests
+	 */
+	synchronized ScheduledThreadPoolExecutor getTimer() {
+		return timer;
+	}
+
+	/**
+	 * @param timer the timer to set
+	 */
+	private synchronized void setTimer(ScheduledThreadPoolExecutor timer) {
+		this.timer = timer;
+	}
+
+	/**
+	 * @return true if slow operations are hedged
+	 */
+	private synchronized boolean isHedging() {
+		return hedging;
+	}
+
+	/**
+	 * @param hedging the hedging to set
+	 */
+	private synchronized void setHedging(boolean hedging) {
+		this.hedging = hedging;
+	}
+
+	/**
+	 * @return the percentile of the latency of a node after which a request is hedged
+	 */
+	private synchronized int getHedgePercentile() {
+		return hedgePercentile;
+	}
+
+	/**
+	 * @param hedgePercentile the hedgePercentile to set
+	 */
+	private synchronized void setHedgePercentile(int hedgePercentile) {
+		this.hedgePercentile = hedgePercentile;
+	}
+
+	/**
+	 * @return the minimal delay in ms before a request is hedged
+	 */
+	private synchronized long getHedgeDelay() {
+		return hedgeDelay;
+	}
+
+	/**
+	 * @param hedgeDelay the hedgeDelay to set
+	 */
+	private synchronized void setHedgeDelay(long hedgeDelay) {
+		this.hedgeDelay = hedgeDelay;
+	}
+
+	/**
+	 * @return the maximum number of retries of one operation
+	 */
+	private synchronized int getMaxRetries() {
+		return maxRetries;
+	}
+
+	/**
+	 * @param maxRetries the maxRetries to set
+	 */
+	private synchronized void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	/**
+	 * @return the backoff in ms before the first retry, doubled for every further one
+	 */
+	private synchronized long getRetryBackoff() {
+		return retryBackoff;
+	}
+
+	/**
+	 * @param retryBackoff the retryBackoff to set
+	 */
+	private synchronized void setRetryBackoff(long retryBackoff) {
+		this.retryBackoff = retryBackoff;
+	}
+
+	/**
+	 * @return the budget limiting the retries of all operations
+	 */
+	private synchronized RetryBudget getRetryBudget() {
+		return retryBudget;
+	}
+
+	/**
+	 * @param retryBudget the retryBudget to set
+	 */
+	private synchronized void setRetryBudget(RetryBudget retryBudget) {
+		this.retryBudget = retryBudget;
+	}
+
+	/**
+	 * @return the controller
+	 */
+	private synchronized CloudController getController() {
+		return controller;
+	}
+
+	/**
+	 * @param controller the controller to set
+	 */
+	private synchronized void setController(CloudController controller) {
+		this.controller = controller;
+	}
+
+	/**
+	 * @return the controllerShell
+	 */
+	private synchronized AdvancedShell getControllerShell() {
+		return controllerShell;
+	}
+
+	/**
+	 * @param controllerShell the controllerShell to set
+	 */
+	private synchronized void setControllerShell(AdvancedShell controllerShell) {
+		this.controllerShell = controllerShell;
+	}
+
+	/**
+	 * @return the message
+	 */
+	private synchronized Message getMessage() {
+		return message;
+	}
+
+	/**
+	 * @param string
+	 * @return true if string could be converted to a double (after removing '+' signs)
+	 */
+	static private boolean isNumeric(String string) {
+		try {
+			Double.parseDouble(string.trim().replaceAll("\\+", "").replace(",", ".").trim());
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @param string
+	 * @return true if string could be converted to an integer (after removing '+' signs)
+	 */
+	static private boolean isInteger(String string) {
+		try {
+			Integer.parseInt(string.trim().replaceAll("\\+", "").replace(",", ".").trim());
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Splits a string in numeric and non-numeric parts
+	 *
+	 * @param inString
+	 * @return Array of alternating numeric and non-numeric strings
+	 */
+	static private ArrayList<String> splitOnNumber(String inString) {
+		int lastEnd = 0;
+		ArrayList<String> results = new ArrayList<String>();
+		for (Matcher matched = NUMBER_PATTERN.matcher(inString); matched.find(); ) {
+			if (matched.start() > lastEnd) {
+				results.add(inString.substring(lastEnd, matched.start()));
+			}
+			results.add(inString.substring(matched.start(), matched.end()));
+			lastEnd = matched.end();
+		}
+		if (lastEnd < inString.length()) {
+			results.add(inString.substring(lastEnd));
+		}
+		return results;
+	}
+
+	/**
+	 * @param operator
+	 * @return the active node chosen by the load balancer supporting the operator, or null
+	 */
+	private ControllerNode findNode(String operator) {
+		return findNode(operator, Collections.<ControllerNode>emptySet());
+	}
+
+	/**
+	 * @param operator
+	 * @param excluded nodes not to choose
+	 * @return the active node chosen by the load balancer supporting the operator, or null
+	 */
+	private ControllerNode findNode(String operator, Collection<ControllerNode> excluded) {
+		return getController().getLoadBalancer().choose(operator.charAt(0), excluded);
+	}
+
+	/**
+	 * Checks the syntax of a term and that all its operations are supported
+	 *
+	 * @param term the mathematical term
+	 * @return alternating operands and operators
+	 * @throws IllegalArgumentException on syntactical errors or unsupported operations
+	 */
+	private ArrayList<String> parse(String term) {
+
+		// split command line on numbers
+		ArrayList<String> parts = splitOnNumber(term.trim());
+
+		// only single char binary inner operators are supported, like '+' or '*'
+		// and signs for numbers
+		// but no unary operators, like 'sin'
+		// or multinary operators, like ternary operators
+		// and no multichar operators, like 'mod'
+
+		// need odd number of parts
+		if ((parts.size() % 2) == 0) {
+			throw new IllegalArgumentException(String.format("Invalid number of operators/operands in '%s'!", term));
+		}
+		// the very first part has to be a number
+		if (! isNumeric(parts.get(0))) {
+			throw new IllegalArgumentException(String.format("'%s' is not a number!", parts.get(0)));
+		}
+		if (! isInteger(parts.get(0))) {
+			throw new IllegalArgumentException(String.format("'%s' is not an integer!", parts.get(0)));
+		}
+		String operator;
+		for (int index = 1; index < parts.size(); index++) {
+			// the next part has to be an operator
+			if (parts.get(index).trim().length() == 0) {
+				throw new IllegalArgumentException(String.format("Missing operator!", parts.get(index)));
+			}
+			if (isNumeric(parts.get(index))) {
+				throw new IllegalArgumentException(String.format("'%s' is not an operator!", parts.get(index)));
+			}
+			if (WHITESPACE_PATTERN.matcher(parts.get(index).trim()).matches()) {
+				throw new IllegalArgumentException(String.format("'%s' is not only one operator!", parts.get(index)));
+			}
+			operator = parts.get(index++).trim();
+			// the following part has to be a number again (should be OK because of modulo-test at the beginning)
+			if (index >= parts.size()) {
+				throw new IllegalArgumentException("Missing operand!");
+			}
+			if (! isNumeric(parts.get(index))) {
+				throw new IllegalArgumentException(String.format("'%s' is not a number!", parts.get(index)));
+			}
+			if (! isInteger(parts.get(index))) {
+				throw new IllegalArgumentException(String.format("'%s' is not an integer!", parts.get(index)));
+			}
+
+			// some node has to support the operator, the best one is chosen during execution
+			if (! getController().getNodeRegistry().isSupported(operator.charAt(0))) {
+				throw new IllegalArgumentException(String.format("!Warning: No node found for '%s' operation.", operator));
+			}
+		}
+		return parts;
+	}
+
+	/**
+	 * @param parts parsed term
+	 * @return number of operations of the term
+	 */
+	private static int countOperations(ArrayList<String> parts) {
+		return parts.size() / 2;
+	}
+
+	/**
+	 * One term calculated operation by operation on the nodes,
+	 * every operation is an asynchronous node request,
+	 * the next operation is prepared on a worker when the response arrives
+	 */
+	private class Evaluation {
+		private final ControllerUser user;
+		private final ArrayList<String> parts;
+		private final boolean prepaid;
+		private final int operations;
+		private final CompletableFuture<String> result = new CompletableFuture<String>();
+
+		/**
+		 * @param user the logged-in user paying the operations
+		 * @param parts parsed term
+		 * @param prepaid true if all operations of the term are already paid
+		 */
+		private Evaluation(ControllerUser user, ArrayList<String> parts, boolean prepaid) {
+			this.user = user;
+			this.parts = parts;
+			this.prepaid = prepaid;
+			this.operations = countOperations(parts);
+		}
+
+		/**
+		 * Sends the operation at the given index to the best node
+		 *
+		 * @param index index of the operator in the parts
+		 * @param intermediate result of the operations before
+		 */
+		private void next(final int index, String intermediate) {
+			if (index >= parts.size()) {
+				result.complete(intermediate);
+				return;
+			}
+			final int operatorCount = (index + 1) / 2;
+			String operator = parts.get(index).trim();
+			String operand = parts.get(index + 1).trim().replaceAll("\\+", "");
+			String request = String.format("!compute %s %s %s", intermediate, operator, operand);
+			// pay in advance
+			if (! prepaid && ! user.buyOperations(1)) {
+				// no refund because user simultaneously sends operations
+				result.complete(String.format("!Warning: %d credits are not enough for operation '%s %s %s'.", user.getCredits(), intermediate, operator, operand));
+				return;
+			}
+
+			// Test only?
+			getControllerShell().printLine(request);
+
+			// now find the best node again
+			final ControllerNode foundNode = findNode(operator);
+			if (foundNode == null) {
+				// refund all operations done until now because an unavailable node is no failure of the user
+				user.refundOperations(prepaid ? operations : operatorCount);
+				result.complete(String.format("!Warning: No active node found for '%s' operation", operator));
+				return;
+			}
+			new Operation(index, operator, request).send(foundNode);
+		}
+
+		/**
+		 * Checks the response of one operation and continues with the next one
+		 *
+		 * @param index index of the operator in the parts
+		 * @param foundNode the node which calculated the operation
+		 * @param response response of the node
+		 * @param failure or why there is no response
+		 */
+		private void handle(int index, ControllerNode foundNode, String response, Throwable failure) {
+			int operatorCount = (index + 1) / 2;
+			if (failure != null) {
+				// a node failure is no failure of the user
+				user.refundOperations(prepaid ? operations : operatorCount);
+				result.complete("!Error: " + failure.getMessage());
+				return;
+			}
+			if (response == null) {
+				response = getMessage().node_disconnected;
+			}
+			if (isInteger(response)) {
+				foundNode.increaseUsage(response);
+				next(index + 2, response);
+				return;
+			}
+			// check for the type of failure and decide who is responsible, the user or the node
+			// TODO: maybe increase list of user-error
+			if (getMessage().zero_division.equals(response)) {
+				// increase node usage
+				// because a user-Error is no failure of the node
+				// foundNode.increaseUsage(result);			// dont increase! (lt. Angabe!)
+				if (prepaid) {
+					// but the following operations were never done
+					user.refundOperations(operations - operatorCount);
+				}
+			} else {
+				// by default refund all operations done until now
+				// because an unspecific node-Error is no failure of the user
+				user.refundOperations(prepaid ? operations : operatorCount);
+			}
+			result.complete(response);
+		}
+
+		/**
+		 * One operation in flight, on the chosen node and maybe hedged on a second one.
+		 * If all nodes asked failed, it is retried on a node not asked yet.
+		 * Only the first usable answer is handled, so the operation is paid
+		 * and counted for the usage of a node exactly once.
+		 */
+		private class Operation {
+			private final int index;
+			private final String operator;
+			private final String request;
+			private final Set<ControllerNode> asked = ConcurrentHashMap.newKeySet();
+			private final AtomicBoolean answered = new AtomicBoolean();
+			private final AtomicInteger inFlight = new AtomicInteger();
+			private int retries = 0;		// only changed by the last failed answer
+			private volatile boolean retrying = false;
+			private volatile ScheduledFuture<?> hedge;
+
+			/**
+			 * @param index index of the operator in the parts
+			 * @param operator the operator of the operation
+			 * @param request the node request
+			 */
+			private Operation(int index, String operator, String request) {
+				this.index = index;
+				this.operator = operator;
+				this.request = request;
+			}
+
+			/**
+			 * @return true if the operation is answered or a retry replaced the hedge
+			 */
+			private boolean isSettled() {
+				return answered.get() || retrying;
+			}
+
+			/**
+			 * Sends the request to the node and schedules the hedged request,
+			 * unless the request already failed synchronously and is retried
+			 *
+			 * @param foundNode the node chosen by the load balancer
+			 */
+			private void send(final ControllerNode foundNode) {
+				getRetryBudget().deposit();
+				request(foundNode);
+				if (! isHedging() || isSettled()) {
+					return;
+				}
+				long delay = (long) Math.ceil(foundNode.getStatistics().getLatencyPercentile(getHedgePercentile(), HEDGE_MIN_SAMPLES));
+				try {
+					hedge = getTimer().schedule(new Runnable() {
+						@Override
+						public void run() {
+							hedge();
+						}
+					}, Math.max(delay, getHedgeDelay()), TimeUnit.MILLISECONDS);
+				} catch (RejectedExecutionException e) {
+					// controller is shutting down, no hedging any more
+					return;
+				}
+				if (isSettled()) {
+					// answered or retried meanwhile
+					hedge.cancel(false);
+				}
+			}
+
+			/**
+			 * Sends the same request to the next best node, if the first one is still busy
+			 */
+			private void hedge() {
+				if (isSettled()) {
+					return;
+				}
+				ControllerNode secondNode = findNode(operator, asked);
+				if (secondNode != null) {
+					request(secondNode);
+				}
+			}
+
+			/**
+			 * @param node the node to ask
+			 */
+			private void request(final ControllerNode node) {
+				asked.add(node);
+				inFlight.incrementAndGet();
+				node.requestAsync(request).whenComplete(new BiConsumer<String, Throwable>() {
+					@Override
+					public void accept(String response, Throwable failure) {
+						answer(node, response, failure);
+					}
+				});
+			}
+
+			/**
+			 * Takes the first usable answer, a failed request only counts if no other one is in flight
+			 * and it can't be retried
+			 *
+			 * @param node the node which answered
+			 * @param response response of the node
+			 * @param failure or why there is no response
+			 */
+			private void answer(ControllerNode node, String response, Throwable failure) {
+				boolean failed = failure != null || response == null || response.contains(getMessage().node_disconnected);
+				if (inFlight.decrementAndGet() > 0 && failed) {
+					// the other node may still answer
+					return;
+				}
+				if (failed && ! answered.get() && retry()) {
+					return;
+				}
+				finish(node, response, failure);
+			}
+
+			/**
+			 * Schedules the request for a node not asked yet
+			 *
+			 * @return false if the operation can't be retried
+			 */
+			private boolean retry() {
+				if (retries >= getMaxRetries() || findNode(operator, asked) == null || ! getRetryBudget().withdraw()) {
+					return false;
+				}
+				retrying = true;
+				ScheduledFuture<?> hedge = this.hedge;
+				if (hedge != null) {
+					// the retry replaces the hedge
+					hedge.cancel(false);
+				}
+				// exponential backoff, randomized so the retries of many terms don't arrive together
+				long backoff = getRetryBackoff() << retries++;
+				long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+				try {
+					getTimer().schedule(new Runnable() {
+						@Override
+						public void run() {
+							ControllerNode nextNode = findNode(operator, asked);
+							if (nextNode == null) {
+								// the other nodes went away meanwhile
+								finish(null, getMessage().node_disconnected, null);
+								return;
+							}
+							request(nextNode);
+						}
+					}, delay, TimeUnit.MILLISECONDS);
+				} catch (RejectedExecutionException e) {
+					// controller is shutting down
+					return false;
+				}
+				return true;
+			}
+
+			/**
+			 * Handles the answer of the operation on a worker, only once
+			 *
+			 * @param node the node which answered
+			 * @param response response of the node
+			 * @param failure or why there is no response
+			 */
+			private void finish(final ControllerNode node, final String response, final Throwable failure) {
+				if (! answered.compareAndSet(false, true)) {
+					// too late, the other node was faster
+					return;
+				}
+				ScheduledFuture<?> hedge = this.hedge;
+				if (hedge != null) {
+					hedge.cancel(false);
+				}
+				// leave the I/O thread
+				try {
+					getWorkers().execute(new Runnable() {
+						@Override
+						public void run() {
+							handle(index, node, response, failure);
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					// controller is shutting down
+					result.complete(getMessage().controller_disconnected);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Starts to calculate a parsed term operation by operation on the nodes
+	 *
+	 * @param user the logged-in user paying the operations
+	 * @param parts parsed term
+	 * @param prepaid true if all operations of the term are already paid
+	 * @return future result or error, completed exceptionally if a node can't be reached and nothing is prepaid
+	 */
+	private CompletableFuture<String> executeAsync(ControllerUser user, ArrayList<String> parts, boolean prepaid) {
+		// counted without a lock, concurrent sessions don't contend on one counter
+		for (int index = 1; index < parts.size(); index += 2) {
+			operatorStatistics.record(parts.get(index).trim().charAt(0));
+		}
+		Evaluation evaluation = new Evaluation(user, parts, prepaid);
+		evaluation.next(1, parts.get(0).trim().replaceAll("\\+", ""));
+		return evaluation.result;
+	}
+
+	/**
+	 * Waits for the result of an evaluation
+	 *
+	 * @param result future result
+	 * @return result or error
+	 * @throws RuntimeException if a node can't be reached
+	 */
+	private String await(CompletableFuture<String> result) {
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return getMessage().controller_disconnected;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause().getMessage(), e.getCause());
+		}
+	}
+
+	/**
+	 * Evaluates the given term for the given user
+	 *
+	 * @param user the logged-in user paying the operations
+	 * @param term the mathematical term
+	 * @return result or error
+	 */
+	public String compute(ControllerUser user, String term) {
+		return await(start(user, term));
+	}
+
+	/**
+	 * Checks the term and starts its calculation
+	 *
+	 * @param user the logged-in user paying the operations
+	 * @param term the mathematical term
+	 * @return future result or error
+	 */
+	private CompletableFuture<String> start(ControllerUser user, String term) {
+
+		// split command line
+		// check for syntactical correctness of command line
+		// check all connected nodes which will support the requested operations
+		// check that all operations are supported
+		// for each operation contact the node chosen by the load balancer (request on the multiplexed connection)
+		// increase nodes credits
+		// return result or error
+		// decrease client credits if no error
+
+		getControllerShell().printLine(term);
+		ArrayList<String> parts;
+		try {
+			// First check prerequisites
+			parts = parse(term);
+		} catch (IllegalArgumentException e) {
+			// invalid argument in compute construct
+			getControllerShell().printErrLine(e.getMessage());
+			return CompletableFuture.completedFuture(e.getMessage());
+		}
+
+		// check credits
+		int operatorCount = countOperations(parts);
+		if (! user.checkCredits(operatorCount)) {
+			return CompletableFuture.completedFuture(String.format("!Warning: %d credits are not enough for %d operation%s (but for %d).", user.getCredits(), operatorCount, (operatorCount == 1 ? "" : "s"), user.availableOperations()));
+		}
+
+		// now start the calculation
+		return executeAsync(user, parts, false);
+	}
+
+	/**
+	 * Evaluates many terms for the given user, credits are charged once for the whole batch.
+	 * The terms are calculated in parallel, invalid terms are not charged.
+	 *
+	 * @param user the logged-in user paying the operations
+	 * @param terms the mathematical terms
+	 * @return one result or error per term, in the order of the terms
+	 */
+	public List<String> computeBatch(final ControllerUser user, List<String> terms) {
+		List<String> results = new ArrayList<String>(terms.size());
+		List<ArrayList<String>> parsed = new ArrayList<ArrayList<String>>(terms.size());
+
+		// check all terms first
+		int operations = 0;
+		for (String term : terms) {
+			try {
+				ArrayList<String> parts = parse(term);
+				parsed.add(parts);
+				results.add(null);
+				operations += countOperations(parts);
+			} catch (IllegalArgumentException e) {
+				parsed.add(null);
+				results.add(e.getMessage());
+			}
+		}
+
+		// pay the whole batch in advance
+		if (! user.checkCredits(operations) || ! user.buyOperations(operations)) {
+			String warning = String.format("!Warning: %d credits are not enough for %d operation%s of the batch (but for %d).", user.getCredits(), operations, (operations == 1 ? "" : "s"), user.availableOperations());
+			for (int index = 0; index < results.size(); index++) {
+				if (results.get(index) == null) {
+					results.set(index, warning);
+				}
+			}
+			return results;
+		}
+
+		// all operations of all terms are in flight at the same time
+		List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>(terms.size());
+		for (ArrayList<String> parts : parsed) {
+			futures.add(parts == null ? null : executeAsync(user, parts, true));
+		}
+
+		// and collect the results in order
+		for (int index = 0; index < futures.size(); index++) {
+			if (futures.get(index) == null) {
+				continue;
+			}
+			try {
+				results.set(index, await(futures.get(index)));
+			} catch (RuntimeException e) {
+				results.set(index, "!Error: " + e.getMessage());
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Evaluates a batch given as one line
+	 *
+	 * @param user the logged-in user paying the operations
+	 * @param terms the mathematical terms, separated by ';'
+	 * @return one line 'term = result' per term, in the order of the terms
+	 */
+	public String computeBatch(ControllerUser user, String terms) {
+		List<String> list = new ArrayList<String>();
+		for (String term : terms.split(";")) {
+			if (term.trim().length() > 0) {
+				list.add(term.trim());
+			}
+		}
+		if (list.isEmpty()) {
+			return "!Error: No terms given!";
+		}
+		List<String> results = computeBatch(user, list);
+		StringBuilder output = new StringBuilder();
+		for (int index = 0; index < list.size(); index++) {
+			if (index > 0) {
+				output.append("\n");
+			}
+			output.append(list.get(index)).append(" = ").append(results.get(index));
+		}
+		return output.toString();
+	}
+
+	/**
+	 * Evaluates the given term without blocking the caller or a worker,
+	 * so one session can have many terms in flight
+	 *
+	 * @param user the logged-in user paying the operations
+	 * @param term the mathematical term
+	 * @param handler receives the result or error, called on a worker
+	 */
+	public void computeAsync(final ControllerUser user, final String term, final ResultHandler handler) {
+		try {
+			getWorkers().execute(new Runnable() {
+				@Override
+				public void run() {
+					start(user, term).whenComplete(new BiConsumer<String, Throwable>() {
+						@Override
+						public void accept(String result, Throwable failure) {
+							if (failure != null) {
+								// e.g. node not reachable
+								result = "!Error: " + failure.getMessage();
+							}
+							handler.handle(result);
+						}
+					});
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// controller is shutting down
+			handler.handle(getMessage().controller_disconnected);
+		}
+	}
+
+	/**
+	 * Stops the workers, running evaluations are interrupted
+	 */
+	public void close() {
+		getTimer().shutdownNow();
+		getWorkers().shutdownNow();
+		try {
+			getWorkers().awaitTermination(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			// do nothing
+		}
+	}
+}
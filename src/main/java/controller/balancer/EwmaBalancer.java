@@ -0,0 +1,73 @@
+package controller.balancer;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import controller.ControllerNode;
+import controller.NodeRegistry;
+import controller.NodeStatistics;
+
+/**
+ * Power of two choices: picks two random nodes and chooses the one with the lower cost,
+ * the average latency multiplied by the requests in flight.
+ * Nodes without a measured latency cost nothing, so new nodes are probed first.
+ * Only two nodes are looked at, however many nodes there are,
+ * unless excluded nodes are drawn.
+ */
+public class EwmaBalancer implements LoadBalancer {
+
+	private final NodeRegistry registry;
+
+	/**
+	 * @param registry the registry of all nodes
+	 */
+	public EwmaBalancer(NodeRegistry registry) {
+		this.registry = registry;
+	}
+
+	/**
+	 * @param node
+	 * @return the expected time a new request will take
+	 */
+	private static double cost(ControllerNode node) {
+		NodeStatistics statistics = node.getStatistics();
+		return statistics.getLatency() * (statistics.getOutstanding() + 1);
+	}
+
+	/* (non-Javadoc)
+	 * @see controller.balancer.LoadBalancer#choose(char)
+	 */
+	@Override
+	public ControllerNode choose(char operator, Collection<ControllerNode> excluded) {
+		List<ControllerNode> nodes = registry.getActiveNodeList(operator);
+		try {
+			int size = nodes.size();
+			if (size <= excluded.size() + 1) {
+				// too few nodes for random choices
+				return registry.getPoorestNode(operator, excluded);
+			}
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			ControllerNode node1 = null;
+			ControllerNode node2 = null;
+			for (int draw = 0; draw < 2 * size && node2 == null; draw++) {
+				ControllerNode drawn = nodes.get(random.nextInt(size));
+				if (drawn == node1 || ! drawn.isAvailable() || excluded.contains(drawn)) {
+					continue;
+				}
+				if (node1 == null) {
+					node1 = drawn;
+				} else {
+					node2 = drawn;
+				}
+			}
+			if (node2 == null) {
+				return (node1 != null ? node1 : registry.getPoorestNode(operator, excluded));
+			}
+			return (cost(node2) < cost(node1) ? node2 : node1);
+		} catch (IndexOutOfBoundsException e) {
+			// a node has just been removed
+			return registry.getPoorestNode(operator, excluded);
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package controller.balancer;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import controller.ControllerNode;
+import controller.NodeRegistry;
+
+/**
+ * Chooses the node with the fewest requests waiting for their response.
+ * The scan starts at a rotating position, so ties are spread over all nodes.
+ */
+public class LeastOutstandingBalancer implements LoadBalancer {
+
+	private final NodeRegistry registry;
+	private final AtomicInteger offset = new AtomicInteger();
+
+	/**
+	 * @param registry the registry of all nodes
+	 */
+	public LeastOutstandingBalancer(NodeRegistry registry) {
+		this.registry = registry;
+	}
+
+	/* (non-Javadoc)
+	 * @see controller.balancer.LoadBalancer#choose(char)
+	 */
+	@Override
+	public ControllerNode choose(char operator, Collection<ControllerNode> excluded) {
+		List<ControllerNode> nodes = registry.getActiveNodeList(operator);
+		ControllerNode foundNode = null;
+		int fewest = Integer.MAX_VALUE;
+		try {
+			int size = nodes.size();
+			int start = (size == 0 ? 0 : (offset.getAndIncrement() & Integer.MAX_VALUE) % size);
+			for (int index = 0; index < size; index++) {
+				ControllerNode checkNode = nodes.get((start + index) % size);
+				int outstanding = checkNode.getStatistics().getOutstanding();
+				if (outstanding < fewest && checkNode.isAvailable() && ! excluded.contains(checkNode)) {
+					foundNode = checkNode;
+					fewest = outstanding;
+				}
+			}
+		} catch (IndexOutOfBoundsException e) {
+			// a node has just been removed, take the best one found so far
+		}
+		return (foundNode != null ? foundNode : registry.getPoorestNode(operator, excluded));
+	}
+}
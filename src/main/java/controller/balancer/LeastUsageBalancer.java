@@ -0,0 +1,30 @@
+package controller.balancer;
+
+import java.util.Collection;
+
+import controller.ControllerNode;
+import controller.NodeRegistry;
+
+/**
+ * Chooses the poorest node, the one with the lowest cumulated usage
+ */
+public class LeastUsageBalancer implements LoadBalancer {
+
+	private final NodeRegistry registry;
+
+	/**
+	 * @param registry the registry of all nodes
+	 */
+	public LeastUsageBalancer(NodeRegistry registry) {
+		this.registry = registry;
+	}
+
+	/* (non-Javadoc)
+	 * @see controller.balancer.LoadBalancer#choose(char)
+	 */
+	@Override
+	public ControllerNode choose(char operator, Collection<ControllerNode> excluded) {
+		// first of the usage ordered index
+		return registry.getPoorestNode(operator, excluded);
+	}
+}
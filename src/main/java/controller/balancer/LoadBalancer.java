@@ -0,0 +1,19 @@
+package controller.balancer;
+
+import java.util.Collection;
+
+import controller.ControllerNode;
+
+/**
+ * Strategy choosing the node for the next operation
+ */
+public interface LoadBalancer {
+
+	/**
+	 * @param operator the operator of the operation, e.g. '+'
+	 * @param excluded nodes not to choose, e.g. the node already asked, usually empty
+	 * @return an active node supporting the operator, or null if there is none
+	 */
+	ControllerNode choose(char operator, Collection<ControllerNode> excluded);
+
+}
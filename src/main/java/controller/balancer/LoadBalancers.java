@@ -0,0 +1,56 @@
+package controller.balancer;
+
+import controller.NodeRegistry;
+
+/**
+ * Creates the load balancer configured for the controller.
+ *
+ * Supported strategies:
+ *   least-usage          - node with the lowest cumulated usage (default)
+ *   least-outstanding    - node with the fewest requests waiting for their response
+ *   ewma                 - better of two random nodes by latency and outstanding requests
+ *   weighted-round-robin - all nodes in turn, faster nodes more often
+ *
+ * Every strategy avoids nodes suspected by their failure detector.
+ */
+public final class LoadBalancers {
+
+	public static final String LEAST_USAGE = "least-usage";
+	public static final String LEAST_OUTSTANDING = "least-outstanding";
+	public static final String EWMA = "ewma";
+	public static final String WEIGHTED_ROUND_ROBIN = "weighted-round-robin";
+
+	private LoadBalancers() {
+	}
+
+	/**
+	 * @param strategy name of the strategy
+	 * @param registry the registry of all nodes
+	 * @return the load balancer of the strategy
+	 * @throws IllegalArgumentException on an unknown strategy
+	 */
+	public static LoadBalancer create(String strategy, NodeRegistry registry) {
+		return new SuspicionAwareBalancer(createStrategy(strategy, registry));
+	}
+
+	/**
+	 * @param strategy name of the strategy
+	 * @param registry the registry of all nodes
+	 * @return the load balancer of the strategy
+	 * @throws IllegalArgumentException on an unknown strategy
+	 */
+	private static LoadBalancer createStrategy(String strategy, NodeRegistry registry) {
+		switch (strategy.trim().toLowerCase()) {
+			case LEAST_USAGE:
+				return new LeastUsageBalancer(registry);
+			case LEAST_OUTSTANDING:
+				return new LeastOutstandingBalancer(registry);
+			case EWMA:
+				return new EwmaBalancer(registry);
+			case WEIGHTED_ROUND_ROBIN:
+				return new WeightedRoundRobinBalancer(registry);
+			default:
+				throw new IllegalArgumentException(String.format("Unknown load balancing strategy '%s'.", strategy));
+		}
+	}
+}
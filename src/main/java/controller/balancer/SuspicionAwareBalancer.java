@@ -0,0 +1,52 @@
+package controller.balancer;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import controller.ControllerNode;
+
+/**
+ * Load balancer avoiding suspected nodes, see {@link controller.PhiAccrualDetector}.
+ * If the node chosen by the strategy is suspected, the strategy chooses again without it,
+ * a suspected node is only used if there is no other one.
+ */
+public class SuspicionAwareBalancer implements LoadBalancer {
+
+	// further choices if the chosen node is suspected
+	private static final int MAX_CHOICES = 3;
+
+	private final LoadBalancer strategy;
+
+	/**
+	 * @param strategy the load balancer choosing the nodes
+	 */
+	public SuspicionAwareBalancer(LoadBalancer strategy) {
+		this.strategy = strategy;
+	}
+
+	/* (non-Javadoc)
+	 * @see controller.balancer.LoadBalancer#choose(char, java.util.Collection)
+	 */
+	@Override
+	public ControllerNode choose(char operator, Collection<ControllerNode> excluded) {
+		ControllerNode foundNode = strategy.choose(operator, excluded);
+		if (foundNode == null || ! foundNode.isSuspect()) {
+			return foundNode;
+		}
+		// rarely needed, so the set is created only now
+		Set<ControllerNode> suspects = new HashSet<ControllerNode>(excluded);
+		ControllerNode checkNode = foundNode;
+		for (int choice = 0; choice < MAX_CHOICES; choice++) {
+			suspects.add(checkNode);
+			checkNode = strategy.choose(operator, suspects);
+			if (checkNode == null) {
+				break;
+			}
+			if (! checkNode.isSuspect()) {
+				return checkNode;
+			}
+		}
+		return foundNode;
+	}
+}
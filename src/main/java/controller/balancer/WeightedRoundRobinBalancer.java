@@ -0,0 +1,98 @@
+package controller.balancer;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import controller.ControllerNode;
+import controller.NodeRegistry;
+
+/**
+ * Smooth weighted round robin: every node gets its turn,
+ * nodes with a lower average latency proportionally more often.
+ * The weight of a node is 1..MAX_WEIGHT relative to the fastest node,
+ * nodes without a measured latency get the maximum weight.
+ */
+public class WeightedRoundRobinBalancer implements LoadBalancer {
+
+	private static final int MAX_WEIGHT = 10;
+
+	private final NodeRegistry registry;
+	private final Map<Character, Map<ControllerNode, long[]>> currentWeightsByOperator = new HashMap<Character, Map<ControllerNode, long[]>>();
+
+	/**
+	 * @param registry the registry of all nodes
+	 */
+	public WeightedRoundRobinBalancer(NodeRegistry registry) {
+		this.registry = registry;
+	}
+
+	/**
+	 * @param node
+	 * @param fastest lowest latency of all candidates, 0 if none is known
+	 * @return the weight of the node
+	 */
+	private static int weight(ControllerNode node, double fastest) {
+		double latency = node.getStatistics().getLatency();
+		if (latency == 0.0 || fastest == 0.0) {
+			return MAX_WEIGHT;
+		}
+		return (int) Math.max(1L, Math.round(MAX_WEIGHT * fastest / latency));
+	}
+
+	/* (non-Javadoc)
+	 * @see controller.balancer.LoadBalancer#choose(char)
+	 */
+	@Override
+	public synchronized ControllerNode choose(char operator, Collection<ControllerNode> excluded) {
+		List<ControllerNode> nodes = registry.getActiveNodeList(operator);
+		Map<ControllerNode, long[]> currentWeights = currentWeightsByOperator.get(operator);
+		if (currentWeights == null) {
+			currentWeights = new HashMap<ControllerNode, long[]>();
+			currentWeightsByOperator.put(operator, currentWeights);
+		}
+		ControllerNode foundNode = null;
+		try {
+			double fastest = 0.0;
+			for (int index = 0; index < nodes.size(); index++) {
+				double latency = nodes.get(index).getStatistics().getLatency();
+				if (latency > 0.0 && (fastest == 0.0 || latency < fastest)) {
+					fastest = latency;
+				}
+			}
+			long total = 0;
+			long[] best = null;
+			for (int index = 0; index < nodes.size(); index++) {
+				ControllerNode checkNode = nodes.get(index);
+				if (! checkNode.isAvailable() || excluded.contains(checkNode)) {
+					continue;
+				}
+				int weight = weight(checkNode, fastest);
+				long[] current = currentWeights.get(checkNode);
+				if (current == null) {
+					current = new long[1];
+					currentWeights.put(checkNode, current);
+				}
+				current[0] += weight;
+				total += weight;
+				if (best == null || current[0] > best[0]) {
+					best = current;
+					foundNode = checkNode;
+				}
+			}
+			if (best != null) {
+				best[0] -= total;
+			}
+		} catch (IndexOutOfBoundsException e) {
+			// a node has just been removed
+			return registry.getPoorestNode(operator, excluded);
+		}
+		if (currentWeights.size() > 2 * nodes.size() + 16) {
+			// forget nodes which are gone
+			currentWeights.keySet().retainAll(new HashSet<ControllerNode>(nodes));
+		}
+		return foundNode;
+	}
+}
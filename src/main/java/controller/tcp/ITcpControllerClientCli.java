@@ -163,4 +163,85 @@ public interface ITcpControllerClientCli {
 	 */
 	String help() throws IOException;
 
+	/**
+	 * Evaluates a term asynchronously, many tagged terms may be in flight at once.
+	 * <p/>
+	 * The response is sent later, possibly out of order, as
+	 * {@code !tagged <tag> <result>}.
+	 * E.g.:
+	 * 
+	 * <pre>
+	 * &gt; !computeTagged 7 5 + 5
+	 * !tagged 7 10
+	 * </pre>
+	 *
+	 * @param tag
+	 *            correlation id chosen by the client
+	 * @param term
+	 *            the mathematical term
+	 * @return null, the result is sent asynchronously
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	String computeTagged(String tag, String term) throws IOException;
+
+	/**
+	 * Evaluates many terms in one request, the credits are charged once for the whole batch.
+	 * <p/>
+	 * E.g.:
+	 * 
+	 * <pre>
+	 * &gt; !computeBatch 1 + 2; 3 / 0
+	 * 1 + 2 = 3
+	 * 3 / 0 = !Error: division by zero!
+	 * </pre>
+	 *
+	 * @param terms
+	 *            the terms, separated by ';'
+	 * @return one result per term, in the order of the terms
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	String computeBatch(String terms) throws IOException;
+
+	/**
+	 * Starts evaluating a term in the background.
+	 * <p/>
+	 * E.g.:
+	 * 
+	 * <pre>
+	 * &gt; !submit 1 + 2 * 3
+	 * Job 1 submitted.
+	 * </pre>
+	 *
+	 * @param term
+	 *            the mathematical term
+	 * @return the job id
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	String submit(String term) throws IOException;
+
+	/**
+	 * Shows whether a submitted job is still running.
+	 *
+	 * @param id
+	 *            the job id
+	 * @return the state of the job
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	String status(long id) throws IOException;
+
+	/**
+	 * Shows the result of a completed job.
+	 *
+	 * @param id
+	 *            the job id
+	 * @return the result of the job
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	String result(long id) throws IOException;
+
 }
@@ -0,0 +1,837 @@
+package controller.tcp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+import controller.CloudController;
+import controller.ControllerUser;
+import controller.TermEvaluator;
+import cli.AdvancedShell;
+import util.FramedConnection;
+import util.Keys;
+import util.Message;
+import util.SecurityUtils;
+import util.SecurityUtils.Encryption;
+
+/**
+ * Object to communicate with a client on a non-blocking channel.
+ * It speaks the same protocol as {@link TcpControllerClient},
+ * but owns no thread and no shell: the selector thread feeds it with
+ * received lines, which are processed in order on a worker of the listener.
+ */
+public class NioControllerClient implements ITcpControllerClientCli {
+
+	private static final int MAX_LINE_LENGTH = 64 * 1024;
+	private static final byte[] NEWLINE = System.getProperty("line.separator").getBytes();
+
+	/**
+	 * Steps of the secure authentication
+	 */
+	private enum State {AUTHENTICATE, CHALLENGE, LOGGED_IN};
+
+	private CloudController controller;
+	private AdvancedShell controllerShell;
+	private NioControllerListener listener;
+	private NioControllerSelector selector;
+	private SocketChannel channel;
+	private SelectionKey key;
+	private boolean acceptCommands = true;
+	private boolean closeAfterWrite = false;
+	private State state = State.AUTHENTICATE;
+	private Message message = new Message();
+	private int maxInFlight;
+	private ControllerUser user = null;
+	private String pendingUsername;
+	private PublicKey userPublicKey;
+	private SecretKey secretKey;
+	private IvParameterSpec initVector;
+	private byte[] controllerChallenge;
+
+	// only used by the selector thread
+	private ByteBuffer readBuffer = ByteBuffer.allocate(1024);
+	private ByteBuffer writeBuffer = null;
+	private boolean firstMessage = true;
+
+	// length prefixed messages negotiated by the client, see FramedConnection
+	private volatile boolean framed = false;
+
+	// shared between selector thread and workers
+	private final Queue<byte[]> requests = new ConcurrentLinkedQueue<>();
+	private final Queue<ByteBuffer> responses = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean processing = new AtomicBoolean(false);
+	private final AtomicInteger inFlight = new AtomicInteger(0);
+
+	/**
+	 * @param controller Cloud controller object
+	 * @param listener the listener holding the workers
+	 * @param selector the selector thread serving this session
+	 * @param channel the non-blocking channel to the client
+	 * @param key the selection key of the channel
+	 */
+	public NioControllerClient(CloudController controller, NioControllerListener listener, NioControllerSelector selector, SocketChannel channel, SelectionKey key) {
+		this.controller = controller;
+		this.controllerShell = controller.getShell();
+		this.listener = listener;
+		this.selector = selector;
+		this.channel = channel;
+		this.key = key;
+		this.maxInFlight = controller.getConfig().getInt("compute.inflight");
+	}
+
+	/**
+	 * @return the message
+	 */
+	private Message getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return the user
+	 */
+	private synchronized ControllerUser getUser() {
+		return user;
+	}
+
+	/**
+	 * @param user the user to set
+	 */
+	private synchronized void setUser(ControllerUser user) {
+		this.user = user;
+	}
+
+	/**
+	 * @return the maximum number of tagged compute requests in flight
+	 */
+	private synchronized int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * @return true if no further requests are processed or read until a tagged term completes
+	 */
+	private boolean isInFlightLimit() {
+		return inFlight.get() >= getMaxInFlight();
+	}
+
+	/**
+	 * @return the acceptCommands
+	 */
+	private synchronized boolean isAcceptCommands() {
+		return acceptCommands;
+	}
+
+	/**
+	 * @return true if the user is logged in
+	 */
+	public Boolean loggedIn() {
+		return (getUser() != null);
+	}
+
+	// ------------------------------------------------ selector thread -----------------------------------------
+
+	/**
+	 * Reads all available data and queues every complete line or frame as a request
+	 *
+	 * @throws IOException if the client went away
+	 */
+	void onReadable() throws IOException {
+		int read = channel.read(readBuffer);
+		if (read < 0) {
+			// end of stream, client closed the connection
+			close(true);
+			return;
+		}
+		readBuffer.flip();
+		byte[] message;
+		while ((message = nextMessage()) != null) {
+			if (firstMessage) {
+				firstMessage = false;
+				if (FramedConnection.FRAME_REQUEST.equals(new String(message))) {
+					// answered in line mode, all following messages are framed
+					queueResponse(FramedConnection.FRAME_ACCEPTED.getBytes());
+					updateInterest();
+					framed = true;
+					continue;
+				}
+			}
+			requests.add(message);
+		}
+		readBuffer.compact();
+		if (! readBuffer.hasRemaining()) {
+			// lines are short, only negotiated frames may carry long messages
+			if (readBuffer.capacity() >= (framed ? FramedConnection.MAX_MESSAGE_LENGTH : MAX_LINE_LENGTH)) {
+				controllerShell.printErrLine("!Error: Request too long, closing client session!");
+				close(true);
+				return;
+			}
+			// grow for long messages
+			ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+			readBuffer.flip();
+			larger.put(readBuffer);
+			readBuffer = larger;
+		}
+		schedule();
+	}
+
+	/**
+	 * Takes the next complete message out of the read buffer
+	 *
+	 * @return the message or null if it is not completely received yet
+	 * @throws IOException on an invalid frame header
+	 */
+	private byte[] nextMessage() throws IOException {
+		int start = readBuffer.position();
+		if (framed) {
+			if (readBuffer.remaining() < 4) {
+				return null;
+			}
+			int length = readBuffer.getInt(start);
+			if (length < 0 || length > FramedConnection.MAX_MESSAGE_LENGTH) {
+				throw new IOException("Invalid message length " + length);
+			}
+			if (readBuffer.remaining() < 4 + length) {
+				if (readBuffer.capacity() < 4 + length) {
+					// make room for the whole frame
+					ByteBuffer larger = ByteBuffer.allocate(4 + length);
+					larger.put(readBuffer);
+					larger.flip();
+					readBuffer = larger;
+				}
+				return null;
+			}
+			byte[] message = new byte[length];
+			readBuffer.position(start + 4);
+			readBuffer.get(message);
+			return message;
+		}
+		for (int pos = start; pos < readBuffer.limit(); pos++) {
+			if (readBuffer.get(pos) == '\n') {
+				int end = pos;
+				if (end > start && readBuffer.get(end - 1) == '\r') {
+					end--;
+				}
+				byte[] message = new byte[end - start];
+				readBuffer.get(message);
+				readBuffer.position(pos + 1);
+				return message;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Writes as much of the pending responses as the channel accepts
+	 *
+	 * @throws IOException if the client went away
+	 */
+	void onWritable() throws IOException {
+		while (true) {
+			if (writeBuffer == null || ! writeBuffer.hasRemaining()) {
+				writeBuffer = responses.poll();
+				if (writeBuffer == null) {
+					break;
+				}
+			}
+			channel.write(writeBuffer);
+			if (writeBuffer.hasRemaining()) {
+				// socket buffer full, wait for next OP_WRITE
+				return;
+			}
+		}
+		updateInterest();
+		synchronized (this) {
+			if (closeAfterWrite && responses.isEmpty()) {
+				close(true);
+			}
+		}
+	}
+
+	/**
+	 * Selects OP_WRITE while responses are pending and OP_READ unless
+	 * the session is at its in-flight limit, called on the selector thread only
+	 */
+	void updateInterest() {
+		if (key.isValid()) {
+			int ops = isInFlightLimit() ? 0 : SelectionKey.OP_READ;
+			if (! responses.isEmpty() || (writeBuffer != null && writeBuffer.hasRemaining())) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+			key.interestOps(ops);
+		}
+	}
+
+	// ------------------------------------------------ worker threads ------------------------------------------
+
+	/**
+	 * Starts processing queued requests on a worker, unless a worker already does it.
+	 * This keeps the requests of one session strictly in order.
+	 * Queued requests wait while the session is at its in-flight limit.
+	 */
+	private void schedule() {
+		if (! requests.isEmpty() && ! isInFlightLimit() && processing.compareAndSet(false, true)) {
+			try {
+				listener.getWorkers().execute(new Runnable() {
+					@Override
+					public void run() {
+						process();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// controller is shutting down
+				processing.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Processes all queued requests of this session, one after another
+	 */
+	private void process() {
+		try {
+			byte[] request;
+			while (! isInFlightLimit() && (request = requests.poll()) != null && isAcceptCommands()) {
+				handle(request);
+			}
+		} finally {
+			processing.set(false);
+		}
+		// a request may have arrived after the last poll
+		schedule();
+	}
+
+	/**
+	 * Handles one received line depending on the authentication state
+	 *
+	 * @param request the raw line or frame
+	 */
+	private void handle(byte[] request) {
+		if (new String(request).equals("?")) {
+			// garbage on the line, if the client kills the socket
+			return;
+		}
+		switch (state) {
+			case AUTHENTICATE:
+				authenticateStep(request);
+				break;
+			case CHALLENGE:
+				challengeStep(request);
+				break;
+			default:
+				byte[] decrypted = decrypt(Encryption.AES, request);
+				if (decrypted == null) {
+					return;
+				}
+				String requestString = new String(decrypted);
+				controllerShell.printLine(String.format("User '%s' at '%s' sent the following request: %s", getUser().getUserId(), channel.socket().getInetAddress(), requestString));
+				String response = invoke(requestString);
+				if (response != null) {
+					controllerShell.printLine("Response sent to the user '" + (loggedIn() ? getUser().getUserId() : "") + "': " + response);
+					sendResponse(Encryption.AES, response.getBytes());
+				}
+		}
+	}
+
+	/**
+	 * 1st message: RSA encrypted '!authenticate &lt;user&gt; &lt;client-challenge&gt;'
+	 *
+	 * @param request
+	 */
+	private void authenticateStep(byte[] request) {
+		if (listener.getControllerPrivateKey() == null) {
+			failAuthentication("!Error: Controller-key is not available!");
+			return;
+		}
+		byte[] decrypted = decrypt(Encryption.RSA, request);
+		if (decrypted == null) {
+			failAuthentication("!Error: Can't decrypt authentication request!");
+			return;
+		}
+		String requestString = new String(decrypted);
+		controllerShell.printLine("Client-request: '" + requestString + "'.");
+		String[] parts = requestString.split("\\s+");
+		if (parts.length != 3) {
+			failAuthentication("!Error: wrong number of arguments in '" + requestString + "'!");
+			return;
+		}
+		if (! parts[0].equals("!authenticate")) {
+			failAuthentication("!Error: missing '!authenticate' keyword in '" + requestString + "'!");
+			return;
+		}
+
+		// RSA cipher: read users public key
+		String username = parts[1];
+		String keyPath = System.getProperty("user.dir") + File.separator + controller.getConfig().getString("keys.dir") +
+				File.separator + username + ".pub.pem";
+		keyPath = keyPath.replace("/", File.separator);
+		File keyFile = new File(keyPath);
+		if (! keyFile.exists()) {
+			failAuthentication("!Error: Can't find user-key file '" + keyPath + "'!");
+			return;
+		}
+		try {
+			userPublicKey = Keys.readPublicPEM(keyFile);
+		} catch (IOException e) {
+			failAuthentication("!Error: Can't read user-key file '" + keyPath + "'!");
+			return;
+		}
+
+		// generate controller-challenge, secret AES key and initialization vector
+		controllerChallenge = SecurityUtils.encodeB64(SecurityUtils.randomNumber(32));
+		try {
+			KeyGenerator aesKeyGen = KeyGenerator.getInstance("AES");
+			aesKeyGen.init(256);		// 256 bit!
+			secretKey = aesKeyGen.generateKey();
+		} catch (NoSuchAlgorithmException e) {
+			failAuthentication("!Error: Can't generate secret key!");
+			return;
+		}
+		initVector = new IvParameterSpec(SecurityUtils.randomNumber(16));
+
+		// 2nd message: RSA encoded client-challenge, controller-challenge, secret key and initialization vector
+		byte[] clientChallenge = SecurityUtils.subarray(decrypted, requestString.indexOf(parts[2]), parts[2].length());
+		byte[] message = SecurityUtils.concat(SecurityUtils.concat(("!ok ").getBytes(), clientChallenge), (" ").getBytes());
+		message = SecurityUtils.concat(SecurityUtils.concat(message, controllerChallenge), (" ").getBytes());
+		message = SecurityUtils.concat(SecurityUtils.concat(message, SecurityUtils.encodeB64(secretKey.getEncoded())), (" ").getBytes());
+		message = SecurityUtils.concat(message, SecurityUtils.encodeB64(initVector.getIV()));
+		state = State.CHALLENGE;
+		pendingUsername = username;
+		sendResponse(Encryption.RSA, message);
+	}
+
+	/**
+	 * 3rd message: AES encrypted controller-challenge
+	 *
+	 * @param request
+	 */
+	private void challengeStep(byte[] request) {
+		byte[] decrypted = decrypt(Encryption.AES, request);
+		if (decrypted == null || new String(decrypted).trim().split("\\s+").length != 1) {
+			failAuthentication("!Error: wrong number of arguments in the controller-challenge!");
+			return;
+		}
+		if (! new String(decrypted).trim().equals(new String(controllerChallenge))) {
+			// the client already shares the secret key, like in the thread front end
+			failAuthentication(Encryption.AES, "!Error: wrong controller-challenge!");
+			return;
+		}
+
+		ControllerUser existingUser = controller.getUser(pendingUsername);
+		if (existingUser != null) {
+			existingUser.onLogin();
+			setUser(existingUser);
+			controllerShell.printLine(String.format("Existing User %s is logged in %d times.", pendingUsername, existingUser.getLoggedIn()));
+		} else {
+			setUser(new ControllerUser(controller, pendingUsername));
+			controllerShell.printLine(String.format("New User %s is logged in %d time.", pendingUsername, getUser().getLoggedIn()));
+		}
+		state = State.LOGGED_IN;
+		sendResponse(Encryption.AES, getMessage().login_success.getBytes());
+	}
+
+	/**
+	 * Sends a RAW authentication failure and closes the session afterwards
+	 *
+	 * @param reason logged on the controller
+	 */
+	private void failAuthentication(String reason) {
+		failAuthentication(Encryption.RAW, reason);
+	}
+
+	/**
+	 * Sends an authentication failure and closes the session afterwards
+	 *
+	 * @param encryption of the failure message
+	 * @param reason logged on the controller
+	 */
+	private void failAuthentication(Encryption encryption, String reason) {
+		controllerShell.printLine(reason);
+		sendResponse(encryption, getMessage().authentication_failed.getBytes());
+		closeAfterWrite();
+	}
+
+	/**
+	 * Invokes the command of a logged-in user, like the shell of {@link TcpControllerClient} does
+	 *
+	 * @param request
+	 * @return response or null
+	 */
+	private String invoke(String request) {
+		String[] parts = request.trim().split("\\s+", 2);
+		String argument = (parts.length > 1 ? parts[1] : "");
+		try {
+			switch (parts[0]) {
+				case "!login" :
+					String[] credentials = argument.split("\\s+");
+					if (credentials.length != 2) {
+						return getMessage().illegal_arguments;
+					}
+					return login(credentials[0], credentials[1]);
+				case "!logout" :
+					return logout();
+				case "!exit" :
+					return exit();
+				case "!credits" :
+					return credits();
+				case "!buy" :
+					return buy(Long.parseLong(argument.trim()));
+				case "!list" :
+					return list();
+				case "!compute" :
+					return compute(argument);
+				case "!computeBatch" :
+					return computeBatch(argument);
+				case "!submit" :
+					return submit(argument);
+				case "!status" :
+					return status(Long.parseLong(argument.trim()));
+				case "!result" :
+					return result(Long.parseLong(argument.trim()));
+				case "!computeTagged" :
+					String[] tagged = argument.split("\\s+", 2);
+					if (tagged.length != 2) {
+						return getMessage().illegal_arguments;
+					}
+					return computeTagged(tagged[0], tagged[1]);
+				case "!authenticate" :
+					return authenticate(argument);
+				case "!whoami" :
+					return whoami();
+				case "!help" :
+					return help();
+				default :
+					return getMessage().unknown_command + "\n" + help();
+			}
+		} catch (NumberFormatException e) {
+			return getMessage().illegal_arguments;
+		} catch (Throwable throwable) {
+			ByteArrayOutputStream str = new ByteArrayOutputStream(1024);
+			throwable.printStackTrace(new PrintStream(str, true));
+			return str.toString();
+		}
+	}
+
+	/**
+	 * Decodes and decrypts a received line
+	 *
+	 * @param encryption
+	 * @param data
+	 * @return decrypted data or null
+	 */
+	private byte[] decrypt(Encryption encryption, byte[] data) {
+		// framed messages are binary already
+		byte[] decodeData = (framed ? data : SecurityUtils.decodeB64(data));
+		if (decodeData == null) {
+			controllerShell.printLine("Error: Can't Base64-decode request: '" + new String(data) + "'!");
+			return null;
+		}
+		byte[] decryptData;
+		if (encryption == Encryption.RSA) {
+			decryptData = SecurityUtils.decryptRSA(decodeData, listener.getControllerPrivateKey());
+		} else {
+			decryptData = SecurityUtils.decryptAES(decodeData, secretKey, initVector);
+		}
+		if (decryptData == null) {
+			controllerShell.printLine("Error: Can't " + encryption + "-decrypt request: '" + new String(data) + "'!");
+		}
+		return decryptData;
+	}
+
+	/**
+	 * Encrypts and encodes a response and hands it over to the selector thread
+	 *
+	 * @param encryption
+	 * @param data
+	 */
+	private void sendResponse(Encryption encryption, byte[] data) {
+		byte[] encodeData = data;
+		if (encryption == Encryption.RSA) {
+			encodeData = SecurityUtils.encryptRSA(data, userPublicKey);
+		} else if (encryption == Encryption.AES) {
+			encodeData = SecurityUtils.encryptAES(data, secretKey, initVector);
+		}
+		if (encodeData != null && encryption != Encryption.RAW && ! framed) {
+			encodeData = SecurityUtils.encodeB64(encodeData);
+		}
+		if (encodeData == null) {
+			controllerShell.printLine("Error: Can't " + encryption + "-encrypt response: '" + new String(data) + "'!");
+			return;
+		}
+		queueResponse(encodeData);
+		selector.requestInterest(this);
+	}
+
+	/**
+	 * Queues one message as line or frame
+	 *
+	 * @param data
+	 */
+	private void queueResponse(byte[] data) {
+		ByteBuffer buffer;
+		if (framed) {
+			buffer = ByteBuffer.allocate(4 + data.length);
+			buffer.putInt(data.length).put(data);
+		} else {
+			buffer = ByteBuffer.allocate(data.length + NEWLINE.length);
+			buffer.put(data).put(NEWLINE);
+		}
+		buffer.flip();
+		responses.add(buffer);
+	}
+
+	/**
+	 * Closes the session as soon as all pending responses are written
+	 */
+	private synchronized void closeAfterWrite() {
+		closeAfterWrite = true;
+		acceptCommands = false;
+	}
+
+	/**
+	 * Atomic method to disable the use of commands
+	 *
+	 * @return false if commands can't be disabled now because they were already disabled
+	 */
+	synchronized private boolean disableCommands() {
+		if (acceptCommands || closeAfterWrite) {
+			acceptCommands = false;
+			closeAfterWrite = false;
+			return true;
+		};
+		return false;
+	}
+
+	/**
+	 * Closes the session
+	 * By default not initiated by the client
+	 */
+	public void close() {
+		close(false);
+	}
+	public void close(boolean byClient) {
+		// disable race conditions
+		if (disableCommands()) {
+			if (! byClient && channel.isOpen() && (writeBuffer == null || ! writeBuffer.hasRemaining())) {
+				// inform the client, but dont wait for any response
+				try {
+					queueResponse(getMessage().controller_disconnected.getBytes());
+					channel.write(responses.toArray(new ByteBuffer[0]));
+				} catch (IOException e) {
+					// do nothing
+				}
+			}
+
+			// log user out
+			if (loggedIn()) {
+				getUser().onLogout();
+				setUser(null);
+			}
+
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// do nothing
+			}
+			requests.clear();
+			responses.clear();
+			controllerShell.printLine("Client-Session shut down completed.");
+		}
+	}
+
+	//----------------------------------------------------- Remote available commands -----------------------------------------
+
+	/* (non-Javadoc)
+	 * @see controller.tcp.ITcpControllerClientCli#login(java.lang.String, java.lang.String)
+	 */
+	@Override
+	public String login(String username, String password) throws IOException {
+		// Login not supported any longer
+		return getMessage().unknown_command;
+	}
+
+	/* (non-Javadoc)
+	 * @see controller.tcp.ITcpControllerClientCli#logout()
+	 */
+	@Override
+	public String logout() throws IOException {
+		if (! loggedIn()) {
+			return "Error: Already logged out!";
+		}
+		getUser().onLogout();
+		setUser(null);
+		closeAfterWrite();
+		return "Successfully logged out!";
+	}
+
+	/* (non-Javadoc)
+	 * @see controller.tcp.ITcpControllerClientCli#exit()
+	 */
+	@Override
+	public String exit() throws IOException {
+		if (loggedIn()) {
+			getUser().onLogout();
+			setUser(null);
+		}
+		close(true);
+		controllerShell.printLine("Client disconnected!");
+		return null;
+	}
+
+	/* (non-Javadoc)
+	 * @see controller.tcp.ITcpControllerClientCli#credits()
+	 */
+	@Override
+	public String credits() throws IOException {
+		return String.format("You have %d credits left.", getUser().getCredits());
+	}
+
+	/* (non-Javadoc)
+	 * @see controller.tcp.ITcpControllerClientCli#buy(long)
+	 */
+	@Override
+	public String buy(long credits) throws IOException {
+		if (credits <= 0L) {
+			return "!Error: Amount must be positive!";
+		}
+		getUser().buyCredits(credits);
+		return String.format("After buying %d credits you have now %d left.", credits, getUser().getCredits());
+	}
+
+	/* (non-Javadoc)
+	 * @see controller.tcp.ITcpControllerClientCli#list()
+	 */
+	@Override
+	public String list() throws IOException {
+		String operations = controller.listOperations();
+		if (operations.equals("")) {
+			return "No operations possible at the moment.";
+		}
+		return operations;
+	}
+
+	/* (non-Javadoc)
+	 * @see controller.tcp.ITcpControllerClientCli#compute(java.lang.String)
+	 */
+	@Override
+	public String compute(String term) throws IOException {
+		return controller.getTermEvaluator().compute(getUser(), term);
+	}
+
+	/* (non-Javadoc)
+	 * @see controller.tcp.ITcpControllerClientCli#computeBatch(java.lang.String)
+	 */
+	@Override
+	public String computeBatch(String terms) throws IOException {
+		return controller.getTermEvaluator().computeBatch(getUser(), terms);
+	}
+
+	/* (non-Javadoc)
+	 * @see controller.tcp.ITcpControllerClientCli#submit(java.lang.String)
+	 */
+	@Override
+	public String submit(String term) throws IOException {
+		long id = controller.getJobTable().submit(getUser(), term);
+		if (id < 0) {
+			return "!Warning: Too many jobs, try again later.";
+		}
+		return String.format("Job %d submitted.", id);
+	}
+
+	/* (non-Javadoc)
+	 * @see controller.tcp.ITcpControllerClientCli#status(long)
+	 */
+	@Override
+	public String status(long id) throws IOException {
+		return controller.getJobTable().status(getUser(), id);
+	}
+
+	/* (non-Javadoc)
+	 * @see controller.tcp.ITcpControllerClientCli#result(long)
+	 */
+	@Override
+	public String result(long id) throws IOException {
+		return controller.getJobTable().result(getUser(), id);
+	}
+
+	/* (non-Javadoc)
+	 * @see controller.tcp.ITcpControllerClientCli#computeTagged(java.lang.String, java.lang.String)
+	 */
+	@Override
+	public String computeTagged(final String tag, String term) throws IOException {
+		// limit the terms in flight, stops reading of this session without blocking the worker
+		if (inFlight.incrementAndGet() >= getMaxInFlight()) {
+			selector.requestInterest(this);
+		}
+		controller.getTermEvaluator().computeAsync(getUser(), term, new TermEvaluator.ResultHandler() {
+			@Override
+			public void handle(String result) {
+				boolean resume = inFlight.getAndDecrement() >= getMaxInFlight();
+				sendResponse(Encryption.AES, String.format("!tagged %s %s", tag, result).getBytes());
+				if (resume) {
+					// reading is re-enabled by the interest update of the response
+					schedule();
+				}
+			}
+		});
+		// response is sent when the result is available
+		return null;
+	}
+
+	/* (non-Javadoc)
+	 * @see controller.tcp.ITcpControllerClientCli#authenticate(java.lang.String)
+	 */
+	@Override
+	public String authenticate(String username) throws IOException {
+		return "Error: You are already logged in!";
+	}
+
+	/**
+	 * @return user name
+	 */
+	public String whoami() {
+		if (! loggedIn()) {
+			return "!Error: You have to login first!";
+		}
+		return getUser().getUserId();
+	}
+
+	/* (non-Javadoc)
+	 * @see controller.tcp.ITcpControllerClientCli#help()
+	 */
+	@Override
+	public String help() throws IOException {
+
+		String usage = "\navailable Commands:\n";
+		usage += "\t!whoami\n";			// TODO remove
+		usage += "\t!logout\n";
+		usage += "\t!credits\n";
+		usage += "\t!buy <credits>\n";
+		usage += "\t!list\n";
+		usage += "\t!compute <math-term>\n";
+		usage += "\t!computeTagged <tag> <math-term>\n";
+		usage += "\t!computeBatch <math-term>; <math-term>; ...\n";
+		usage += "\t!submit <math-term>\n";
+		usage += "\t!status <job-id>\n";
+		usage += "\t!result <job-id>\n";
+		usage += "\t!exit\n";
+		usage += "\t!help\n";
+
+		return usage;
+	}
+}
@@ -0,0 +1,262 @@
+package controller.tcp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.PrivateKey;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import controller.CloudController;
+import cli.AdvancedShell;
+import util.Config;
+import util.Keys;
+import util.SecurityUtils;
+
+/**
+ * Thread to accept incoming TCP connections on the given channel
+ * and to hand them over to a small, fixed set of selector threads
+ * which multiplex all client sessions.
+ */
+public class NioControllerListener extends Thread {
+
+	private CloudController controller;
+	private AdvancedShell controllerShell;
+	private final String threadType;
+	private boolean acceptCommands = true;
+	private ServerSocketChannel serverChannel;
+	private NioControllerSelector[] selectors;
+	private ExecutorService workers;
+	private PrivateKey controllerPrivateKey;
+
+	/**
+	 * @param controller Cloud controller object
+	 * @param serverChannel TCP client listening channel
+	 */
+	public NioControllerListener(CloudController controller, ServerSocketChannel serverChannel) {
+		this.setController(controller);
+		this.setServerChannel(serverChannel);
+
+		this.setControllerShell(controller.getShell());
+		this.threadType = this.getClass().getName();
+		this.setName(getThreadType() + " " + this.getName());
+
+		Config config = controller.getConfig();
+		setWorkers(Executors.newFixedThreadPool(config.getInt("tcp.nio.workers")));
+		setSelectors(new NioControllerSelector[config.getInt("tcp.nio.selectors")]);
+
+		// register in shared list to be accessible from outside
+		this.getController().getThreadsMap().put(this, getThreadType());
+	}
+
+	/**
+	 * @param controller the controller to set
+	 */
+	private synchronized void setController(CloudController controller) {
+		this.controller = controller;
+	}
+
+	/**
+	 * @param controllerShell the controllerShell to set
+	 */
+	private synchronized void setControllerShell(AdvancedShell controllerShell) {
+		this.controllerShell = controllerShell;
+	}
+
+	/**
+	 * @param acceptCommands the acceptCommands to set
+	 */
+	private synchronized void setAcceptCommands(boolean acceptCommands) {
+		this.acceptCommands = acceptCommands;
+	}
+
+	/**
+	 * @param serverChannel the serverChannel to set
+	 */
+	private synchronized void setServerChannel(ServerSocketChannel serverChannel) {
+		this.serverChannel = serverChannel;
+	}
+
+	/**
+	 * @param selectors the selectors to set
+	 */
+	private synchronized void setSelectors(NioControllerSelector[] selectors) {
+		this.selectors = selectors;
+	}
+
+	/**
+	 * @param workers the workers to set
+	 */
+	private synchronized void setWorkers(ExecutorService workers) {
+		this.workers = workers;
+	}
+
+	/**
+	 * @param controllerPrivateKey the controllerPrivateKey to set
+	 */
+	private synchronized void setControllerPrivateKey(PrivateKey controllerPrivateKey) {
+		this.controllerPrivateKey = controllerPrivateKey;
+	}
+
+	/**
+	 * @return the serverChannel
+	 */
+	private synchronized ServerSocketChannel getServerChannel() {
+		return serverChannel;
+	}
+
+	/**
+	 * @return the selectors
+	 */
+	private synchronized NioControllerSelector[] getSelectors() {
+		return selectors;
+	}
+
+	/**
+	 * @return the worker pool executing client requests
+	 */
+	synchronized ExecutorService getWorkers() {
+		return workers;
+	}
+
+	/**
+	 * @return the controllerPrivateKey, read only once for all sessions
+	 */
+	synchronized PrivateKey getControllerPrivateKey() {
+		return controllerPrivateKey;
+	}
+
+	/**
+	 * @return the controller
+	 */
+	private synchronized CloudController getController() {
+		return controller;
+	}
+
+	/**
+	 * @return the controllerShell
+	 */
+	private synchronized AdvancedShell getControllerShell() {
+		return controllerShell;
+	}
+
+	/**
+	 * @return the threadType
+	 */
+	private synchronized String getThreadType() {
+		return threadType;
+	}
+
+	/**
+	 * @return the acceptCommands
+	 */
+	private synchronized boolean isAcceptCommands() {
+		return acceptCommands;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Thread#run()
+	 */
+	public void run() {
+
+		getControllerShell().printLine(String.format("NIO TCP-Listener is up on port '%d' with %d selector(s)!", getServerChannel().socket().getLocalPort(), getSelectors().length));
+
+		// the controller key is the same for all clients, so read it only once
+		SecurityUtils.registerBouncyCastle();
+		String keyPath = System.getProperty("user.dir") + File.separator + getController().getConfig().getString("key");
+		keyPath = keyPath.replace("/", File.separator);
+		File keyFile = new File(keyPath);
+		if (keyFile.exists()) {
+			try {
+				setControllerPrivateKey(Keys.readPrivatePEM(keyFile));
+			} catch (IOException e) {
+				getControllerShell().printErrLine("!Error: Can't read controller-key file '" + keyPath + "'!");
+			}
+		} else {
+			getControllerShell().printErrLine("!Error: Can't find controller-key file '" + keyPath + "'!");
+		}
+
+		NioControllerSelector[] selectors = getSelectors();
+		try {
+			for (int index = 0; index < selectors.length; index++) {
+				selectors[index] = new NioControllerSelector(getController(), this);
+				selectors[index].start();
+			}
+
+			int next = 0;
+			SocketChannel channel;
+			while (isAcceptCommands() && ! Thread.currentThread().isInterrupted()) {
+				// wait for Client to connect
+				channel = getServerChannel().accept();
+
+				// hand the connection over to the next selector, round robin
+				selectors[next].register(channel);
+				next = (next + 1) % selectors.length;
+			}
+		} catch (AsynchronousCloseException e) {
+			// ignore channel-error on close
+		} catch (IOException e) {
+			getControllerShell().printErrLine("Error occurred while waiting for client: " + e.getMessage());
+		}
+		close();
+		getControllerShell().printLine("NIO TCP Listener-Thread shut down completed.");
+	}
+
+	/**
+	 * Atomic method to disable the use of commands
+	 *
+	 * @return false if commands can't be disabled now because they were already disabled
+	 */
+	synchronized private boolean disableCommands() {
+		if (isAcceptCommands()) {
+			setAcceptCommands(false);
+			return true;
+		};
+		return false;
+	}
+
+	/**
+	 * Closes all resources
+	 */
+	public void close() {
+		// disable race conditions
+		if (disableCommands()) {
+			closeTCP();
+
+			// stop all selectors, they close their sessions
+			for (NioControllerSelector selector : getSelectors()) {
+				if (selector != null) {
+					selector.close();
+				}
+			}
+
+			// and finally the workers
+			getWorkers().shutdownNow();
+			try {
+				getWorkers().awaitTermination(1, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				// do nothing
+			}
+
+			// remove from list of active threads
+			this.getController().getThreadsMap().remove(this);
+		}
+	}
+
+	/**
+	 * Closes TCP channel
+	 */
+	public void closeTCP() {
+		if (getServerChannel() != null && getServerChannel().isOpen()) {
+			try {
+				getServerChannel().close();
+			} catch (IOException e) {
+				throw new RuntimeException(e.getClass().getName() + ": " + e.getMessage());
+			}
+			getControllerShell().printLine("TCP Channel closed.");
+		}
+	}
+}
@@ -0,0 +1,436 @@
+package controller.tcp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import util.FramedConnection;
+import util.Message;
+
+/**
+ * Multiplexed connection to one node on a non-blocking channel.
+ * Every request is tagged with an id ('!tagged <id> <request>'), the node answers
+ * with the same id ('!tagged <id> <response>'), so many requests of many threads
+ * can be in flight on this one connection at the same time.
+ * All I/O is done by the {@link NioNodeSelector} thread, the messages are framed.
+ * The channel connects in the background, requests are queued meanwhile.
+ * A request not answered within the timeout completes with node_disconnected.
+ */
+public class NioControllerNode {
+
+	private static final byte[] NEWLINE = System.getProperty("line.separator").getBytes();
+	private static final String TAGGED = "!tagged";
+
+	/**
+	 * Future of one request in flight and its deadline
+	 */
+	private static class Pending {
+		private final CompletableFuture<String> response;
+		private volatile ScheduledFuture<?> deadline;
+
+		private Pending(CompletableFuture<String> response) {
+			this.response = response;
+		}
+
+		/**
+		 * @return the future, after cancelling the deadline
+		 */
+		private CompletableFuture<String> settle() {
+			ScheduledFuture<?> deadline = this.deadline;
+			if (deadline != null) {
+				deadline.cancel(false);
+			}
+			return response;
+		}
+	}
+
+	private final NioNodeSelector selector;
+	private final SocketChannel channel;
+	private final ScheduledExecutorService timer;
+	private final long timeout;
+	private final Message message = new Message();
+	private final AtomicLong nextId = new AtomicLong(1L);
+	private final Map<Long, Pending> pending = new ConcurrentHashMap<>();
+	private final Queue<ByteBuffer> requests = new ConcurrentLinkedQueue<>();
+	private volatile boolean closed = false;
+	private volatile boolean unsupported = false;
+	private volatile boolean connecting;
+	private volatile SelectionKey key;		// set by the selector thread, cancelled by close()
+
+	// only used by the selector thread
+	private ByteBuffer readBuffer = ByteBuffer.allocate(1024);
+	private ByteBuffer writeBuffer = null;
+	private boolean accepted = false;
+
+	/**
+	 * Starts to connect to the node without blocking and registers the channel at the selector,
+	 * the selector thread finishes the connect.
+	 * Framed mode is requested without waiting for the answer, see {@link FramedConnection#startFramed()}.
+	 *
+	 * @param selector the selector thread serving all node channels
+	 * @param nodeAddress IP address of the node
+	 * @param nodePort TCP port of the node
+	 * @param timer schedules the deadlines of the requests
+	 * @param timeout time in ms a request may take, 0 for no limit
+	 * @return the connecting channel
+	 * @throws IOException if the connect can't be started
+	 */
+	public static NioControllerNode open(NioNodeSelector selector, String nodeAddress, int nodePort, ScheduledExecutorService timer, long timeout) throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		boolean connected;
+		try {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			connected = channel.connect(new InetSocketAddress(nodeAddress, nodePort));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		NioControllerNode nioControllerNode = new NioControllerNode(selector, channel, timer, timeout);
+		nioControllerNode.connecting = ! connected;
+		ByteBuffer frameRequest = ByteBuffer.allocate(FramedConnection.FRAME_REQUEST.length() + NEWLINE.length);
+		frameRequest.put(FramedConnection.FRAME_REQUEST.getBytes()).put(NEWLINE).flip();
+		nioControllerNode.requests.add(frameRequest);
+		selector.register(nioControllerNode);
+		return nioControllerNode;
+	}
+
+	/**
+	 * @param selector the selector thread serving this channel
+	 * @param channel the non-blocking channel
+	 * @param timer schedules the deadlines of the requests
+	 * @param timeout time in ms a request may take, 0 for no limit
+	 */
+	private NioControllerNode(NioNodeSelector selector, SocketChannel channel, ScheduledExecutorService timer, long timeout) {
+		this.selector = selector;
+		this.channel = channel;
+		this.timer = timer;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Sends a request without waiting for the response.
+	 * The future is completed on the selector thread, so dependent actions must not block.
+	 * It completes with node_disconnected if the connection breaks or the node does not answer in time,
+	 * and exceptionally with an
+	 * {@link UnsupportedOperationException} if the node does not support multiplexed requests.
+	 *
+	 * @param request e.g. '!compute 1 + 2'
+	 * @return the future response of the node
+	 */
+	public CompletableFuture<String> request(String request) {
+		CompletableFuture<String> response = new CompletableFuture<>();
+		if (closed) {
+			complete(response);
+			return response;
+		}
+		final long id = nextId.getAndIncrement();
+		Pending entry = new Pending(response);
+		pending.put(id, entry);
+		byte[] data = String.format("%s %d %s", TAGGED, id, request).getBytes();
+		ByteBuffer frame = ByteBuffer.allocate(4 + data.length);
+		frame.putInt(data.length).put(data).flip();
+		requests.add(frame);
+		selector.requestWrite(this);
+		if (timeout > 0) {
+			try {
+				entry.deadline = timer.schedule(new Runnable() {
+					@Override
+					public void run() {
+						expire(id);
+					}
+				}, timeout, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// controller is shutting down, the channel is closed soon
+			}
+		}
+		if (closed && pending.remove(id) != null) {
+			// closed meanwhile, nobody else will complete it
+			complete(entry.settle());
+		}
+		return response;
+	}
+
+	/**
+	 * Gives up a request the node did not answer in time.
+	 * A channel still connecting is closed, so the next request connects again.
+	 *
+	 * @param id id of the request
+	 */
+	private void expire(long id) {
+		Pending entry = pending.remove(id);
+		if (entry == null) {
+			// answered meanwhile
+			return;
+		}
+		entry.response.complete(message.node_disconnected);
+		if (connecting) {
+			close();
+		}
+	}
+
+	/**
+	 * @return true if the channel can't be used any more
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return true if the node answered without tags, so it only supports blocking requests
+	 */
+	public boolean isUnsupported() {
+		return unsupported;
+	}
+
+	// ------------------------------------------------ selector thread -----------------------------------------
+
+	/**
+	 * @return the channel
+	 */
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * @param key the selection key of the channel
+	 */
+	void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	/**
+	 * @return the operations to register the channel with
+	 */
+	int initialOps() {
+		return connecting ? SelectionKey.OP_CONNECT : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+	}
+
+	/**
+	 * Finishes the connect, then the queued requests are written
+	 *
+	 * @throws IOException if the node can't be reached
+	 */
+	void onConnectable() throws IOException {
+		if (channel.finishConnect()) {
+			connecting = false;
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Reads all available responses and completes their futures
+	 *
+	 * @throws IOException if the node went away
+	 */
+	void onReadable() throws IOException {
+		int read = channel.read(readBuffer);
+		if (read < 0) {
+			// end of stream, node closed the connection
+			close();
+			return;
+		}
+		readBuffer.flip();
+		byte[] message;
+		while (! closed && (message = nextMessage()) != null) {
+			if (! accepted) {
+				if (this.message.node_overloaded.equals(new String(message))) {
+					// the node closes the connection, pending requests fail and the next one reconnects
+					close();
+					return;
+				}
+				if (! FramedConnection.FRAME_ACCEPTED.equals(new String(message))) {
+					refuse();
+					return;
+				}
+				accepted = true;
+				continue;
+			}
+			dispatch(new String(message));
+		}
+		readBuffer.compact();
+		if (! readBuffer.hasRemaining()) {
+			if (readBuffer.capacity() >= FramedConnection.MAX_MESSAGE_LENGTH) {
+				throw new IOException("Response too long");
+			}
+			// grow for long messages
+			ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+			readBuffer.flip();
+			larger.put(readBuffer);
+			readBuffer = larger;
+		}
+	}
+
+	/**
+	 * Takes the next complete message out of the read buffer,
+	 * the answer to the framing request is a line, all others are frames
+	 *
+	 * @return the message or null if it is not completely received yet
+	 * @throws IOException on an invalid frame header
+	 */
+	private byte[] nextMessage() throws IOException {
+		int start = readBuffer.position();
+		if (accepted) {
+			if (readBuffer.remaining() < 4) {
+				return null;
+			}
+			int length = readBuffer.getInt(start);
+			if (length < 0 || length > FramedConnection.MAX_MESSAGE_LENGTH) {
+				throw new IOException("Invalid message length " + length);
+			}
+			if (readBuffer.remaining() < 4 + length) {
+				if (readBuffer.capacity() < 4 + length) {
+					// make room for the whole frame
+					ByteBuffer larger = ByteBuffer.allocate(4 + length);
+					larger.put(readBuffer);
+					larger.flip();
+					readBuffer = larger;
+				}
+				return null;
+			}
+			byte[] message = new byte[length];
+			readBuffer.position(start + 4);
+			readBuffer.get(message);
+			return message;
+		}
+		for (int pos = start; pos < readBuffer.limit(); pos++) {
+			if (readBuffer.get(pos) == '\n') {
+				int end = pos;
+				if (end > start && readBuffer.get(end - 1) == '\r') {
+					end--;
+				}
+				byte[] message = new byte[end - start];
+				readBuffer.get(message);
+				readBuffer.position(pos + 1);
+				return message;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Completes the future of one tagged response
+	 *
+	 * @param response '!tagged <id> <response>'
+	 */
+	private void dispatch(String response) {
+		String[] parts = response.split(" ", 3);
+		if (parts.length < 2 || ! parts[0].equals(TAGGED)) {
+			if (response.contains(message.node_disconnected)) {
+				// node is shutting down
+				close();
+			} else {
+				// e.g. 'unknown command' of an old node
+				refuse();
+			}
+			return;
+		}
+		Pending entry;
+		try {
+			entry = pending.remove(Long.parseLong(parts[1]));
+		} catch (NumberFormatException e) {
+			entry = null;
+		}
+		if (entry != null) {
+			entry.settle().complete(parts.length > 2 ? parts[2] : "");
+		}
+	}
+
+	/**
+	 * Writes as much of the pending requests as the channel accepts
+	 *
+	 * @throws IOException if the node went away
+	 */
+	void onWritable() throws IOException {
+		while (true) {
+			if (writeBuffer == null || ! writeBuffer.hasRemaining()) {
+				writeBuffer = requests.poll();
+				if (writeBuffer == null) {
+					break;
+				}
+			}
+			channel.write(writeBuffer);
+			if (writeBuffer.hasRemaining()) {
+				// socket buffer full, wait for next OP_WRITE
+				return;
+			}
+		}
+		if (key.isValid()) {
+			key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * Enables OP_WRITE, called on the selector thread only
+	 */
+	void enableWrite() {
+		if (key != null && key.isValid() && ! connecting) {
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+
+	// ------------------------------------------------ any thread ----------------------------------------------
+
+	/**
+	 * The node does not support multiplexed requests,
+	 * all pending requests fail so they can be repeated on a blocking connection
+	 */
+	private void refuse() {
+		unsupported = true;
+		close();
+	}
+
+	/**
+	 * Completes a request which can't be answered by the node
+	 *
+	 * @param response
+	 */
+	private void complete(CompletableFuture<String> response) {
+		if (unsupported) {
+			response.completeExceptionally(new UnsupportedOperationException("Node does not support multiplexed requests."));
+		} else {
+			response.complete(message.node_disconnected);
+		}
+	}
+
+	/**
+	 * Closes the channel, all pending requests are completed
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// do nothing
+		}
+		List<Long> ids = new ArrayList<>(pending.keySet());
+		for (Long id : ids) {
+			Pending entry = pending.remove(id);
+			if (entry != null) {
+				complete(entry.settle());
+			}
+		}
+	}
+}
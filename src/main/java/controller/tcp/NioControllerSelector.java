@@ -0,0 +1,272 @@
+package controller.tcp;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import controller.CloudController;
+import cli.AdvancedShell;
+
+/**
+ * Thread to multiplex the I/O of many client sessions on one selector.
+ * Requests are executed by the workers of the listener, never on this thread.
+ */
+public class NioControllerSelector extends Thread {
+
+	private CloudController controller;
+	private AdvancedShell controllerShell;
+	private NioControllerListener listener;
+	private final String threadType;
+	private boolean acceptCommands = true;
+	private Selector selector;
+	private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+	private final Queue<NioControllerClient> pendingInterest = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * @param controller Cloud controller object
+	 * @param listener the listener accepting the connections
+	 * @throws IOException if the selector can't be opened
+	 */
+	public NioControllerSelector(CloudController controller, NioControllerListener listener) throws IOException {
+		this.setController(controller);
+		this.setListener(listener);
+		this.setSelector(Selector.open());
+
+		this.setControllerShell(controller.getShell());
+		this.threadType = this.getClass().getName();
+		this.setName(getThreadType() + " " + this.getName());
+
+		// register in shared list to be accessible from outside
+		this.getController().getThreadsMap().put(this, getThreadType());
+	}
+
+	/**
+	 * @param controller the controller to set
+	 */
+	private synchronized void setController(CloudController controller) {
+		this.controller = controller;
+	}
+
+	/**
+	 * @param controllerShell the controllerShell to set
+	 */
+	private synchronized void setControllerShell(AdvancedShell controllerShell) {
+		this.controllerShell = controllerShell;
+	}
+
+	/**
+	 * @param listener the listener to set
+	 */
+	private synchronized void setListener(NioControllerListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @param acceptCommands the acceptCommands to set
+	 */
+	private synchronized void setAcceptCommands(boolean acceptCommands) {
+		this.acceptCommands = acceptCommands;
+	}
+
+	/**
+	 * @param selector the selector to set
+	 */
+	private synchronized void setSelector(Selector selector) {
+		this.selector = selector;
+	}
+
+	/**
+	 * @return the controller
+	 */
+	private synchronized CloudController getController() {
+		return controller;
+	}
+
+	/**
+	 * @return the controllerShell
+	 */
+	private synchronized AdvancedShell getControllerShell() {
+		return controllerShell;
+	}
+
+	/**
+	 * @return the listener
+	 */
+	private synchronized NioControllerListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * @return the selector
+	 */
+	private synchronized Selector getSelector() {
+		return selector;
+	}
+
+	/**
+	 * @return the threadType
+	 */
+	private synchronized String getThreadType() {
+		return threadType;
+	}
+
+	/**
+	 * @return the acceptCommands
+	 */
+	private synchronized boolean isAcceptCommands() {
+		return acceptCommands;
+	}
+
+	/**
+	 * Hands a freshly accepted connection over to this selector
+	 *
+	 * @param channel
+	 */
+	public void register(SocketChannel channel) {
+		newChannels.add(channel);
+		getSelector().wakeup();
+	}
+
+	/**
+	 * Called by workers if a session has data to write
+	 * or reached or left its in-flight limit
+	 *
+	 * @param session
+	 */
+	void requestInterest(NioControllerClient session) {
+		pendingInterest.add(session);
+		getSelector().wakeup();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Thread#run()
+	 */
+	public void run() {
+
+		Selector selector = getSelector();
+		try {
+			while (isAcceptCommands() && ! Thread.currentThread().isInterrupted()) {
+				selector.select();
+
+				// register new sessions
+				SocketChannel channel;
+				while ((channel = newChannels.poll()) != null) {
+					try {
+						channel.configureBlocking(false);
+						channel.socket().setTcpNoDelay(true);
+						SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+						key.attach(new NioControllerClient(getController(), getListener(), this, channel, key));
+					} catch (IOException e) {
+						getControllerShell().printErrLine("Error occurred while registering client: " + e.getMessage());
+						try {
+							channel.close();
+						} catch (IOException e1) {
+							// do nothing
+						}
+					}
+				}
+
+				// enable writing for sessions with pending responses, pause or resume reading
+				NioControllerClient session;
+				while ((session = pendingInterest.poll()) != null) {
+					session.updateInterest();
+				}
+
+				// handle ready sessions
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					session = (NioControllerClient) key.attachment();
+					try {
+						if (key.isValid() && key.isReadable()) {
+							session.onReadable();
+						}
+						if (key.isValid() && key.isWritable()) {
+							session.onWritable();
+						}
+					} catch (CancelledKeyException e) {
+						session.close(true);
+					} catch (IOException e) {
+						// client went away
+						session.close(true);
+					}
+				}
+			}
+		} catch (ClosedSelectorException e) {
+			// ignore selector-error on close
+		} catch (IOException e) {
+			getControllerShell().printErrLine("Error occurred while selecting clients: " + e.getMessage());
+		}
+		close();
+		closeSessions();
+		getControllerShell().printLine("NIO Selector-Thread shut down completed.");
+	}
+
+	/**
+	 * Atomic method to disable the use of commands
+	 *
+	 * @return false if commands can't be disabled now because they were already disabled
+	 */
+	synchronized private boolean disableCommands() {
+		if (isAcceptCommands()) {
+			setAcceptCommands(false);
+			return true;
+		};
+		return false;
+	}
+
+	/**
+	 * Closes all resources,
+	 * the sessions are closed by the selector thread itself
+	 */
+	public void close() {
+		// disable race conditions
+		if (disableCommands()) {
+			if (isAlive() && Thread.currentThread() != this) {
+				// let the selector thread leave its loop
+				getSelector().wakeup();
+			} else {
+				closeSessions();
+			}
+
+			// remove from list of active threads
+			this.getController().getThreadsMap().remove(this);
+		}
+	}
+
+	/**
+	 * Closes all sessions of this selector and the selector itself
+	 */
+	private void closeSessions() {
+		Selector selector = getSelector();
+		if (! selector.isOpen()) {
+			return;
+		}
+		for (SelectionKey key : new ArrayList<>(selector.keys())) {
+			if (key.attachment() != null) {
+				((NioControllerClient) key.attachment()).close();
+			}
+		}
+		SocketChannel channel;
+		while ((channel = newChannels.poll()) != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// do nothing
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// do nothing
+		}
+	}
+}
@@ -0,0 +1,268 @@
+package controller.tcp;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import controller.CloudController;
+import cli.AdvancedShell;
+import util.HandlerThreads;
+
+/**
+ * Thread to multiplex the I/O of the connections to all nodes on one selector.
+ * Nodes not supporting multiplexed requests are served by blocking requests
+ * on the threads of this object.
+ */
+public class NioNodeSelector extends Thread {
+
+	private CloudController controller;
+	private AdvancedShell controllerShell;
+	private final String threadType;
+	private boolean acceptCommands = true;
+	private Selector selector;
+	private final ExecutorService blockingRequests;
+	private final Queue<NioControllerNode> newChannels = new ConcurrentLinkedQueue<>();
+	private final Queue<NioControllerNode> pendingWrites = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * @param controller Cloud controller object
+	 * @throws IOException if the selector can't be opened
+	 */
+	public NioNodeSelector(CloudController controller) throws IOException {
+		this.setController(controller);
+		this.setSelector(Selector.open());
+
+		this.setControllerShell(controller.getShell());
+		this.threadType = this.getClass().getName();
+		this.setName(getThreadType() + " " + this.getName());
+		this.blockingRequests = Executors.newCachedThreadPool(HandlerThreads.platformFactory(TcpControllerNode.class.getName()));
+
+		// register in shared list to be accessible from outside
+		this.getController().getThreadsMap().put(this, getThreadType());
+	}
+
+	/**
+	 * @param controller the controller to set
+	 */
+	private synchronized void setController(CloudController controller) {
+		this.controller = controller;
+	}
+
+	/**
+	 * @param controllerShell the controllerShell to set
+	 */
+	private synchronized void setControllerShell(AdvancedShell controllerShell) {
+		this.controllerShell = controllerShell;
+	}
+
+	/**
+	 * @param acceptCommands the acceptCommands to set
+	 */
+	private synchronized void setAcceptCommands(boolean acceptCommands) {
+		this.acceptCommands = acceptCommands;
+	}
+
+	/**
+	 * @param selector the selector to set
+	 */
+	private synchronized void setSelector(Selector selector) {
+		this.selector = selector;
+	}
+
+	/**
+	 * @return the controller
+	 */
+	private synchronized CloudController getController() {
+		return controller;
+	}
+
+	/**
+	 * @return the controllerShell
+	 */
+	private synchronized AdvancedShell getControllerShell() {
+		return controllerShell;
+	}
+
+	/**
+	 * @return the selector
+	 */
+	private synchronized Selector getSelector() {
+		return selector;
+	}
+
+	/**
+	 * @return the threadType
+	 */
+	private synchronized String getThreadType() {
+		return threadType;
+	}
+
+	/**
+	 * @return the acceptCommands
+	 */
+	private synchronized boolean isAcceptCommands() {
+		return acceptCommands;
+	}
+
+	/**
+	 * Hands a freshly opened node channel over to this selector
+	 *
+	 * @param nioControllerNode
+	 */
+	void register(NioControllerNode nioControllerNode) {
+		newChannels.add(nioControllerNode);
+		getSelector().wakeup();
+		if (! isAcceptCommands()) {
+			// too late, nobody will serve it
+			nioControllerNode.close();
+		}
+	}
+
+	/**
+	 * Called by any thread if a node channel has requests to write
+	 *
+	 * @param nioControllerNode
+	 */
+	void requestWrite(NioControllerNode nioControllerNode) {
+		pendingWrites.add(nioControllerNode);
+		getSelector().wakeup();
+	}
+
+	/**
+	 * Runs a blocking node request
+	 *
+	 * @param request
+	 * @throws RejectedExecutionException if the selector is closed
+	 */
+	public void execute(Runnable request) {
+		blockingRequests.execute(request);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Thread#run()
+	 */
+	public void run() {
+
+		Selector selector = getSelector();
+		try {
+			while (isAcceptCommands() && ! Thread.currentThread().isInterrupted()) {
+				selector.select();
+
+				// register new node channels, the framing request is already queued
+				NioControllerNode nioControllerNode;
+				while ((nioControllerNode = newChannels.poll()) != null) {
+					try {
+						SelectionKey key = nioControllerNode.getChannel().register(selector, nioControllerNode.initialOps());
+						key.attach(nioControllerNode);
+						nioControllerNode.setKey(key);
+					} catch (IOException e) {
+						getControllerShell().printErrLine("Error occurred while registering node: " + e.getMessage());
+						nioControllerNode.close();
+					}
+				}
+
+				// enable writing for channels with pending requests
+				while ((nioControllerNode = pendingWrites.poll()) != null) {
+					nioControllerNode.enableWrite();
+				}
+
+				// handle ready channels
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					nioControllerNode = (NioControllerNode) key.attachment();
+					try {
+						if (key.isValid() && key.isConnectable()) {
+							nioControllerNode.onConnectable();
+						}
+						if (key.isValid() && key.isReadable()) {
+							nioControllerNode.onReadable();
+						}
+						if (key.isValid() && key.isWritable()) {
+							nioControllerNode.onWritable();
+						}
+					} catch (CancelledKeyException e) {
+						nioControllerNode.close();
+					} catch (IOException e) {
+						// node went away
+						nioControllerNode.close();
+					}
+				}
+			}
+		} catch (ClosedSelectorException e) {
+			// ignore selector-error on close
+		} catch (IOException e) {
+			getControllerShell().printErrLine("Error occurred while selecting nodes: " + e.getMessage());
+		}
+		close();
+		closeChannels();
+		getControllerShell().printLine("NIO Node-Selector-Thread shut down completed.");
+	}
+
+	/**
+	 * Atomic method to disable the use of commands
+	 *
+	 * @return false if commands can't be disabled now because they were already disabled
+	 */
+	synchronized private boolean disableCommands() {
+		if (isAcceptCommands()) {
+			setAcceptCommands(false);
+			return true;
+		};
+		return false;
+	}
+
+	/**
+	 * Closes all resources,
+	 * the channels are closed by the selector thread itself
+	 */
+	public void close() {
+		// disable race conditions
+		if (disableCommands()) {
+			if (isAlive() && Thread.currentThread() != this) {
+				// let the selector thread leave its loop
+				getSelector().wakeup();
+			} else {
+				closeChannels();
+			}
+			blockingRequests.shutdownNow();
+
+			// remove from list of active threads
+			this.getController().getThreadsMap().remove(this);
+		}
+	}
+
+	/**
+	 * Closes all node channels of this selector and the selector itself
+	 */
+	private void closeChannels() {
+		Selector selector = getSelector();
+		if (! selector.isOpen()) {
+			return;
+		}
+		for (SelectionKey key : new ArrayList<>(selector.keys())) {
+			if (key.attachment() != null) {
+				((NioControllerNode) key.attachment()).close();
+			}
+		}
+		NioControllerNode nioControllerNode;
+		while ((nioControllerNode = newChannels.poll()) != null) {
+			nioControllerNode.close();
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// do nothing
+		}
+	}
+}
@@ -1,34 +1,31 @@
 package controller.tcp;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.InterruptedIOException;
 import java.io.PrintStream;
-import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.SocketException;
 import java.nio.channels.ClosedByInterruptException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.util.ArrayList;
 import java.util.MissingResourceException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.Semaphore;
 
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 
 import controller.CloudController;
-import controller.ControllerNode;
 import controller.ControllerUser;
+import controller.TermEvaluator;
 import cli.Command;
 import cli.AdvancedShell;
 import util.Config;
+import util.FramedConnection;
 import util.Keys;
 import util.Message;
 import util.SecurityUtils;
@@ -38,18 +35,19 @@ import util.SecurityUtils.*;
 /**
  * Thread to communicate with a client on the given socket.
  */
-public class TcpControllerClient extends Thread implements ITcpControllerClientCli, Runnable {
+public class TcpControllerClient implements ITcpControllerClientCli, Runnable {
 
 	private Config config;
 	private Socket clientSocket;
-	private BufferedReader reader;
-	private PrintWriter writer;
+	private FramedConnection connection;
 	private CloudController controller;
 	private AdvancedShell controllerShell;
 	private AdvancedShell shell;
 	private boolean acceptCommands = true;
 	private final String threadType;
+	private Thread worker;
 	private Message message = new Message();
+	private Semaphore inFlight;
 	private ControllerUser user = null; 
 	private PrivateKey controllerPrivateKey;
 	private PublicKey userPublicKey;
@@ -66,8 +64,8 @@ public class TcpControllerClient extends Thread implements ITcpControllerClientC
 		
 		this.setControllerShell(controller.getShell());
 		this.threadType = this.getClass().getName();
-		this.setName(getThreadType() + " " + this.getName());
 		setConfig(new Config("controller"));
+		setInFlight(new Semaphore(getConfig().getInt("compute.inflight")));
 		
 		/*
 		 * create a new Shell instance, not used to process interactive commands,
@@ -115,17 +113,10 @@ public class TcpControllerClient extends Thread implements ITcpControllerClientC
 	}
 
 	/**
-	 * @param reader the reader to set
+	 * @param connection the connection to set
 	 */
-	private synchronized void setReader(BufferedReader reader) {
-		this.reader = reader;
-	}
-
-	/**
-	 * @param writer the writer to set
-	 */
-	private synchronized void setWriter(PrintWriter writer) {
-		this.writer = writer;
+	private synchronized void setConnection(FramedConnection connection) {
+		this.connection = connection;
 	}
 
 	/**
@@ -165,24 +156,31 @@ public class TcpControllerClient extends Thread implements ITcpControllerClientC
 	}
 
 	/**
-	 * @return the clientSocket
+	 * @return the inFlight permits of tagged compute requests
 	 */
-	private synchronized Socket getClientSocket() {
-		return clientSocket;
+	private synchronized Semaphore getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * @param inFlight the inFlight to set
+	 */
+	private synchronized void setInFlight(Semaphore inFlight) {
+		this.inFlight = inFlight;
 	}
 
 	/**
-	 * @return the reader
+	 * @return the clientSocket
 	 */
-	private synchronized BufferedReader getReader() {
-		return reader;
+	private synchronized Socket getClientSocket() {
+		return clientSocket;
 	}
 
 	/**
-	 * @return the writer
+	 * @return the connection
 	 */
-	private synchronized PrintWriter getWriter() {
-		return writer;
+	private synchronized FramedConnection getConnection() {
+		return connection;
 	}
 
 	/**
@@ -283,8 +281,33 @@ public class TcpControllerClient extends Thread implements ITcpControllerClientC
 		this.initVector = initVector;
 	}
 
+	/**
+	 * Runs this handler on a new thread of the given factory
+	 *
+	 * @param threadFactory platform or virtual threads, see {@link util.HandlerThreads}
+	 */
+	public synchronized void start(ThreadFactory threadFactory) {
+		worker = threadFactory.newThread(this);
+		worker.start();
+	}
+
+	/**
+	 * Waits for the handler thread to die
+	 *
+	 * @throws InterruptedException
+	 */
+	public void join() throws InterruptedException {
+		Thread thread;
+		synchronized (this) {
+			thread = worker;
+		}
+		if (thread != null && thread != Thread.currentThread()) {
+			thread.join();
+		}
+	}
+
 	/* (non-Javadoc)
-	 * @see java.lang.Thread#run()
+	 * @see java.lang.Runnable#run()
 	 */
 	public void run() {
 
@@ -301,6 +324,8 @@ public class TcpControllerClient extends Thread implements ITcpControllerClientC
 
 			// Secure Authentication:
 			// 0.  prepare System
+			setConnection(new FramedConnection(getClientSocket()));
+
 			// 0.a Make sure BouncyCastle is registred
 			SecurityUtils.registerBouncyCastle();
 
@@ -549,43 +574,18 @@ public class TcpControllerClient extends Thread implements ITcpControllerClientC
 	private byte[] recvRequest(Encryption encryption) {
 		byte[] decryptData;
 		byte[] decodeData;
-		// create a reader to retrieve messages send by the client
-		BufferedReader serverReader;
-		try {
-			serverReader = new BufferedReader(new InputStreamReader(getClientSocket().getInputStream()));
-		} catch (IOException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
-			getShell().printErrLine("!Error: Read-Problems!");
-			close();
-			return null;
-		}
-		// read server response
-		// inString = serverReader.readLine();
-		// not only read 1 line, read all
-		String inString = null;
-		Character myChar = null;
+		// read one message, line or frame
+		byte[] request;
 		try {
-			if ((myChar = (char) serverReader.read()) != -1) {
-				inString = myChar.toString();
-				while (serverReader.ready()) {
-					if ((myChar = (char) serverReader.read()) == -1) {
-						// ready (data available) but unexpected end of input found 
-						getShell().printErrLine("!Error: Read-Problems!");
-						close();
-						return null;
-					}
-					inString += myChar.toString();
-				}
+			request = getConnection().read();
+			if (encryption == Encryption.RSA && getConnection().accept(request)) {
+				// the client switched to framed mode, now read its first real message
+				request = getConnection().read();
 			}
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			// e.printStackTrace();
-			// getShell().printErrLine("!Error: Read-Problems!");
 			close();
 			return null;
 		}
-		byte[] request = inString.getBytes();
 		if (request == null) {
 			getShell().printLine("Error: No data received!");
 			return null;
@@ -595,8 +595,8 @@ public class TcpControllerClient extends Thread implements ITcpControllerClientC
 			// Mist auf der Leitung, wenn der Client den Socket abwrgt
 			return null;
 		} else if (encryption == Encryption.RSA) {
-			// decode Base64 (char to binary)
-			decodeData = SecurityUtils.decodeB64(request);
+			// decode Base64 (char to binary), framed messages are binary already
+			decodeData = getConnection().decode(request);
 			if (decodeData == null) {
 				getShell().printLine("Error: Can't Base64-decode request: '" + new String(request) + "'!");
 				return null;
@@ -608,8 +608,8 @@ public class TcpControllerClient extends Thread implements ITcpControllerClientC
 				return null;
 			}
 		} else if (encryption == Encryption.AES) {
-			// decode Base64 (char to binary)
-			decodeData = SecurityUtils.decodeB64(request);
+			// decode Base64 (char to binary), framed messages are binary already
+			decodeData = getConnection().decode(request);
 			if (decodeData == null) {
 				getShell().printLine("Error: Can't Base64-decode request: '" + new String(request) + "'!");
 				return null;
@@ -662,19 +662,12 @@ public class TcpControllerClient extends Thread implements ITcpControllerClientC
 		byte[] encryptData;
 		byte[] encodeData = null;
 		// getControllerShell().printLine("Response(" + encryption + "): '" + new String(data) + "'.");
-		// prepare the writer for responding to clients requests
-		try {
-			setWriter(new PrintWriter(getClientSocket().getOutputStream(), true));
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			return;
-		}
 		if (data == null) {
 			getShell().printLine("Error: No data to send!");
 			return;
 		} else if (encryption == Encryption.RAW) {
 			// do no conversion
+			encodeData = data;
 		} else if (encryption == Encryption.RSA) {
 			// encrypt data
 			encryptData = SecurityUtils.encryptRSA(data, getUserPublicKey());
@@ -682,8 +675,8 @@ public class TcpControllerClient extends Thread implements ITcpControllerClientC
 				getShell().printLine("Error: Can't RSA-encrypt response: '" + new String(data) + "'!");
 				return;
 			}
-			// encode Base64 (binary to char)
-			encodeData = SecurityUtils.encodeB64(encryptData);
+			// encode Base64 (binary to char), not needed for framed messages
+			encodeData = getConnection().encode(encryptData);
 			if (encodeData == null) {
 				getShell().printLine("Error: Can't Base64-encode response: '" + new String(data) + "'!");
 				return;
@@ -695,8 +688,8 @@ public class TcpControllerClient extends Thread implements ITcpControllerClientC
 				getShell().printLine("Error: Can't AES-encrypt response: '" + new String(data) + "'!");
 				return;
 			}
-			// encode Base64 (binary to char)
-			encodeData = SecurityUtils.encodeB64(encryptData);
+			// encode Base64 (binary to char), not needed for framed messages
+			encodeData = getConnection().encode(encryptData);
 			if (encodeData == null) {
 				getShell().printLine("Error: Can't Base64-encode response: '" + new String(data) + "'!");
 				return;
@@ -705,11 +698,11 @@ public class TcpControllerClient extends Thread implements ITcpControllerClientC
 			getShell().printLine("/* TODO: implement code in 'sendResponse()' */");
 			return;
 		}
-		// send request
-		if (encodeData == null) {
-			getWriter().println((String) null);
-		} else {
-			getWriter().println(new String(encodeData));
+		// send response
+		try {
+			getConnection().write(encodeData);
+		} catch (IOException e) {
+			getShell().printLine("Error: Can't send response: " + e.getMessage());
 		}
 	}
 	
@@ -739,7 +732,13 @@ public class TcpControllerClient extends Thread implements ITcpControllerClientC
 			// only entered by the first close() 
 			if (! byClient) {
 				// Send information to client
-				getWriter().println(getMessage().controller_disconnected);
+				if (getConnection() != null) {
+					try {
+						getConnection().write(getMessage().controller_disconnected);
+					} catch (IOException e) {
+						// do nothing
+					}
+				}
 				// but dont wait for any response
 			}
 			
@@ -822,55 +821,6 @@ public class TcpControllerClient extends Thread implements ITcpControllerClientC
 		return false;
 	}
 	
-	/**
-	 * @param string
-	 * @return true if string could be converted to a double (after removing '+' signs)
-	 */
-	static private boolean isNumeric(String string) {
-		try {
-			Double.parseDouble(string.trim().replaceAll("\\+", "").replace(",", ".").trim());
-			return true;
-		} catch (NumberFormatException e) {
-			return false;
-		}
-	}
-	
-	/**
-	 * @param string
-	 * @return true if string could be converted to an integer (after removing '+' signs)
-	 */
-	static private boolean isInteger(String string) {
-		try {
-			Integer.parseInt(string.trim().replaceAll("\\+", "").replace(",", ".").trim());
-			return true;
-		} catch (NumberFormatException e) {
-			return false;
-		}
-	}
-	
-	/**
-	 * Splits a string in numeric and non-numeric parts
-	 * 
-	 * @param inString
-	 * @return Array of alternating numeric and non-numeric strings
-	 */
-	static private ArrayList<String> splitOnNumber(String inString) {
-		String pattern = "[-\\+]?\\d+([,\\.]\\d+)?([eE][-\\+]?\\d+)?";		// numbers without leading decimal point, no grouping separator and '.' or ',' as decimal separator
-		int lastEnd = 0;
-		ArrayList<String> results = new ArrayList<String>();
-		for (Matcher matched = Pattern.compile(pattern).matcher(inString); matched.find(); ) {
-			if (matched.start() > lastEnd) {
-				results.add(inString.substring(lastEnd, matched.start()));
-			}
-			results.add(inString.substring(matched.start(), matched.end()));
-			lastEnd = matched.end();
-		}
-		if (lastEnd < inString.length()) {
-			results.add(inString.substring(lastEnd));
-		}
-		return results;
-	}
-	
 //----------------------------------------------------- Remote available commands -----------------------------------------	
 
 	/* (non-Javadoc)
@@ -970,141 +920,71 @@ public class TcpControllerClient extends Thread implements ITcpControllerClientC
 	@Override
 	@Command
 	public String compute(String term) throws IOException {
-		
-		// split command line
-		// check for syntactical correctness of command line
-		// check all connected nodes which will support the requested operations
-		// check that all operations are supported
-		// for each operation contact poorest node (open/request/close via TCP)
-		// increase nodes credits
-		// return result or error
-		// decrease client credits if no error
-		
-		// split command line on numbers
-		getControllerShell().printLine(term);
-		ArrayList<String> parts = splitOnNumber(term.trim());
-
-		// only single char binary inner operators are supported, like '+' or '*'
-		// and signs for numbers
-		// but no unary operators, like 'sin'
-		// or multinary operators, like ternary operators
-		// and no multichar operators, like 'mod'
-		String result = null;
-		int operatorCount = 0;
+		return getController().getTermEvaluator().compute(getUser(), term);
+	}
+
+	/* (non-Javadoc)
+	 * @see controller.tcp.ITcpControllerClientCli#computeBatch(java.lang.String)
+	 */
+	@Override
+	@Command
+	public String computeBatch(String terms) throws IOException {
+		return getController().getTermEvaluator().computeBatch(getUser(), terms);
+	}
+
+	/* (non-Javadoc)
+	 * @see controller.tcp.ITcpControllerClientCli#submit(java.lang.String)
+	 */
+	@Override
+	@Command
+	public String submit(String term) throws IOException {
+		long id = getController().getJobTable().submit(getUser(), term);
+		if (id < 0) {
+			return "!Warning: Too many jobs, try again later.";
+		}
+		return String.format("Job %d submitted.", id);
+	}
+
+	/* (non-Javadoc)
+	 * @see controller.tcp.ITcpControllerClientCli#status(long)
+	 */
+	@Override
+	@Command
+	public String status(long id) throws IOException {
+		return getController().getJobTable().status(getUser(), id);
+	}
+
+	/* (non-Javadoc)
+	 * @see controller.tcp.ITcpControllerClientCli#result(long)
+	 */
+	@Override
+	@Command
+	public String result(long id) throws IOException {
+		return getController().getJobTable().result(getUser(), id);
+	}
+
+	/* (non-Javadoc)
+	 * @see controller.tcp.ITcpControllerClientCli#computeTagged(java.lang.String, java.lang.String)
+	 */
+	@Override
+	@Command
+	public String computeTagged(final String tag, String term) throws IOException {
+		// limit the terms in flight, blocks further reading of this session
 		try {
-			// First check prerequisites
-			// need odd number of parts
-			if ((parts.size() % 2) == 0) {
-				throw new IllegalArgumentException(String.format("Invalid number of operators/operands in '%s'!", term));
-			}
-			// the very first part has to be a number
-			if (! isNumeric(parts.get(0))) {
-				throw new IllegalArgumentException(String.format("'%s' is not a number!", parts.get(0)));
-			}
-			if (! isInteger(parts.get(0))) {
-				throw new IllegalArgumentException(String.format("'%s' is not an integer!", parts.get(0)));
-			}
-			String operator;
-			for (int index = 1; index < parts.size(); index++) {
-				// the next part has to be an operator
-				if (parts.get(index).trim().length() == 0) {
-					throw new IllegalArgumentException(String.format("Missing operator!", parts.get(index)));
-				}
-				if (isNumeric(parts.get(index))) {
-					throw new IllegalArgumentException(String.format("'%s' is not an operator!", parts.get(index)));
-				}
-				if (Pattern.matches(".*\\s+.*", parts.get(index).trim())) {
-					throw new IllegalArgumentException(String.format("'%s' is not only one operator!", parts.get(index)));
-				}
-				operatorCount++;
-				operator = parts.get(index++).trim();
-				// the following part has to be a number again (should be OK because of modulo-test at the beginning)
-				if (index >= parts.size()) {
-					throw new IllegalArgumentException("Missing operand!");
-				}
-				if (! isNumeric(parts.get(index))) {
-					throw new IllegalArgumentException(String.format("'%s' is not a number!", parts.get(index)));
-				}
-				if (! isInteger(parts.get(index))) {
-					throw new IllegalArgumentException(String.format("'%s' is not an integer!", parts.get(index)));
-				}
-				
-				// now find the best node
-				ControllerNode foundNode = null;
-				for (ControllerNode checkNode : getController().getNodesMap(true, operator.charAt(0)).keySet()) {
-					if (foundNode == null) {
-						foundNode = checkNode;
-					} else if (foundNode.getUsage() > checkNode.getUsage()) {
-						foundNode = checkNode;
-					}
-				}
-				if (foundNode == null) {
-					return String.format("!Warning: No node found for '%s' operation.", operator);
-				}
-			}
-			// check credits
-			if (! getUser().checkCredits(operatorCount)) {
-				return String.format("!Warning: %d credits are not enough for %d operation%s (but for %d).", getUser().getCredits(), operatorCount, (operatorCount == 1 ? "" : "s"), getUser().availableOperations());
-			}
-			
-			// now start the calculation
-			result = parts.get(0).trim().replaceAll("\\+", "");
-			String operand;
-			String request;
-			operatorCount = 0;
-			for (int index = 1; index < parts.size(); index++) {
-				operator = parts.get(index++).trim();
-				operand = parts.get(index).trim().replaceAll("\\+", "");
-				request = String.format("!compute %s %s %s", result, operator, operand);
-				operatorCount++;
-				// pay in advance
-				if (! getUser().buyOperations(1)) {
-					// no refund because user simultaneously sends operations
-					return String.format("!Warning: %d credits are not enough for operation '%s %s %s'.", getUser().getCredits(), result, operator, operand);
-				}
-				
-				// Test only?
-				getControllerShell().printLine(request);
-				
-				// now find the best node again
-				ControllerNode foundNode = null;
-				for (ControllerNode checkNode : getController().getNodesMap(true, operator.charAt(0)).keySet()) {
-					if (foundNode == null) {
-						foundNode = checkNode;
-					} else if (foundNode.getUsage() > checkNode.getUsage()) {
-						foundNode = checkNode;
-					}
-				}
-				if (foundNode == null) {
-					// refund all operations done until now because an unavailable node is no failure of the user 
-					getUser().refundOperations(operatorCount);
-					return String.format("!Warning: No active node found for '%s' operation", operator);
-				}
-				result = foundNode.request(request, this);
-				if (isInteger(result)) {
-					foundNode.increaseUsage(result);
-				} else {
-					// check for the type of failure and decide who is responsible, the user or the node
-					// TODO: maybe increase list of user-error
-					if (getMessage().zero_division.equals(result)) {			
-						// increase node usage 
-						// because a user-Error is no failure of the node 
-						// foundNode.increaseUsage(result);			// dont increase! (lt. Angabe!)
-					} else {
-						// by default refund all operations done until now 
-						// because an unspecific node-Error is no failure of the user 
-						getUser().refundOperations(operatorCount);
-					}
-					return result;
-				}
-			}
-		} catch (IllegalArgumentException e) {
-			// invalid argument in compute construct
-			getControllerShell().printErrLine(e.getMessage());
-			// throw new IllegalArgumentException(e);
-			return e.getMessage();
+			getInFlight().acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return getMessage().controller_disconnected;
 		}
-		return result;
+		getController().getTermEvaluator().computeAsync(getUser(), term, new TermEvaluator.ResultHandler() {
+			@Override
+			public void handle(String result) {
+				getInFlight().release();
+				sendResponse(String.format("!tagged %s %s", tag, result));
+			}
+		});
+		// response is sent when the result is available
+		return null;
 	}
 
 	// --- Commands needed for Lab 2. Please note that you do not have to
@@ -1148,6 +1028,11 @@ public class TcpControllerClient extends Thread implements ITcpControllerClientC
 		usage += "\t!buy <credits>\n";
 		usage += "\t!list\n";
 		usage += "\t!compute <math-term>\n";
+		usage += "\t!computeTagged <tag> <math-term>\n";
+		usage += "\t!computeBatch <math-term>; <math-term>; ...\n";
+		usage += "\t!submit <math-term>\n";
+		usage += "\t!status <job-id>\n";
+		usage += "\t!result <job-id>\n";
 		usage += "\t!exit\n";
 		usage += "\t!help\n";
 
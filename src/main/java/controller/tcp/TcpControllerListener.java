@@ -4,9 +4,11 @@ import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.concurrent.ThreadFactory;
 
 import controller.CloudController;
 import cli.AdvancedShell;
+import util.HandlerThreads;
 
 /**
  * Thread to listen for incoming TCP connections on the given socket.
@@ -17,6 +19,7 @@ public class TcpControllerListener extends Thread {
 	private AdvancedShell controllerShell;
 	private final String threadType;
 	private boolean acceptCommands = true;
+	private ThreadFactory handlerThreads;
 	private ServerSocket serverSocket;
 
 	/**
@@ -31,6 +34,9 @@ public class TcpControllerListener extends Thread {
 		this.threadType = this.getClass().getName();
 		this.setName(getThreadType() + " " + this.getName());
 		
+		// per-connection handlers run on platform or virtual threads
+		this.setHandlerThreads(HandlerThreads.factory(controller.getConfig().getString("tcp.threads"), TcpControllerClient.class.getName()));
+
 		// register in shared list to be accessible from outside
 		this.getController().getThreadsMap().put(this, getThreadType());
 	}
@@ -63,6 +69,20 @@ public class TcpControllerListener extends Thread {
 		this.serverSocket = serverSocket;
 	}
 
+	/**
+	 * @param handlerThreads the handlerThreads to set
+	 */
+	private synchronized void setHandlerThreads(ThreadFactory handlerThreads) {
+		this.handlerThreads = handlerThreads;
+	}
+
+	/**
+	 * @return the handlerThreads
+	 */
+	private synchronized ThreadFactory getHandlerThreads() {
+		return handlerThreads;
+	}
+
 	/**
 	 * @return the serverSocket
 	 */
@@ -116,7 +136,7 @@ public class TcpControllerListener extends Thread {
 				getControllerShell().printLine("Accept connection from client.");
 
 				// fork an own thread for each connected client
-				new TcpControllerClient(getController(), socket).start();
+				new TcpControllerClient(getController(), socket).start(getHandlerThreads());
 			}
 		} catch (SocketException e) {
 			// ignore socket-error on close
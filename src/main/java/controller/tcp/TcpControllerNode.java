@@ -1,24 +1,21 @@
 package controller.tcp;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintStream;
-import java.io.PrintWriter;
-import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 
 import controller.CloudController;
 import cli.Command;
 import cli.AdvancedShell;
+import util.FramedConnection;
 import util.Message;
 
 /**
- * Thread to communicate with a node 
- * for only one compute command
- * on a new node-socket, closed afterwards
- * returning result on given client socket
+ * Object to communicate with a node
+ * on a persistent node-connection,
+ * reused for many compute commands by the pool of the ControllerNode
  */
 // public class TcpControllerNode extends Thread implements ITcpControllerNodeCli, Runnable {
 public class TcpControllerNode implements ITcpControllerNodeCli {
@@ -29,15 +26,15 @@ public class TcpControllerNode implements ITcpControllerNodeCli {
 	private boolean acceptCommands = true;
 	private final String threadType;
 	private Message message = new Message();
-	private Socket nodeSocket;
+	private FramedConnection connection;
 	TcpControllerClient tcpControllerClient = null;
 
 	/**
 	 * @param controller Cloud controller object
-	 * @param nodeSocket TCP node socket
+	 * @param connection TCP node connection, line or framed
 	 */
-	public TcpControllerNode(CloudController controller, Socket nodeSocket) {
-		this.setNodeSocket(nodeSocket);
+	public TcpControllerNode(CloudController controller, FramedConnection connection) {
+		this.setConnection(connection);
 		this.setController(controller);
 		
 		this.setControllerShell(controller.getShell());
@@ -78,10 +75,10 @@ public class TcpControllerNode implements ITcpControllerNodeCli {
 	}
 
 	/**
-	 * @param nodeSocket the socket to set
+	 * @param connection the connection to set
 	 */
-	private synchronized void setNodeSocket(Socket nodeSocket) {
-		this.nodeSocket = nodeSocket;
+	private synchronized void setConnection(FramedConnection connection) {
+		this.connection = connection;
 	}
 
 	/**
@@ -121,10 +118,10 @@ public class TcpControllerNode implements ITcpControllerNodeCli {
 	}
 
 	/**
-	 * @return the socket
+	 * @return the connection
 	 */
-	private synchronized Socket getNodeSocket() {
-		return nodeSocket;
+	private synchronized FramedConnection getConnection() {
+		return connection;
 	}
 
 	/**
@@ -169,12 +166,25 @@ public class TcpControllerNode implements ITcpControllerNodeCli {
 		return message;
 	}
 
+	/**
+	 * @return true as long as the connection has not been closed
+	 */
+	public synchronized boolean isOpen() {
+		return isAcceptCommands() && getConnection() != null;
+	}
+
+	/**
+	 * @return true if the connection can be reused for the next request
+	 */
+	public synchronized boolean isHealthy() {
+		return isOpen() && getConnection().isIdle();
+	}
+
 	public String request(String request) {
 		
-		// 1. connect to node, if possible
-		// 2. forward compute request
-		// 3. receive compute response, or error
-		// 4. disconnect from node
+		// 1. forward compute request on the open connection
+		// 2. receive compute response, or error
+		// 3. on error close the connection
 		
 		// read client requests
 		getControllerShell().printLine("Controller want's to send the following request: " + request);
@@ -213,52 +223,33 @@ public class TcpControllerNode implements ITcpControllerNodeCli {
 	private String response(String request) {
 		String inString = "";
 
-		if (! nodeSocket.isClosed() && isAcceptCommands() && ! Thread.currentThread().isInterrupted()) {
+		if (getConnection() != null && isAcceptCommands() && ! Thread.currentThread().isInterrupted()) {
 			try {
-				// create a writer to send messages to the node
-				PrintWriter serverWriter = new PrintWriter(getNodeSocket().getOutputStream(), true);
-				if (serverWriter.checkError()) {
-					getControllerShell().printErrLine(getMessage().node_disconnected);
-					throw new IOException(getMessage().node_disconnected);
-				}
-				// write provided user input to the socket
-				serverWriter.println(request);
-				
-				// create a reader to retrieve messages send by the node
-				BufferedReader serverReader = new BufferedReader(new InputStreamReader(getNodeSocket().getInputStream()));
-				// read node response
-				inString = null;
-				Character myChar = null;
-				if ((myChar = (char) serverReader.read()) != -1) {
-					inString = myChar.toString();
-					while (serverReader.ready()) {
-						if ((myChar = (char) serverReader.read()) == -1) {
-							// ready (data available) but unexpected end of input found 
-							getControllerShell().printErrLine("!Error: Read-Problems!");
-							throw new IOException("!Error: Read-Problems!");
-						}
-						inString += myChar.toString();
-					}
-				}
+				// write request, one line or frame
+				getConnection().write(request);
+
+				// read exactly one node response
+				inString = getConnection().readString();
 				if (inString == null || inString.contains(getMessage().node_disconnected)) {
 					// getControllerShell().printErrLine(getMessage().node_disconnected);
 					throw new SocketException(getMessage().node_disconnected);
 				}
-				// strip all trailing \n or \r
-				while (inString.endsWith("\n") || inString.endsWith("\r")) {
-					inString = inString.substring(0, inString.length() - 1);
-				}
 			} catch (SocketException e) {
 				getControllerShell().printErrLine(getMessage().node_disconnected);
 				close();
 				return getMessage().node_disconnected;
+			} catch (SocketTimeoutException e) {
+				// the node did not answer in time, a late response would be read by the next request
+				getControllerShell().printErrLine(getMessage().node_disconnected);
+				close();
+				return getMessage().node_disconnected;
 			} catch (IOException e) {
 				getControllerShell().printErrLine("!Error: Unknown communication problem!");
 				close();
 				throw new RuntimeException(e.getClass().getSimpleName(), e);		// TODO ?????
 			}
-			// return the response to the controller which will be written on console
-			close();
+			// return the response to the controller which will be written on console,
+			// the connection stays open for the next request
 			return inString;
 		} else {
 			getControllerShell().printErrLine(getMessage().node_disconnected);
@@ -318,13 +309,9 @@ public class TcpControllerNode implements ITcpControllerNodeCli {
 	 * Closes TCP socket
 	 */
 	synchronized public void closeTCP() {
-		if (getNodeSocket() != null) {
-			try {
-				getNodeSocket().close();
-			} catch (IOException e) {
-				throw new RuntimeException(e.getClass().getName() + ": " + e.getMessage());
-			}
-			setNodeSocket(null);
+		if (getConnection() != null) {
+			getConnection().close();
+			setConnection(null);
 		}
 	}
 
@@ -17,6 +17,19 @@ public interface IUdpControllerListenerCli {
 	 */
 	String alive(String port, String operations, String address) throws IOException;
 
+	/**
+	 * Process compact alive information sent by a node,
+	 * the node is asked for its operations if they are unknown or changed
+	 *
+	 * @param port TCP port of the node
+	 * @param version version of the operations of the node
+	 * @param address address of the node
+	 * @param udpPort UDP port of the node
+	 * @return result of processing
+	 * @throws IOException
+	 */
+	String beat(String port, Integer version, String address, Integer udpPort) throws IOException;
+
 	/**
 	 * Process hello command sent by a node
 	 * 
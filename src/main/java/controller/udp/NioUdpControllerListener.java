@@ -0,0 +1,503 @@
+package controller.udp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+import cli.AdvancedShell;
+import controller.CloudController;
+import controller.ControllerNode;
+import util.HandlerThreads;
+import util.Heartbeats;
+import util.Message;
+
+/**
+ * Thread to receive the packets of the nodes on the given channel.
+ * Unlike {@link UdpControllerListener} the packets are parsed in place in reused buffers,
+ * the sender is never resolved by name and no shell is involved.
+ * The node of every sender is remembered, so an unchanged '!alive' packet
+ * or a '!beat' with the known version only restarts the timeout of its node.
+ * Beats which can't be matched are answered with '!full', so the node sends its operations.
+ * This thread only receives, the packets are handled by a few shard threads.
+ * All packets of one sender go to the same shard, so the updates of a node keep their order.
+ */
+public class NioUdpControllerListener extends Thread {
+
+	private static final byte[] ALIVE = Heartbeats.ALIVE.getBytes();
+	private static final byte[] BEAT = Heartbeats.BEAT.getBytes();
+	private static final byte[] HELLO = "!hello".getBytes();
+	private static final ByteBuffer FULL = ByteBuffer.wrap(Heartbeats.FULL.getBytes()).asReadOnlyBuffer();
+	private static final int PACKET_SIZE = 1024;
+	// packets waiting per shard, further packets are dropped like on a full socket buffer
+	private static final int SHARD_CAPACITY = 1024;
+
+	/**
+	 * Reused copy of one received packet
+	 */
+	private static final class Packet {
+		private final ByteBuffer buffer = ByteBuffer.allocate(PACKET_SIZE);
+		private SocketAddress sender;
+	}
+
+	/**
+	 * Last '!alive' packet of one sender
+	 */
+	private static final class Heartbeat {
+		private final ControllerNode node;
+		private final int tcpPort;
+		private final byte[] operations;
+		private final int version;
+
+		private Heartbeat(ControllerNode node, int tcpPort, String operations) {
+			this.node = node;
+			this.tcpPort = tcpPort;
+			this.operations = operations.getBytes();
+			this.version = Heartbeats.version(operations);
+		}
+	}
+
+	private DatagramChannel channel;
+	private CloudController controller;
+	private AdvancedShell controllerShell;
+	private boolean acceptCommands = true;
+	private final String threadType;
+	private Message message = new Message();
+	private final int timeout;
+
+	private final Shard[] shards;
+
+	// only used by this thread
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(PACKET_SIZE);
+
+	/**
+	 * @param controller Cloud controller object
+	 * @param channel bound datagram channel, blocking
+	 * @param shardCount number of threads handling the packets
+	 */
+	public NioUdpControllerListener(CloudController controller, DatagramChannel channel, int shardCount) {
+		this.setController(controller);
+		this.setChannel(channel);
+		this.timeout = controller.getConfig().getInt("node.timeout");
+		this.shards = new Shard[Math.max(1, shardCount)];
+		for (int index = 0; index < shards.length; index++) {
+			shards[index] = new Shard();
+		}
+
+		this.setControllerShell(controller.getShell());
+		this.threadType = this.getClass().getName();
+		this.setName(getThreadType() + " " + this.getName());
+
+		// register in shared list to be accessible from outside
+		this.getController().getThreadsMap().put(this, getThreadType());
+	}
+
+	/**
+	 * @param channel the channel to set
+	 */
+	private synchronized void setChannel(DatagramChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * @param controller the controller to set
+	 */
+	private synchronized void setController(CloudController controller) {
+		this.controller = controller;
+	}
+
+	/**
+	 * @param controllerShell the controllerShell to set
+	 */
+	private synchronized void setControllerShell(AdvancedShell controllerShell) {
+		this.controllerShell = controllerShell;
+	}
+
+	/**
+	 * @param acceptCommands the acceptCommands to set
+	 */
+	private synchronized void setAcceptCommands(boolean acceptCommands) {
+		this.acceptCommands = acceptCommands;
+	}
+
+	/**
+	 * @return the channel
+	 */
+	private synchronized DatagramChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * @return the controller
+	 */
+	private synchronized CloudController getController() {
+		return controller;
+	}
+
+	/**
+	 * @return the controllerShell
+	 */
+	private synchronized AdvancedShell getControllerShell() {
+		return controllerShell;
+	}
+
+	/**
+	 * @return the acceptCommands
+	 */
+	private synchronized boolean isAcceptCommands() {
+		return acceptCommands;
+	}
+
+	/**
+	 * @return the threadType
+	 */
+	private synchronized String getThreadType() {
+		return threadType;
+	}
+
+	/**
+	 * @return the message
+	 */
+	private synchronized Message getMessage() {
+		return message;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Thread#run()
+	 */
+	public void run() {
+
+		DatagramChannel channel = getChannel();
+		ThreadFactory threadFactory = HandlerThreads.platformFactory(getThreadType() + "-Shard");
+		for (Shard shard : shards) {
+			shard.start(threadFactory);
+		}
+		getControllerShell().printLine(String.format("UDP-Listener is up on port '%d' with %d shards!", channel.socket().getLocalPort(), shards.length));
+
+		while (isAcceptCommands() && ! Thread.currentThread().isInterrupted()) {
+			try {
+				buffer.clear();
+				SocketAddress sender = channel.receive(buffer);
+				buffer.flip();
+				// the same sender always to the same shard
+				shards[(sender.hashCode() & Integer.MAX_VALUE) % shards.length].offer(sender, buffer);
+			} catch (AsynchronousCloseException e) {
+				// ignore channel-error on close, also thrown if interrupted
+				break;
+			} catch (IOException e) {
+				getControllerShell().printErrLine("Error occurred while waiting for/handling UDP packets: " + e.getMessage());
+				break;
+			}
+		}
+		close();
+		getControllerShell().printLine("UDP Listener-Thread shut down completed.");
+	}
+
+	/**
+	 * Handles the packets of some of the senders in their order, on its own thread
+	 */
+	private final class Shard implements Runnable {
+		private final BlockingQueue<Packet> free = new ArrayBlockingQueue<Packet>(SHARD_CAPACITY);
+		private final BlockingQueue<Packet> received = new ArrayBlockingQueue<Packet>(SHARD_CAPACITY);
+		private final Map<SocketAddress, Heartbeat> heartbeats = new HashMap<SocketAddress, Heartbeat>();
+		private Thread thread;
+		private ByteBuffer buffer;		// packet being handled
+		private int position;			// behind the last parsed number
+		private volatile long handled = 0;	// only written by the thread of the shard
+
+		private Shard() {
+			for (int index = 0; index < SHARD_CAPACITY; index++) {
+				free.add(new Packet());
+			}
+		}
+
+		/**
+		 * @param threadFactory creates the thread of the shard
+		 */
+		private void start(ThreadFactory threadFactory) {
+			thread = threadFactory.newThread(this);
+			thread.start();
+		}
+
+		/**
+		 * Stops the thread of the shard
+		 */
+		private void stop() {
+			if (thread != null) {
+				thread.interrupt();
+			}
+		}
+
+		/**
+		 * Hands a received packet over to the shard, called by the receiving thread
+		 *
+		 * @param sender address of the node
+		 * @param data the packet, copied
+		 */
+		private void offer(SocketAddress sender, ByteBuffer data) {
+			Packet packet = free.poll();
+			if (packet == null) {
+				// shard overloaded
+				return;
+			}
+			packet.buffer.clear();
+			packet.buffer.put(data).flip();
+			packet.sender = sender;
+			received.add(packet);
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			while (isAcceptCommands()) {
+				Packet packet;
+				try {
+					packet = received.take();
+				} catch (InterruptedException e) {
+					break;
+				}
+				try {
+					buffer = packet.buffer;
+					handle(packet.sender);
+				} catch (IOException e) {
+					getControllerShell().printErrLine("Error occurred while answering UDP packet: " + e.getMessage());
+				} catch (RuntimeException e) {
+					// a malformed packet must not stop the shard
+					getControllerShell().printErrLine("Error occurred while handling UDP packet: " + e.getMessage());
+				}
+				packet.sender = null;
+				free.add(packet);
+				handled++;
+			}
+		}
+
+		/**
+		 * Handles one packet in the buffer
+		 *
+		 * @param sender address of the node
+		 * @throws IOException if the response can't be sent
+		 */
+		private void handle(SocketAddress sender) throws IOException {
+			int end = trimmedEnd();
+			if (startsWith(BEAT, end)) {
+				beat(sender, end);
+			} else if (startsWith(ALIVE, end)) {
+				alive(sender, end);
+			} else if (startsWith(HELLO, end)) {
+				InetSocketAddress node = (InetSocketAddress) sender;
+				UdpControllerListener.sendInit(getController(), getControllerShell(), node.getAddress().getHostAddress(), node.getPort());
+			} else {
+				getControllerShell().printLine(getMessage().unknown_command);
+			}
+		}
+
+		/**
+		 * Handles '!beat <tcpPort> <version>'
+		 *
+		 * @param sender address of the node
+		 * @param end end of the packet
+		 * @throws IOException if the operations can't be requested
+		 */
+		private void beat(SocketAddress sender, int end) throws IOException {
+			long tcpPort = number(skipSpaces(BEAT.length, end), end);
+			long version = number(skipSpaces(position, end), end);
+			if (tcpPort < 0 || tcpPort > 65535 || version < 0 || version > Integer.MAX_VALUE || position != end) {
+				getControllerShell().printLine(getMessage().unknown_command);
+				return;
+			}
+
+			// usually nothing changed since the last packet
+			Heartbeat heartbeat = heartbeats.get(sender);
+			if (heartbeat != null && heartbeat.tcpPort == tcpPort && heartbeat.version == version && heartbeat.node.isOpen()) {
+				heartbeat.node.setActive(timeout);
+				return;
+			}
+
+			// the node may be known from another port or shard
+			ControllerNode controllerNode = getController().getNode(((InetSocketAddress) sender).getAddress().getHostAddress(), String.valueOf(tcpPort));
+			if (controllerNode != null && controllerNode.isOpen()) {
+				String operations = controllerNode.getOperations();
+				if (Heartbeats.version(operations) == version) {
+					controllerNode.setActive(timeout);
+					heartbeats.put(sender, new Heartbeat(controllerNode, (int) tcpPort, operations));
+					return;
+				}
+			}
+
+			// unknown node or changed operations
+			getChannel().send(FULL.duplicate(), sender);
+		}
+
+		/**
+		 * Handles '!alive <tcpPort> <operations>'
+		 *
+		 * @param sender address of the node
+		 * @param end end of the packet
+		 */
+		private void alive(SocketAddress sender, int end) {
+			long tcpPort = number(skipSpaces(ALIVE.length, end), end);
+			if (tcpPort < 0 || tcpPort > 65535) {
+				getControllerShell().printLine(getMessage().unknown_command);
+				return;
+			}
+			int operationsStart = skipSpaces(position, end);
+
+			// usually nothing changed since the last packet
+			Heartbeat heartbeat = heartbeats.get(sender);
+			if (heartbeat != null && heartbeat.tcpPort == tcpPort && heartbeat.node.isOpen() && equalsOperations(heartbeat.operations, operationsStart, end)) {
+				heartbeat.node.setActive(timeout);
+				return;
+			}
+
+			byte[] bytes = new byte[end - operationsStart];
+			for (int index = 0; index < bytes.length; index++) {
+				bytes[index] = buffer.get(operationsStart + index);
+			}
+			String operations = new String(bytes);
+			String nodeAddress = ((InetSocketAddress) sender).getAddress().getHostAddress();
+			String nodePort = String.valueOf(tcpPort);
+			ControllerNode controllerNode;
+			// a node sending from a new port may be handled by another shard
+			synchronized (NioUdpControllerListener.this) {
+				controllerNode = getController().getNode(nodeAddress, nodePort);
+				if (controllerNode != null) {
+					controllerNode.setOperations(operations);
+					controllerNode.setActive(timeout);
+				} else {
+					controllerNode = new ControllerNode(getController(), nodeAddress, nodePort, operations, timeout);
+					getControllerShell().printLine("New node " + nodeAddress + ":" + nodePort + " initialized.");
+				}
+			}
+			heartbeats.put(sender, new Heartbeat(controllerNode, (int) tcpPort, operations));
+		}
+
+		/**
+		 * Parses a decimal number, the position after it is kept in position
+		 *
+		 * @param pos start of the number
+		 * @param end end of the packet
+		 * @return the number or -1 if there is none
+		 */
+		private long number(int pos, int end) {
+			long number = 0;
+			int start = pos;
+			while (pos < end && buffer.get(pos) >= '0' && buffer.get(pos) <= '9' && pos - start < 10) {
+				number = number * 10 + (buffer.get(pos++) - '0');
+			}
+			position = pos;
+			return (pos == start ? -1 : number);
+		}
+
+		/**
+		 * @return end of the packet without trailing whitespace or zero bytes
+		 */
+		private int trimmedEnd() {
+			int end = buffer.limit();
+			while (end > 0 && (buffer.get(end - 1) <= ' ')) {
+				end--;
+			}
+			return end;
+		}
+
+		/**
+		 * @param prefix
+		 * @param end end of the packet
+		 * @return true if the packet starts with the given command, followed by its end or a space
+		 */
+		private boolean startsWith(byte[] prefix, int end) {
+			if (end < prefix.length || (end > prefix.length && buffer.get(prefix.length) != ' ')) {
+				return false;
+			}
+			for (int index = 0; index < prefix.length; index++) {
+				if (buffer.get(index) != prefix[index]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * @param pos
+		 * @param end end of the packet
+		 * @return position of the next non-space
+		 */
+		private int skipSpaces(int pos, int end) {
+			while (pos < end && buffer.get(pos) == ' ') {
+				pos++;
+			}
+			return pos;
+		}
+
+		/**
+		 * @param operations operations of the last packet
+		 * @param start start of the operations in the buffer
+		 * @param end end of the operations in the buffer
+		 * @return true if the operations did not change
+		 */
+		private boolean equalsOperations(byte[] operations, int start, int end) {
+			if (operations.length != end - start) {
+				return false;
+			}
+			for (int index = 0; index < operations.length; index++) {
+				if (operations[index] != buffer.get(start + index)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * @return number of packets handled by all shards so far
+	 */
+	public long getHandledPackets() {
+		long handled = 0;
+		for (Shard shard : shards) {
+			handled += shard.handled;
+		}
+		return handled;
+	}
+
+	/**
+	 * Atomic method to disable the use of commands
+	 *
+	 * @return false if commands can't be disabled now because they were already disabled
+	 */
+	synchronized private boolean disableCommands() {
+		if (isAcceptCommands()) {
+			setAcceptCommands(false);
+			return true;
+		};
+		return false;
+	}
+
+	/**
+	 * Closes all resources
+	 */
+	public void close() {
+		// disable race conditions
+		if (disableCommands()) {
+			for (Shard shard : shards) {
+				shard.stop();
+			}
+			try {
+				getChannel().close();
+				getControllerShell().printLine("UDP Channel closed.");
+			} catch (IOException e) {
+				// do nothing
+			}
+
+			// remove from list of active threads
+			this.getController().getThreadsMap().remove(this);
+		}
+	}
+}
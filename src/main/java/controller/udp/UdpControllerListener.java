@@ -14,6 +14,7 @@ import cli.Command;
 import cli.AdvancedShell;
 import controller.CloudController;
 import controller.ControllerNode;
+import util.Heartbeats;
 import util.Message;
 
 /**
@@ -182,6 +183,10 @@ public class UdpControllerListener extends Thread implements IUdpControllerListe
 						if (request.startsWith("!hello")) {
 							request = "!hello" + " " + address + " " + packet.getPort();
 						}	
+						// a beat is answered on the port it came from
+						if (request.startsWith(Heartbeats.BEAT)) {
+							request = new String(packet.getData(), 0, packet.getLength()).trim() + " " + address.getCanonicalHostName() + " " + packet.getPort();
+						}
 						response = getShell().invoke(request);
 					} catch (IllegalArgumentException e) {
 						response = getMessage().unknown_command;
@@ -301,61 +306,91 @@ public class UdpControllerListener extends Thread implements IUdpControllerListe
 		}
 	}
 	
+	@Override
+	@Command
+	public String beat(String nodePort, Integer version, String nodeAddress, Integer udpPort) throws IOException {
+		int timer = Integer.parseInt(controller.getConfig().getString("node.timeout"));
+
+		ControllerNode controllerNode = controller.getNode(nodeAddress, nodePort);
+		if (controllerNode != null && controllerNode.isOpen() && Heartbeats.version(controllerNode.getOperations()) == version) {
+			controllerNode.setActive(timer);
+			return null;
+		}
+
+		// unknown node or changed operations, ask for them
+		byte[] full = Heartbeats.FULL.getBytes();
+		getDatagramSocket().send(new DatagramPacket(full, full.length, InetAddress.getByName(nodeAddress), udpPort));
+		return null;
+	}
+
 	@Override
 	@Command
 	public String hello(String nodeAddress, Integer nodePort) throws IOException {
 		// send response
 		try {
 			String host = nodeAddress.split("/")[1];
-			int rmax = this.getController().getConfig().getInt("controller.rmax");
+			sendInit(getController(), getShell(), host, nodePort);
+		} catch (Exception e) {
+			getControllerShell().printErrLine("Error: " + e.toString());
+		}
+		
+	return "";
+	}
+
+	/**
+	 * Answers the hello of a node with all active nodes and rmax ('!init')
+	 *
+	 * @param controller the cloud controller object
+	 * @param shell shell to log the response
+	 * @param host IP address of the node
+	 * @param nodePort UDP port of the node
+	 * @throws IOException if the response can't be sent
+	 */
+	static void sendInit(CloudController controller, AdvancedShell shell, String host, int nodePort) throws IOException {
+		int rmax = controller.getConfig().getInt("controller.rmax");
 
-			StringBuilder messageSb = new StringBuilder();
-			String whiteSpaceString = " ";
+		StringBuilder messageSb = new StringBuilder();
+		String whiteSpaceString = " ";
+	
+		messageSb.append("!init");
+		messageSb.append(whiteSpaceString);
 		
-			messageSb.append("!init");
-			messageSb.append(whiteSpaceString);
-			
-			// get all active nodes
-			Set<ControllerNode> activeNodes = getController().getNodesMap(true).keySet();
+		// get all active nodes
+		Set<ControllerNode> activeNodes = controller.getNodeRegistry().getActiveNodes();
+		
+		// loop through all nodes if possible
+		if (activeNodes.size() > 0) {
+			for ( ControllerNode currentNode : activeNodes) {
+				String toAppend = currentNode.getNodeAddress() + ":" + currentNode.getNodePort();
+				messageSb.append(toAppend);
+				messageSb.append(whiteSpaceString);
+			}
 			
-			// loop through all nodes if possible
-			if (activeNodes.size() > 0) {
-				for ( ControllerNode currentNode : activeNodes) {
-					String toAppend = currentNode.getNodeAddress() + ":" + currentNode.getNodePort();
-					messageSb.append(toAppend);
-					messageSb.append(whiteSpaceString);
-				}
-				
-				// add whitespace (if neccessary)
-				if (messageSb.lastIndexOf(whiteSpaceString) < messageSb.length() -1) {
-					messageSb.append(whiteSpaceString);
-				}
-			} else {
-				// zero nodes connected, add "null" to the stringbuilder
-				messageSb.append("null");
-				// add whitespace (if neccessary)
-				if (messageSb.lastIndexOf(whiteSpaceString) < messageSb.length() -1) {
-					messageSb.append(whiteSpaceString);
-				}
+			// add whitespace (if neccessary)
+			if (messageSb.lastIndexOf(whiteSpaceString) < messageSb.length() -1) {
+				messageSb.append(whiteSpaceString);
 			}
+		} else {
+			// zero nodes connected, add "null" to the stringbuilder
+			messageSb.append("null");
+			// add whitespace (if neccessary)
+			if (messageSb.lastIndexOf(whiteSpaceString) < messageSb.length() -1) {
+				messageSb.append(whiteSpaceString);
+			}
+		}
 
-			// add rmax to stringbuilder
-			messageSb.append(rmax);
-			
-			this.getShell().printLine("Controller sending the following 'hello' response: " + messageSb.toString());
-			byte[] message = messageSb.toString().getBytes();
+		// add rmax to stringbuilder
+		messageSb.append(rmax);
+		
+		shell.printLine("Controller sending the following 'hello' response: " + messageSb.toString());
+		byte[] message = messageSb.toString().getBytes();
 
-			InetAddress address = InetAddress.getByName(host);
-			DatagramPacket packet = new DatagramPacket(message, message.length, address, nodePort);
-			DatagramSocket dsocket = new DatagramSocket();
+		InetAddress address = InetAddress.getByName(host);
+		DatagramPacket packet = new DatagramPacket(message, message.length, address, nodePort);
+		DatagramSocket dsocket = new DatagramSocket();
 
-			dsocket.send(packet);
-			dsocket.close();
-		} catch (Exception e) {
-			getControllerShell().printErrLine("Error: " + e.toString());
-		}
-		
-	return "";
+		dsocket.send(packet);
+		dsocket.close();
 	}
 
 }
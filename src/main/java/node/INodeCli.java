@@ -16,6 +16,17 @@ public interface INodeCli {
 	 */
 	String history(int numberOfRequests) throws IOException;
 
+	/**
+	 * Returns the executed operations (requests) of a time range.
+	 * 
+	 * @param from first time, e.g. 20150101_120000.000
+	 * @param to last time, e.g. 20150101_130000.000
+	 * @return the evaluated expressions and their results
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	String between(String from, String to) throws IOException;
+
 	/**
 	 * Performs a shutdown of the node and release all resources.<br/>
 	 * Shutting down an already terminated node has no effect.
@@ -50,6 +61,16 @@ public interface INodeCli {
 
 	// TODO Remove additional commands
 	
+	/**
+	 * Exports the computation log to one file per request, the format of former versions.
+	 * 
+	 * @param directory target directory
+	 * @return number of exported requests
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	String export(String directory) throws IOException;
+
 	/**
 	 * Show usage information of local (logged-out) available commands.
 	 * <p/>
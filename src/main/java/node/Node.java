@@ -1,18 +1,27 @@
 package node;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.net.DatagramSocket;
 import java.net.ServerSocket;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
 
+import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.concurrent.ConcurrentHashMap;
+import node.log.ComputationLog;
+import node.log.LogExporter;
+import node.log.LogRecord;
 import node.tcp.TcpNodeController;
 import node.tcp.TcpNodeListener;
 import node.udp.UdpNodeSender;
@@ -23,6 +32,9 @@ import cli.AdvancedShell;
 
 public class Node implements INodeCli, Runnable {
 
+	// times of the history, e.g. 20150101_120000.000
+	private static final String HISTORY_DATE_FORMAT = "yyyyMMdd_HHmmss.SSS";
+
 	private String nodeName;
 	private Config config;
 	private InputStream userRequestStream;
@@ -38,6 +50,7 @@ public class Node implements INodeCli, Runnable {
 	private String operations;
 	private Message message = new Message();
 	private String logDir;
+	private ComputationLog computationLog;
 	private Integer ressourceLevel = new Integer(0);
 
 
@@ -68,6 +81,20 @@ public class Node implements INodeCli, Runnable {
 		setUdpTimer(new Timer());
 	}
 
+	/**
+	 * @return the computationLog, null before the node runs
+	 */
+	public synchronized ComputationLog getComputationLog() {
+		return computationLog;
+	}
+
+	/**
+	 * @param computationLog the computationLog to set
+	 */
+	private synchronized void setComputationLog(ComputationLog computationLog) {
+		this.computationLog = computationLog;
+	}
+
 	/**
 	 * @return the logFile
 	 */
@@ -317,6 +344,15 @@ public class Node implements INodeCli, Runnable {
 	    setOperations(getConfig().getString("node.operators"));
 		this.setLogDir(getConfig().getString("log.dir"));
 
+		// append computations in the background
+		ComputationLog.Durability durability = ComputationLog.Durability.valueOf(getConfig().getString("log.durability").trim().toUpperCase());
+		try {
+			setComputationLog(new ComputationLog(this, new File(getLogDir()), durability, getConfig().getInt("log.segment.size")));
+			getComputationLog().start();
+		} catch (IOException e) {
+			getShell().printErrLine(String.format("!Error: Could not read computation log in '%s', computations are not logged!%n%s", getLogDir(), e.getMessage()));
+		}
+
 		/*
 		 * start TCP Listener and UDP Sender
 		 */
@@ -417,6 +453,13 @@ public class Node implements INodeCli, Runnable {
 					} catch (InterruptedException e) {
 						// do nothing
 					}
+				} else if (type.equals(ComputationLog.class.getName())) {
+					((ComputationLog) thread).close();
+					try {
+						((ComputationLog) thread).join();
+					} catch (InterruptedException e) {
+						// do nothing
+					}
 				} else {
 					getShell().printErrLine("Unknown thread type '" + type + "'");
 				}
@@ -488,10 +531,49 @@ public class Node implements INodeCli, Runnable {
 	// --- Commands needed for Lab 2. Please note that you do not have to
 	// implement them for the first submission. ---
 
+	/* (non-Javadoc)
+	 * @see node.INodeCli#history(int)
+	 */
 	@Override
+	@Command
 	public String history(int numberOfRequests) throws IOException {
-		// TODO Implement code
-		return "// TODO Implement code.";
+		if (getComputationLog() == null) {
+			return "!Error: No computation log available!";
+		}
+		return format(getComputationLog().getStore().last(numberOfRequests));
+	}
+
+	/* (non-Javadoc)
+	 * @see node.INodeCli#between(java.lang.String, java.lang.String)
+	 */
+	@Override
+	@Command
+	public String between(String from, String to) throws IOException {
+		if (getComputationLog() == null) {
+			return "!Error: No computation log available!";
+		}
+		DateFormat dateFormat = new SimpleDateFormat(HISTORY_DATE_FORMAT);
+		try {
+			return format(getComputationLog().getStore().between(dateFormat.parse(from).getTime(), dateFormat.parse(to).getTime()));
+		} catch (ParseException e) {
+			return String.format("!Error: Times must be formatted as '%s'!", HISTORY_DATE_FORMAT);
+		}
+	}
+
+	/**
+	 * @param records
+	 * @return one line per record: time, request and response
+	 */
+	private String format(List<LogRecord> records) {
+		DateFormat dateFormat = new SimpleDateFormat(HISTORY_DATE_FORMAT);
+		StringBuilder history = new StringBuilder();
+		for (LogRecord record : records) {
+			if (history.length() > 0) {
+				history.append('\n');
+			}
+			history.append(String.format("%s %s = %s", dateFormat.format(new Date(record.getTimestamp())), record.getRequest(), record.getResponse()));
+		}
+		return history.length() > 0 ? history.toString() : "No computations.";
 	}
 
 	@Override
@@ -504,6 +586,16 @@ public class Node implements INodeCli, Runnable {
 
 	// TODO Remove additional commands
 
+	/* (non-Javadoc)
+	 * @see node.INodeCli#export(java.lang.String)
+	 */
+	@Override
+	@Command
+	public String export(String directory) throws IOException {
+		int count = new LogExporter(new File(getLogDir()), getNodeName()).export(new File(directory));
+		return String.format("%d requests exported to '%s'.", count, directory);
+	}
+
 	/* (non-Javadoc)
 	 * @see node.INodeCli#help()
 	 */
@@ -512,8 +604,12 @@ public class Node implements INodeCli, Runnable {
 	public String help() throws IOException {
 
 		String usage = "\navailable Commands:\n";
+		usage += "\t!between <from> <to>\n";
 		usage += "\t!exit\n";
+		usage += "\t!export <directory>\n";
 		usage += "\t!help\n";
+		usage += "\t!history <numberOfRequests>\n";
+		usage += "\t!resources\n";
 
 		return usage;
 	}
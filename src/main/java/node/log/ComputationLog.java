@@ -0,0 +1,421 @@
+package node.log;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.StandardOpenOption;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import node.Node;
+import cli.AdvancedShell;
+
+/**
+ * Append-only log of the computations of a node.
+ * Request threads only encode their record and queue it, one background thread appends
+ * all queued records at once to the current segment file (group commit).
+ * A segment is closed and a new one started when it would exceed the segment size,
+ * segments are named '<time of the first record>_<node>.seg' so they sort by time,
+ * the name of a new segment is never before the name of the last one.
+ * The written records are queried from the {@link LogStore} of the log.
+ *
+ * Durability:
+ *   none  - requests don't wait, the records are written but not forced to disk
+ *   batch - requests wait until the group of records containing theirs is forced to disk
+ *   each  - requests wait until their record is forced to disk, one fsync per record
+ */
+public class ComputationLog extends Thread {
+
+	public static final String SEGMENT_SUFFIX = ".seg";
+
+	/**
+	 * When the request waits for its record
+	 */
+	public enum Durability {
+		NONE, BATCH, EACH
+	}
+
+	// records written at once
+	private static final int MAX_BATCH = 1024;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// queued to stop the writer after all records before
+	private static final byte[] CLOSE = new byte[0];
+
+	private static final ThreadLocal<DateFormat> DATE_FORMAT = new ThreadLocal<DateFormat>() {
+		@Override
+		protected DateFormat initialValue() {
+			return new SimpleDateFormat("yyyyMMdd_HHmmss.SSS");
+		}
+	};
+
+	private final Node node;
+	private final AdvancedShell nodeShell;
+	private final String threadType;
+	private final File directory;
+	private final Durability durability;
+	private final long segmentSize;
+	private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<byte[]>();
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final Object progress = new Object();
+	private final LogStore store;
+	private long lastTimestamp = 0;		// guarded by queue
+	private boolean acceptCommands = true;
+	private long appended = 0;			// guarded by queue
+	private long written = 0;			// guarded by progress, records done, written or lost
+	private long waiting = 0;			// guarded by progress, appenders waiting for their record
+	private final List<long[]> lost = new ArrayList<long[]>();	// guarded by progress, ranges of sequences
+	private boolean stopped = false;	// guarded by progress
+	private FileChannel segment;
+	private long segmentLength;
+	private long segmentTime = 0;		// time in the name of the last segment
+
+	/**
+	 * @param node Node object
+	 * @param directory the log directory, created if needed
+	 * @param durability
+	 * @param segmentSize bytes after which a new segment is started
+	 * @throws IOException if the existing segments can't be read
+	 */
+	public ComputationLog(Node node, File directory, Durability durability, long segmentSize) throws IOException {
+		this.node = node;
+		this.store = new LogStore(directory, node.getNodeName());
+		// continue after the records of the last run, the clock may have gone back meanwhile
+		this.lastTimestamp = store.lastTimestamp();
+		File[] segments = segments(directory, node.getNodeName());
+		if (segments.length > 0) {
+			try {
+				this.segmentTime = DATE_FORMAT.get().parse(segments[segments.length - 1].getName()).getTime();
+			} catch (ParseException e) {
+				// not named by the log, sorts before the ones it starts
+			}
+		}
+		this.nodeShell = node.getShell();
+		this.directory = directory;
+		this.durability = durability;
+		this.segmentSize = segmentSize;
+		this.threadType = this.getClass().getName();
+		this.setName(threadType + " " + this.getName());
+		this.setDaemon(true);
+
+		// register in shared list to be accessible from outside
+		this.node.getThreadsMap().put(this, threadType);
+	}
+
+	/**
+	 * @return the store answering queries on the log
+	 */
+	public LogStore getStore() {
+		return store;
+	}
+
+	/**
+	 * @return the acceptCommands
+	 */
+	private synchronized boolean isAcceptCommands() {
+		return acceptCommands;
+	}
+
+	/**
+	 * @param acceptCommands the acceptCommands to set
+	 */
+	private synchronized void setAcceptCommands(boolean acceptCommands) {
+		this.acceptCommands = acceptCommands;
+	}
+
+	/**
+	 * Appends a computation, waits for it as required by the durability
+	 *
+	 * @param request e.g. '1 + 2'
+	 * @param response e.g. '3'
+	 * @return false if the log is already closed or, unless the durability is none, the record couldn't be written
+	 */
+	public boolean append(String request, String response) {
+		long sequence;
+		synchronized (queue) {
+			if (! isAcceptCommands()) {
+				return false;
+			}
+			// the timestamps must not decrease for the index of the store
+			lastTimestamp = Math.max(lastTimestamp, System.currentTimeMillis());
+			byte[] record = new LogRecord(lastTimestamp, request, response).encode();
+			sequence = ++appended;
+			if (durability != Durability.NONE) {
+				// registered before the writer can lose the record
+				synchronized (progress) {
+					waiting++;
+				}
+			}
+			queue.add(record);
+		}
+		if (durability != Durability.NONE) {
+			return awaitWritten(sequence);
+		}
+		return true;
+	}
+
+	/**
+	 * @param sequence number of the record
+	 * @return false if the record was lost or the wait interrupted
+	 */
+	private boolean awaitWritten(long sequence) {
+		synchronized (progress) {
+			try {
+				while (written < sequence && ! stopped) {
+					try {
+						progress.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return false;
+					}
+				}
+				if (written < sequence) {
+					return false;
+				}
+				for (long[] range : lost) {
+					if (range[0] <= sequence && sequence <= range[1]) {
+						return false;
+					}
+				}
+				return true;
+			} finally {
+				// no one left to ask for the lost records
+				if (--waiting == 0) {
+					lost.clear();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param count records written
+	 */
+	private void advance(long count) {
+		synchronized (progress) {
+			written += count;
+			progress.notifyAll();
+		}
+	}
+
+	/**
+	 * @param count records which couldn't be written
+	 */
+	private void lose(long count) {
+		synchronized (progress) {
+			if (waiting > 0 && count > 0) {
+				long[] last = (lost.isEmpty() ? null : lost.get(lost.size() - 1));
+				if (last != null && last[1] == written) {
+					// e.g. a full disk, one range for all the records lost since
+					last[1] = written + count;
+				} else {
+					lost.add(new long[] { written + 1, written + count });
+				}
+			}
+			written += count;
+			progress.notifyAll();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Thread#run()
+	 */
+	@Override
+	public void run() {
+		List<byte[]> batch = new ArrayList<byte[]>(MAX_BATCH);
+		boolean closing = false;
+		while (! closing) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				// only close() stops the writer, so no record is lost
+				continue;
+			}
+			queue.drainTo(batch, MAX_BATCH - 1);
+			if (batch.get(batch.size() - 1) == CLOSE) {
+				batch.remove(batch.size() - 1);
+				closing = true;
+			}
+			write(batch);
+			batch.clear();
+		}
+		closeSegment();
+		synchronized (progress) {
+			stopped = true;
+			progress.notifyAll();
+		}
+		node.getThreadsMap().remove(this);
+		nodeShell.printLine("Computation log shut down completed.");
+	}
+
+	/**
+	 * Appends a group of records to the current segment
+	 *
+	 * @param batch encoded records
+	 */
+	private void write(List<byte[]> batch) {
+		if (batch.isEmpty()) {
+			// only closing, maybe without a segment
+			return;
+		}
+		int done = 0;
+		try {
+			for (byte[] record : batch) {
+				long timestamp = ByteBuffer.wrap(record).getLong(LogRecord.HEADER_LENGTH);
+				if (segment == null || (segmentLength > 0 && segmentLength + buffer.position() + record.length > segmentSize)) {
+					flush();
+					rotate(timestamp);
+				}
+				if (record.length > buffer.remaining()) {
+					flush();
+				}
+				long position = segmentLength + buffer.position();
+				if (record.length > buffer.capacity()) {
+					writeFully(ByteBuffer.wrap(record));
+				} else {
+					buffer.put(record);
+				}
+				store.recordWritten(position, timestamp, record);
+				if (durability == Durability.EACH) {
+					flush();
+					segment.force(false);
+					advance(1);
+					done++;
+				}
+			}
+			flush();
+			if (durability == Durability.BATCH) {
+				segment.force(false);
+			}
+			advance(batch.size() - done);
+		} catch (IOException e) {
+			nodeShell.printErrLine(String.format("!Error: Could not write computation log in '%s'!%n%s", directory, e.getMessage()));
+			// start a new segment with the next group, waiting requests must not hang
+			buffer.clear();
+			closeSegment();
+			lose(batch.size() - done);
+		}
+	}
+
+	/**
+	 * Writes the buffered records to the current segment
+	 *
+	 * @throws IOException
+	 */
+	private void flush() throws IOException {
+		if (segment == null) {
+			return;
+		}
+		if (buffer.position() > 0) {
+			buffer.flip();
+			writeFully(buffer);
+			buffer.clear();
+		}
+		// the store reads the written records from the page cache
+		store.segmentWritten(segmentLength);
+	}
+
+	/**
+	 * @param data
+	 * @throws IOException
+	 */
+	private void writeFully(ByteBuffer data) throws IOException {
+		while (data.hasRemaining()) {
+			segmentLength += segment.write(data);
+		}
+	}
+
+	/**
+	 * Closes the current segment and starts a new one
+	 *
+	 * @param timestamp of the first record of the new segment
+	 * @throws IOException
+	 */
+	private void rotate(long timestamp) throws IOException {
+		closeSegment();
+		if (! directory.isDirectory() && ! directory.mkdirs()) {
+			throw new IOException(String.format("Cannot make directory '%s'", directory));
+		}
+		// the record timestamps don't go back with the clock, the names must not either
+		for (long time = Math.max(timestamp, segmentTime + 1); segment == null; time++) {
+			String name = DATE_FORMAT.get().format(new Date(time)) + "_" + node.getNodeName() + SEGMENT_SUFFIX;
+			try {
+				segment = FileChannel.open(new File(directory, name).toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+				segmentTime = time;
+				store.segmentStarted(new File(directory, name));
+			} catch (FileAlreadyExistsException e) {
+				// more than one segment in the same ms, the names must keep the order
+			}
+		}
+		segmentLength = 0;
+	}
+
+	/**
+	 * Closes the current segment
+	 */
+	private void closeSegment() {
+		if (segment != null) {
+			try {
+				if (durability != Durability.NONE) {
+					segment.force(true);
+				}
+				segment.close();
+			} catch (IOException e) {
+				nodeShell.printErrLine(String.format("!Error: Could not close computation log segment!%n%s", e.getMessage()));
+			}
+			segment = null;
+			store.segmentClosed();
+		}
+	}
+
+	/**
+	 * @param directory the log directory
+	 * @param nodeName
+	 * @return the segments of the node, oldest first
+	 */
+	public static File[] segments(File directory, final String nodeName) {
+		File[] segments = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().endsWith("_" + nodeName + SEGMENT_SUFFIX);
+			}
+		});
+		if (segments == null) {
+			return new File[0];
+		}
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	/**
+	 * Atomic method to disable the use of commands
+	 *  
+	 * @return false if commands can't be disabled now because they were already disabled 
+	 */
+	synchronized private boolean disableCommands() {
+		if (isAcceptCommands()) {
+			setAcceptCommands(false);
+			return true;
+		};
+		return false;
+	}
+
+	/**
+	 * Stops accepting records, the writer appends the queued ones and stops
+	 */
+	public void close() {
+		synchronized (queue) {
+			if (! disableCommands()) {
+				return;
+			}
+			queue.add(CLOSE);
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package node.log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Exports the computation log of a node to the former format,
+ * one file '<timestamp>_<node>.log' per request containing the request and the response line.
+ */
+public class LogExporter {
+
+	private final DateFormat dateFormat = new SimpleDateFormat("yyyyMMdd_HHmmss.SSS");
+	private final File directory;
+	private final String nodeName;
+
+	/**
+	 * @param directory the log directory of the node
+	 * @param nodeName
+	 */
+	public LogExporter(File directory, String nodeName) {
+		this.directory = directory;
+		this.nodeName = nodeName;
+	}
+
+	/**
+	 * @param target directory of the exported files, created if needed
+	 * @return number of exported requests
+	 * @throws IOException
+	 */
+	public int export(File target) throws IOException {
+		if (! target.isDirectory() && ! target.mkdirs()) {
+			throw new IOException(String.format("Cannot make directory '%s'", target));
+		}
+		int count = 0;
+		for (File segment : ComputationLog.segments(directory, nodeName)) {
+			ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(segment.toPath()));
+			LogRecord record;
+			while ((record = LogRecord.decode(records)) != null) {
+				String logFileName = String.format("%s_%s.log", dateFormat.format(new Date(record.getTimestamp())), nodeName);
+				try (FileWriter logFile = new FileWriter(new File(target, logFileName))) {
+					logFile.write(String.format("%s%n", record.getRequest()));
+					logFile.append(record.getResponse());		// last line has no trailing newline
+				}
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @param args log directory, node name, target directory, e.g. 'log/node1 node1 export/node1'
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 3) {
+			System.err.println("Usage: LogExporter <log directory> <node name> <target directory>");
+			return;
+		}
+		int count = new LogExporter(new File(args[0]), args[1]).export(new File(args[2]));
+		System.out.println(String.format("%d requests exported to '%s'.", count, args[2]));
+	}
+}
@@ -0,0 +1,125 @@
+package node.log;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * One computation in the log of a node.
+ *
+ * Binary format, big-endian:
+ *   int  length of the body
+ *   int  CRC32 of the body
+ *   body: long timestamp (ms), int length + UTF-8 request, int length + UTF-8 response
+ *
+ * A record torn by a crash fails the checksum and ends the segment.
+ */
+public class LogRecord {
+
+	public static final int HEADER_LENGTH = 8;
+
+	private final long timestamp;
+	private final String request;
+	private final String response;
+
+	/**
+	 * @param timestamp time of the computation in ms
+	 * @param request e.g. '1 + 2'
+	 * @param response e.g. '3'
+	 */
+	public LogRecord(long timestamp, String request, String response) {
+		this.timestamp = timestamp;
+		this.request = request;
+		this.response = response;
+	}
+
+	/**
+	 * @return the timestamp in ms
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return the request
+	 */
+	public String getRequest() {
+		return request;
+	}
+
+	/**
+	 * @return the response
+	 */
+	public String getResponse() {
+		return response;
+	}
+
+	/**
+	 * @return the record in the binary format, header included
+	 */
+	public byte[] encode() {
+		byte[] requestBytes = request.getBytes(StandardCharsets.UTF_8);
+		byte[] responseBytes = response.getBytes(StandardCharsets.UTF_8);
+		int bodyLength = 8 + 4 + requestBytes.length + 4 + responseBytes.length;
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + bodyLength);
+		buffer.putInt(bodyLength);
+		buffer.putInt(0);			// checksum follows
+		buffer.putLong(timestamp);
+		buffer.putInt(requestBytes.length).put(requestBytes);
+		buffer.putInt(responseBytes.length).put(responseBytes);
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), HEADER_LENGTH, bodyLength);
+		buffer.putInt(4, (int) crc.getValue());
+		return buffer.array();
+	}
+
+	/**
+	 * Reads the record at the position of the buffer and moves the position behind it
+	 *
+	 * @param buffer part of a segment
+	 * @return the record or null if there is no complete and valid record, the position is not moved then
+	 */
+	public static LogRecord decode(ByteBuffer buffer) {
+		int start = buffer.position();
+		if (buffer.remaining() < HEADER_LENGTH) {
+			return null;
+		}
+		int bodyLength = buffer.getInt(start);
+		if (bodyLength < 16 || bodyLength > buffer.remaining() - HEADER_LENGTH) {
+			return null;
+		}
+		CRC32 crc = new CRC32();
+		ByteBuffer body = buffer.duplicate();
+		body.position(start + HEADER_LENGTH).limit(start + HEADER_LENGTH + bodyLength);
+		crc.update(body);
+		if ((int) crc.getValue() != buffer.getInt(start + 4)) {
+			return null;
+		}
+		body.position(start + HEADER_LENGTH);
+		long timestamp = body.getLong();
+		String request = string(body);
+		String response = (request == null ? null : string(body));
+		if (response == null) {
+			return null;
+		}
+		buffer.position(start + HEADER_LENGTH + bodyLength);
+		return new LogRecord(timestamp, request, response);
+	}
+
+	/**
+	 * @param body
+	 * @return the next length prefixed string or null if it exceeds the body
+	 */
+	private static String string(ByteBuffer body) {
+		if (body.remaining() < 4) {
+			return null;
+		}
+		int length = body.getInt();
+		if (length < 0 || length > body.remaining()) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		body.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
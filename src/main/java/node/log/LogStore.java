@@ -0,0 +1,350 @@
+package node.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Read side of the computation log, answers history queries from memory-mapped segments.
+ * The segment being written is read from a copy of its bytes kept in memory,
+ * a segment is mapped once when the writer has moved on to the next one.
+ * Every INDEX_INTERVAL-th record of a segment is kept in a sparse index with its position and timestamp,
+ * so a query decodes at most INDEX_INTERVAL records more than it returns.
+ * The index of the segments found at start is built once by reading them,
+ * the writer of the log adds the records it appends.
+ * The timestamps of one log never decrease.
+ * Queries take a snapshot of the readable part of the segments under the lock
+ * and decode the records outside of it, so they don't hold up the writer.
+ */
+public class LogStore {
+
+	// records per index entry
+	private static final int INDEX_INTERVAL = 64;
+	// bytes of the first copy of a segment being written, doubled as needed
+	private static final int INITIAL_COPY = 64 * 1024;
+
+	/**
+	 * One segment file and its sparse index
+	 */
+	private static class Segment {
+		private final File file;
+		private long length = 0;				// bytes readable
+		private int records = 0;				// records readable
+		private int pending = 0;				// records written, readable after the next flush
+		private long[] positions = new long[16];
+		private long[] timestamps = new long[16];
+		private int entries = 0;
+		private MappedByteBuffer mapped;
+		private byte[] written;					// bytes of the segment being written, null when done
+
+		private Segment(File file) {
+			this.file = file;
+		}
+
+		/**
+		 * @param position of the record in the segment
+		 * @param timestamp of the record
+		 */
+		private void add(long position, long timestamp) {
+			if (pending % INDEX_INTERVAL == 0) {
+				if (entries == positions.length) {
+					positions = Arrays.copyOf(positions, entries * 2);
+					timestamps = Arrays.copyOf(timestamps, entries * 2);
+				}
+				positions[entries] = position;
+				timestamps[entries] = timestamp;
+				entries++;
+			}
+			pending++;
+		}
+
+		/**
+		 * @return the readable part of the segment, positioned at its start
+		 * @throws IOException
+		 */
+		private ByteBuffer map() throws IOException {
+			if (written != null) {
+				// the writer only appends behind the readable bytes or replaces the array
+				ByteBuffer buffer = ByteBuffer.wrap(written);
+				buffer.limit((int) length);
+				return buffer;
+			}
+			if (mapped == null || mapped.capacity() < length) {
+				// the segment grew since it was mapped
+				try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+					mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+				}
+			}
+			ByteBuffer buffer = mapped.duplicate();
+			buffer.limit((int) length);
+			return buffer;
+		}
+
+		/**
+		 * @param position of the record in the segment
+		 * @param record encoded record
+		 */
+		private void copy(long position, byte[] record) {
+			if (written == null) {
+				written = new byte[INITIAL_COPY];
+			}
+			if (position + record.length > written.length) {
+				written = Arrays.copyOf(written, (int) Math.max(written.length * 2L, position + record.length));
+			}
+			System.arraycopy(record, 0, written, (int) position, record.length);
+		}
+
+		/**
+		 * @param entry index entry
+		 * @return number of the first record of the entry
+		 */
+		private static int ordinal(int entry) {
+			return entry * INDEX_INTERVAL;
+		}
+
+		/**
+		 * @return index entries of the readable records
+		 */
+		private int readableEntries() {
+			return Math.min(entries, (records + INDEX_INTERVAL - 1) / INDEX_INTERVAL);
+		}
+
+		/**
+		 * Called with the lock held, the writer only appends to the index arrays
+		 * or replaces them, so the snapshot can share them
+		 *
+		 * @return the readable part of the segment
+		 * @throws IOException
+		 */
+		private Snapshot snapshot() throws IOException {
+			return new Snapshot(file, records, readableEntries(), positions, timestamps, (records == 0 ? null : map()));
+		}
+	}
+
+	/**
+	 * Readable part of a segment at the time of a query
+	 */
+	private static class Snapshot {
+		private final File file;
+		private final int records;
+		private final int entries;
+		private final long[] positions;
+		private final long[] timestamps;
+		private final ByteBuffer buffer;
+
+		private Snapshot(File file, int records, int entries, long[] positions, long[] timestamps, ByteBuffer buffer) {
+			this.file = file;
+			this.records = records;
+			this.entries = entries;
+			this.positions = positions;
+			this.timestamps = timestamps;
+			this.buffer = buffer;
+		}
+	}
+
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private long lastTimestamp = 0;
+
+	/**
+	 * Indexes the existing segments of the node
+	 *
+	 * @param directory the log directory
+	 * @param nodeName
+	 * @throws IOException
+	 */
+	public LogStore(File directory, String nodeName) throws IOException {
+		for (File file : ComputationLog.segments(directory, nodeName)) {
+			Segment segment = new Segment(file);
+			segment.length = file.length();
+			if (segment.length == 0) {
+				continue;
+			}
+			ByteBuffer buffer = segment.map();
+			int position = buffer.position();
+			LogRecord record;
+			while ((record = LogRecord.decode(buffer)) != null) {
+				segment.add(position, record.getTimestamp());
+				lastTimestamp = record.getTimestamp();
+				position = buffer.position();
+			}
+			// a torn record at the end is not readable
+			segment.records = segment.pending;
+			segment.length = position;
+			segments.add(segment);
+		}
+	}
+
+	// ------------------------------------------------ writer ----------------------------------------------
+
+	/**
+	 * @param file the new segment the writer appends to
+	 */
+	synchronized void segmentStarted(File file) {
+		segments.add(new Segment(file));
+	}
+
+	/**
+	 * The current segment is complete, it is mapped by the next query
+	 */
+	synchronized void segmentClosed() {
+		segments.get(segments.size() - 1).written = null;
+	}
+
+	/**
+	 * @param position of the record in the current segment
+	 * @param timestamp of the record
+	 * @param record encoded record
+	 */
+	synchronized void recordWritten(long position, long timestamp, byte[] record) {
+		Segment segment = segments.get(segments.size() - 1);
+		segment.add(position, timestamp);
+		segment.copy(position, record);
+		lastTimestamp = timestamp;
+	}
+
+	/**
+	 * @param length bytes of the current segment written, all records so far are readable
+	 */
+	synchronized void segmentWritten(long length) {
+		Segment segment = segments.get(segments.size() - 1);
+		segment.length = length;
+		segment.records = segment.pending;
+	}
+
+	// ------------------------------------------------ queries ----------------------------------------------
+
+	/**
+	 * @return timestamp of the last record, 0 if the log is empty,
+	 *         new records must not get an earlier one
+	 */
+	public synchronized long lastTimestamp() {
+		return lastTimestamp;
+	}
+
+	/**
+	 * @param count number of records
+	 * @return the last records, oldest first
+	 * @throws IOException
+	 */
+	public List<LogRecord> last(int count) throws IOException {
+		List<Snapshot> snapshots = new ArrayList<Snapshot>();
+		int skip = 0;
+		int needed = Math.max(0, count);
+		synchronized (this) {
+			// find the segment and record to start with
+			int first = segments.size();
+			while (needed > 0 && first > 0) {
+				first--;
+				int records = segments.get(first).records;
+				skip = Math.max(0, records - needed);
+				needed -= records - skip;
+			}
+			for (int index = first; index < segments.size(); index++) {
+				snapshots.add(segments.get(index).snapshot());
+			}
+		}
+		List<LogRecord> result = new ArrayList<LogRecord>(Math.max(0, count) - needed);
+		for (int index = 0; index < snapshots.size(); index++) {
+			Snapshot snapshot = snapshots.get(index);
+			if (snapshot.records == 0) {
+				continue;
+			}
+			int entry = (index == 0 ? skip / INDEX_INTERVAL : 0);
+			read(snapshot, entry, (index == 0 ? skip : 0), Long.MIN_VALUE, Long.MAX_VALUE, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @param from time in ms, inclusive
+	 * @param to time in ms, inclusive
+	 * @return the records of the time range, oldest first
+	 * @throws IOException
+	 */
+	public List<LogRecord> between(long from, long to) throws IOException {
+		List<Snapshot> snapshots = new ArrayList<Snapshot>();
+		synchronized (this) {
+			// the last segment starting before the range
+			int first = 0;
+			int low = 0;
+			int high = segments.size() - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				Segment segment = segments.get(middle);
+				if (segment.readableEntries() > 0 && segment.timestamps[0] < from) {
+					first = middle;
+					low = middle + 1;
+				} else {
+					high = middle - 1;
+				}
+			}
+			for (int index = first; index < segments.size(); index++) {
+				Segment segment = segments.get(index);
+				if (segment.readableEntries() == 0) {
+					continue;
+				}
+				if (segment.timestamps[0] > to) {
+					break;
+				}
+				snapshots.add(segment.snapshot());
+			}
+		}
+		List<LogRecord> result = new ArrayList<LogRecord>();
+		for (Snapshot snapshot : snapshots) {
+			// the last entry starting before the range
+			int entry = 0;
+			int low = 0;
+			int high = snapshot.entries - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				if (snapshot.timestamps[middle] < from) {
+					entry = middle;
+					low = middle + 1;
+				} else {
+					high = middle - 1;
+				}
+			}
+			if (! read(snapshot, entry, Segment.ordinal(entry), from, to, result)) {
+				break;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Decodes the readable records of a segment starting at an index entry
+	 *
+	 * @param snapshot readable part of the segment
+	 * @param entry index entry to start at
+	 * @param start number of the first record to return
+	 * @param from only records at or after this time
+	 * @param to stop at the first record after this time
+	 * @param result collects the records
+	 * @return false if a record after the time range was found
+	 * @throws IOException
+	 */
+	private boolean read(Snapshot snapshot, int entry, int start, long from, long to, List<LogRecord> result) throws IOException {
+		ByteBuffer buffer = snapshot.buffer;
+		buffer.position((int) snapshot.positions[entry]);
+		for (int ordinal = Segment.ordinal(entry); ordinal < snapshot.records; ordinal++) {
+			LogRecord record = LogRecord.decode(buffer);
+			if (record == null) {
+				throw new IOException(String.format("Corrupt record %d in segment '%s'", ordinal, snapshot.file));
+			}
+			if (ordinal < start || record.getTimestamp() < from) {
+				continue;
+			}
+			if (record.getTimestamp() > to) {
+				return false;
+			}
+			result.add(record);
+		}
+		return true;
+	}
+}
@@ -43,4 +43,28 @@ public interface ITcpNodeControllerCli {
 	 */
 	String commit(int ressourceLevel);
 
+	/**
+	 * Process a command of the ressource agreement for this node
+	 * and relay it to the nodes of its group.
+	 * 
+	 * @param phase 'share', 'commit' or 'rollback'
+	 * @param ressourceLevel
+	 * @param fanout maximal connections per node
+	 * @param timeout time in ms every node has to answer
+	 * @param nodes nodes of the group, 'host:port' separated by ','
+	 * @return '!ok' or '!nok' for share, '!ack N' with the number of acknowledging nodes otherwise
+	 */
+	String relay(String phase, int ressourceLevel, int fanout, int timeout, String nodes);
+
+	/**
+	 * Process a request tagged by the controller,
+	 * so it can have many requests in flight on one connection.
+	 * The request is served concurrently, '!tagged <tag> <response>' is sent when it is done.
+	 * 
+	 * @param tag id of the request
+	 * @param request the request, e.g. '!compute 1 + 2'
+	 * @return null, the response is sent on its own
+	 */
+	String tagged(String tag, String request);
+
 }
@@ -1,13 +1,16 @@
 package node.tcp;
 
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.net.Socket;
-import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import node.Node;
 
@@ -15,107 +18,257 @@ import node.Node;
  * This component is called by a node if a node wants to join.
  * It sends the "!share X" (X is the amount of resources that can be consumed by every node) command to all nodes.
  * It is also responsible for managing the results (Either "!ok" or "!nok").
+ * All nodes are asked in parallel, the replies are collected as they arrive,
+ * so the agreement takes as long as the slowest node, at most the timeout.
+ * The first "!nok", error or timeout decides against the agreement without waiting for the others.
+ * Commit or rollback is sent to all nodes in parallel as well and their acknowledgements are collected.
+ * <p>
+ * With more nodes than the fan-out the nodes are split into as many groups as the fan-out.
+ * The first node of a group relays the command to the rest of its group the same way
+ * ("!relay share X ...") and answers for the whole group, "!ok" only if all of them agreed
+ * and "!ack N" with the number of acknowledging nodes. So a join needs log(nodes) hops
+ * and no node opens more connections than the fan-out.
  */
 public class RessourceAgreementCollector {
 
+	// maximal concurrent connections
+	private static final int THREAD_LIMIT = 32;
+
 	private Integer nodeCount;
-	private AtomicInteger oksReceived = new AtomicInteger(0);
-	private AtomicInteger noksReceived = new AtomicInteger(0);
-	private ArrayList<String> nodeList;
+	private List<String> nodeList;
 	private Node node;
-	private String newLineString = System.getProperty("line.separator");
+	private int fanout;
+	private int timeout;
+
+	/**
+	 * @param node the node wanting to join
+	 * @param nodeList the other nodes, 'host:port'
+	 */
+	public RessourceAgreementCollector(Node node, List<String> nodeList) {
+		this(node, nodeList, node.getConfig().getInt("node.agreement.fanout"), node.getConfig().getInt("node.agreement.timeout"));
+	}
 
-	public RessourceAgreementCollector(Node node, ArrayList<String> nodeList) {
+	/**
+	 * @param node the node wanting to join or relaying for it
+	 * @param nodeList the other nodes, 'host:port'
+	 * @param fanout maximal connections per node, 0 to ask all nodes directly
+	 * @param timeout time in ms every node has to answer
+	 */
+	public RessourceAgreementCollector(Node node, List<String> nodeList, int fanout, int timeout) {
 		this.node = node;
 		this.nodeList = nodeList;
+		this.fanout = fanout;
+		this.timeout = timeout;
 	}
 
 	/**
-	 * This method returns true if every node replies with "!ok", and returns false if more than one replies with "!nok".
+	 * This method returns true if every node replies with "!ok", and returns false if at least one replies with "!nok",
+	 * fails or does not reply within the timeout.
 	 * 
 	 * @param ressourceLevel
 	 * @return Boolean Result of the ressource agreement collection runs.
-	 * @throws NumberFormatException
-	 * @throws UnknownHostException
-	 * @throws IOException
 	 */
-	public Boolean doCollection(int ressourceLevel) throws NumberFormatException, UnknownHostException, IOException {
+	public Boolean doCollection(int ressourceLevel) {
 		nodeCount = nodeList.size();
-		int threadLimit = 10;
-		
-		// limit maximal concurrent threads if there would be more than "threadLimit" threads
-		if (nodeCount <= threadLimit) {
-			threadLimit = nodeCount;
-		}
-		
-		ExecutorService executor = Executors.newFixedThreadPool(threadLimit);
-
-		// send "!share X" command to all nodes
-		for (String node : nodeList) {
-			
-			String host = node.split(":")[0];
-			String port = node.split(":")[1];
-
-			Runnable runner = new RessourceAgreementCollectorRunner(host, port, ressourceLevel, oksReceived, noksReceived, this.node);
-			executor.execute(runner);
-			
-		}
-
-		// wait for thread pool finish
-		executor.shutdown();
-		while (!executor.isTerminated()) {
-			try {
-				Thread.sleep(1000);
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				this.node.getShell().printErrLine("Error: " + e.toString());
+		if (nodeCount == 0) {
+			this.node.setRessourceLevel(ressourceLevel);
+			return true;
+		}
+		ExecutorService executor = newExecutor();
+		try {
+			if (vote(executor, ressourceLevel)) {
+				// all nodes agreed, send a "!commit X" message to all nodes
+				this.node.getShell().printLine(String.format("All %s nodes agreed to ressource Level %s", nodeCount, ressourceLevel));
+				sendCommandToNodes(executor, "commit", ressourceLevel);
+				this.node.setRessourceLevel(ressourceLevel);
+				return true;
 			}
+			// send a "!rollback X" message to all nodes
+			sendCommandToNodes(executor, "rollback", ressourceLevel);
+			return false;
+		} finally {
+			executor.shutdownNow();
 		}
+	}
 
-		// if all nodes agreed, send a "!commit X" message to all nodes
-		Boolean allNodesAgreed = ( (noksReceived.intValue() == 0) && (oksReceived.intValue() == nodeCount) );
+	/**
+	 * Relays a command of the agreement to the nodes of the group of this node,
+	 * the node itself has already processed the command
+	 *
+	 * @param phase 'share', 'commit' or 'rollback'
+	 * @param ressourceLevel
+	 * @return '!ok' or '!nok' for share, '!ack N' with the acknowledging nodes including this one otherwise
+	 */
+	public String relay(String phase, int ressourceLevel) {
+		nodeCount = nodeList.size();
+		ExecutorService executor = newExecutor();
+		try {
+			if ("share".equals(phase)) {
+				return vote(executor, ressourceLevel) ? "!ok" : "!nok";
+			}
+			return "!ack " + (1 + sendCommandToNodes(executor, phase, ressourceLevel));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
 
-		if (allNodesAgreed) {
-			
-			// all nodes agreed
-			this.node.getShell().printLine(String.format("All %s nodes agreed to ressource Level %s", nodeCount, ressourceLevel));
-			sendCommandToNodes("!commit" + " " + ressourceLevel, "commit");
-			this.node.setRessourceLevel(ressourceLevel);
+	/**
+	 * Sends "!share X" to all nodes and collects the votes as they arrive
+	 *
+	 * @return true if all nodes agreed
+	 */
+	private boolean vote(ExecutorService executor, int ressourceLevel) {
+		CompletionService<String> replies = new ExecutorCompletionService<String>(executor);
+		Map<Future<String>, Integer> shares = new HashMap<Future<String>, Integer>();
+		for (List<String> group : groups()) {
+			shares.put(replies.submit(participant(group, "share", ressourceLevel)), group.size());
+		}
+
+		int oksReceived = 0;
+		String refusal = null;
+		long deadline = System.currentTimeMillis() + (long) timeout * levels(nodeCount);
+		while (oksReceived < nodeCount && refusal == null) {
+			Future<String> reply = next(replies, deadline);
+			String vote = reply == null ? null : reply(reply);
+			if ("!ok".equals(vote)) {
+				oksReceived += shares.get(reply);
+			} else {
+				refusal = (vote == null ? "no reply" : vote);
+			}
+		}
+		if (refusal == null) {
 			return true;
-			
-		} else {
-			
-			// not all nodes agreed, send a "!rollback X" message to all nodes and print a error message
-			String rollbackMsg = "Error: %s of %s nodes didn't agree to the ressource level %s. Need to send rollback commands.";
-			this.node.getShell().printErrLine(String.format(rollbackMsg, noksReceived.intValue(), nodeCount, ressourceLevel));
-			sendCommandToNodes("!rollback" + " " + ressourceLevel, "rollback");
-			return false;
-			
 		}
+
+		// not all nodes agreed, the others don't need to answer any more
+		for (Future<String> share : shares.keySet()) {
+			share.cancel(true);
+		}
+		String rollbackMsg = "Error: Node didn't agree to the ressource level %s (%s) after %s of %s nodes agreed. Need to send rollback commands.";
+		this.node.getShell().printErrLine(String.format(rollbackMsg, ressourceLevel, refusal, oksReceived, nodeCount));
+		return false;
 	}
 
 	/**
-	 * Sends a message to all nodes currently in the node list.
+	 * Sends a message to all nodes currently in the node list in parallel
+	 * and waits for their acknowledgements.
+	 *
+	 * @param phase 'commit' or 'rollback'
+	 * @return number of acknowledging nodes
 	 */
-	private void sendCommandToNodes(String command, String type) {
-		this.node.getShell().printLine(String.format("Sending %s command to %s nodes.", type, nodeCount));
-
-		for (String node : nodeList) {
-			Socket clientSocket;
-
-			String host = node.split(":")[0];
-			String port = node.split(":")[1];
-
-			try {
-				clientSocket = new Socket(host, Integer.parseInt(port));
-				DataOutputStream outToServer = new DataOutputStream(clientSocket.getOutputStream());
-				String sentence = command + newLineString;
-				byte[] sentenceBytes = sentence.getBytes();
-				outToServer.write(sentenceBytes);
-				this.node.getShell().printLine(String.format("Sent command '%s' to node '%s'", sentence.trim(), node));
-			} catch (Exception e) {
-				this.node.getShell().printErrLine("Error: " + e.toString());
+	private int sendCommandToNodes(ExecutorService executor, String phase, int ressourceLevel) {
+		this.node.getShell().printLine(String.format("Sending %s command to %s nodes.", phase, nodeCount));
+
+		CompletionService<String> acknowledgements = new ExecutorCompletionService<String>(executor);
+		List<List<String>> groups = groups();
+		for (List<String> group : groups) {
+			acknowledgements.submit(participant(group, phase, ressourceLevel));
+		}
+		int acknowledged = 0;
+		long deadline = System.currentTimeMillis() + (long) timeout * levels(nodeCount);
+		for (int index = 0; index < groups.size(); index++) {
+			Future<String> reply = next(acknowledgements, deadline);
+			String acknowledgement = reply == null ? null : reply(reply);
+			if (acknowledgement == null) {
+				continue;
 			}
-		}		
+			if (acknowledgement.startsWith("!ack ")) {
+				// a relay answers for its group
+				acknowledged += Integer.parseInt(acknowledgement.substring("!ack ".length()).trim());
+			} else {
+				acknowledged++;
+			}
+		}
+		if (acknowledged < nodeCount) {
+			this.node.getShell().printErrLine(String.format("Error: Only %s of %s nodes acknowledged the %s command.", acknowledged, nodeCount, phase));
+		}
+		return acknowledged;
+	}
+
+	/**
+	 * @return the node list split into at most fan-out groups of about the same size
+	 */
+	private List<List<String>> groups() {
+		int count = (fanout <= 0 ? nodeCount : Math.min(fanout, nodeCount));
+		List<List<String>> groups = new ArrayList<List<String>>(count);
+		for (int index = 0; index < count; index++) {
+			groups.add(nodeList.subList(index * nodeCount / count, (index + 1) * nodeCount / count));
+		}
+		return groups;
+	}
+
+	/**
+	 * @param count number of nodes
+	 * @return hops until the farthest of the nodes received a command
+	 */
+	private int levels(int count) {
+		if (count == 0) {
+			return 0;
+		}
+		if (fanout <= 0 || count <= fanout) {
+			return 1;
+		}
+		// the largest group, its first node relays to the others
+		int group = (count + fanout - 1) / fanout;
+		return 1 + levels(group - 1);
+	}
+
+	/**
+	 * @param group nodes of one group, 'host:port'
+	 * @param phase 'share', 'commit' or 'rollback'
+	 * @return the runner sending the command to the first node of the group, which relays it to the others
+	 */
+	private RessourceAgreementCollectorRunner participant(List<String> group, String phase, int ressourceLevel) {
+		String[] address = group.get(0).split(":");
+		if (group.size() == 1) {
+			return new RessourceAgreementCollectorRunner(address[0], address[1], "!" + phase + " " + ressourceLevel, timeout, this.node);
+		}
+		List<String> others = group.subList(1, group.size());
+		String command = String.format("!relay %s %s %s %s %s", phase, ressourceLevel, fanout, timeout, String.join(",", others));
+		return new RessourceAgreementCollectorRunner(address[0], address[1], command, timeout * (1 + levels(others.size())), this.node);
+	}
+
+	/**
+	 * @return a pool with one thread per group
+	 */
+	private ExecutorService newExecutor() {
+		int groups = (fanout <= 0 ? nodeCount : Math.min(fanout, nodeCount));
+		return Executors.newFixedThreadPool(Math.max(1, Math.min(groups, THREAD_LIMIT)));
+	}
+
+	/**
+	 * Waits for the next reply of any node
+	 *
+	 * @param replies
+	 * @param deadline time in ms
+	 * @return the finished reply or null on timeout
+	 */
+	private Future<String> next(CompletionService<String> replies, long deadline) {
+		try {
+			Future<String> reply = replies.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			if (reply == null) {
+				this.node.getShell().printErrLine("Error: Node did not reply in time.");
+			}
+			return reply;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * @param reply a finished reply
+	 * @return the reply or null on error
+	 */
+	private String reply(Future<String> reply) {
+		try {
+			return reply.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			this.node.getShell().printErrLine("Error: " + e.getCause().toString());
+			return null;
+		}
 	}
-}
\ No newline at end of file
+}
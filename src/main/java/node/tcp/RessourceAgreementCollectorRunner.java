@@ -2,62 +2,66 @@ package node.tcp;
 
 import java.io.BufferedReader;
 import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Callable;
 
 import node.Node;
 
-public class RessourceAgreementCollectorRunner implements Runnable {
+/**
+ * Sends one command of the ressource agreement to one node and returns its reply.
+ * The connection and the reply are limited by the timeout of the participant.
+ */
+public class RessourceAgreementCollectorRunner implements Callable<String> {
 
 	private String host;
 	private String port;
-	private Integer ressourceLevel;
+	private String command;
+	private int timeout;
 	private String newLineString = System.getProperty("line.separator");
-	private AtomicInteger oksReceived;
-	private AtomicInteger noksReceived;
 	private Node node;
 
-	public RessourceAgreementCollectorRunner(String host, String port, Integer ressourceLevel, AtomicInteger oksReceived, AtomicInteger noksReceived, Node node) {
+	/**
+	 * @param host address of the node
+	 * @param port TCP port of the node
+	 * @param command e.g. '!share 500'
+	 * @param timeout time in ms to connect and to wait for the reply
+	 * @param node the node collecting the agreement
+	 */
+	public RessourceAgreementCollectorRunner(String host, String port, String command, int timeout, Node node) {
 		this.host = host;
 		this.port = port;
-		this.ressourceLevel = ressourceLevel;
-		this.oksReceived = oksReceived;
-		this.noksReceived = noksReceived;
+		this.command = command;
+		this.timeout = timeout;
 		this.node = node;
 	}
 
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.Callable#call()
+	 */
 	@Override
-	public void run() {
-		Socket clientSocket;
-
-		try {
-			clientSocket = new Socket(host, Integer.parseInt(port));
-			DataOutputStream outToServer = new DataOutputStream(
-					clientSocket.getOutputStream());
-			String sentence = "!share" + " " + ressourceLevel + newLineString;
-			byte[] sentenceBytes = sentence.getBytes();
-			outToServer.write(sentenceBytes);
-
-			// get response (either !ok or !nok)
+	public String call() throws IOException {
+		// the node serves requests until the connection is closed
+		try (Socket clientSocket = new Socket()) {
+			clientSocket.connect(new InetSocketAddress(host, Integer.parseInt(port)), timeout);
+			clientSocket.setSoTimeout(timeout);
+			clientSocket.setTcpNoDelay(true);
+			DataOutputStream outToServer = new DataOutputStream(clientSocket.getOutputStream());
+			String sentence = command + newLineString;
+			outToServer.write(sentence.getBytes());
+
+			// get response, e.g. !ok or !nok
 			BufferedReader inFromServer = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
 			String receivedSentence = inFromServer.readLine();
-
-			// increment "ok"'s received
-			if (receivedSentence.trim().equals("!ok")) {
-				oksReceived.getAndIncrement();
-			}
-
-			// increment "noks" received
-			if (receivedSentence.trim().equals("!nok")) {
-				noksReceived.getAndIncrement();
+			if (receivedSentence == null) {
+				throw new IOException("Connection closed by node " + host + ":" + port);
 			}
 
 			this.node.getShell().printLine(String.format("Node %s replied to command '%s' with '%s'",
-					host + ":" + port, sentence.trim(), receivedSentence.trim()));
-
-		} catch (Exception e) {
-			this.node.getShell().printErrLine("Error: " + e.toString());
+					host + ":" + port, command, receivedSentence.trim()));
+			return receivedSentence.trim();
 		}
 	}
-}
\ No newline at end of file
+}
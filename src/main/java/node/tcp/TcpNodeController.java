@@ -1,46 +1,45 @@
 package node.tcp;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.InterruptedIOException;
 import java.io.PrintStream;
-import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.nio.channels.ClosedByInterruptException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import node.Node;
+import node.log.ComputationLog;
 import cli.Command;
 import cli.AdvancedShell;
+import util.FramedConnection;
+import util.HandlerThreads;
 import util.Message;
 
 /**
- * Thread to communicate with a Controller on the given socket
- * to calculate only one compute-command
+ * Thread to communicate with a Controller on the given socket,
+ * the connection is persistent and serves requests until the controller closes it
  */
-public class TcpNodeController extends Thread implements ITcpNodeControllerCli, Runnable {
+public class TcpNodeController implements ITcpNodeControllerCli, Runnable {
 
-	private static final ThreadLocal<DateFormat> DATE_FORMAT = new ThreadLocal<DateFormat>() {
-		@Override
-		protected DateFormat initialValue() {
-			return new SimpleDateFormat("yyyyMMdd_HHmmss.SSS");
-		}
-	};
+	// ms an idle thread serving tagged requests is kept
+	private static final long TAGGED_IDLE = 60000;
 
 	private Socket controllerSocket;
-	private BufferedReader reader;
-	private PrintWriter writer;
+	private FramedConnection connection;
 	private Node node;
 	private AdvancedShell nodeShell;
 	private AdvancedShell shell;
 	private boolean acceptCommands = true;
 	private final String threadType;
+	private Thread worker;
+	private ThreadPoolExecutor taggedWorkers;
 	private Message message = new Message();
 
 	/**
@@ -53,7 +52,6 @@ public class TcpNodeController extends Thread implements ITcpNodeControllerCli,
 		
 		this.setNodeShell(node.getShell());
 		this.threadType = this.getClass().getName();
-		this.setName(getThreadType() + " " + this.getName());
 		
 		/*
 		 * create a new Shell instance, not used to process interactive commands,
@@ -73,17 +71,10 @@ public class TcpNodeController extends Thread implements ITcpNodeControllerCli,
 	}
 
 	/**
-	 * @param reader the reader to set
-	 */
-	private synchronized void setReader(BufferedReader reader) {
-		this.reader = reader;
-	}
-
-	/**
-	 * @param writer the writer to set
+	 * @param connection the connection to set
 	 */
-	private synchronized void setWriter(PrintWriter writer) {
-		this.writer = writer;
+	private synchronized void setConnection(FramedConnection connection) {
+		this.connection = connection;
 	}
 
 	/**
@@ -130,17 +121,10 @@ public class TcpNodeController extends Thread implements ITcpNodeControllerCli,
 	}
 
 	/**
-	 * @return the reader
+	 * @return the connection
 	 */
-	private synchronized BufferedReader getReader() {
-		return reader;
-	}
-
-	/**
-	 * @return the writer
-	 */
-	private synchronized PrintWriter getWriter() {
-		return writer;
+	private synchronized FramedConnection getConnection() {
+		return connection;
 	}
 
 	/**
@@ -171,6 +155,18 @@ public class TcpNodeController extends Thread implements ITcpNodeControllerCli,
 		return acceptCommands;
 	}
 
+	/**
+	 * @return the threads serving tagged requests, created with the first one
+	 */
+	private synchronized ThreadPoolExecutor getTaggedWorkers() {
+		if (taggedWorkers == null) {
+			// the controller keeps at most a window of tagged requests in flight, so the pool needs no bound
+			taggedWorkers = new ThreadPoolExecutor(0, Integer.MAX_VALUE, TAGGED_IDLE, TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>(),
+					HandlerThreads.factory(getNode().getConfig().getString("tcp.threads"), getThreadType() + " tagged"));
+		}
+		return taggedWorkers;
+	}
+
 	/**
 	 * @return the threadType
 	 */
@@ -185,8 +181,33 @@ public class TcpNodeController extends Thread implements ITcpNodeControllerCli,
 		return message;
 	}
 
+	/**
+	 * Runs this handler on a new thread of the given factory
+	 *
+	 * @param threadFactory platform or virtual threads, see {@link util.HandlerThreads}
+	 */
+	public synchronized void start(ThreadFactory threadFactory) {
+		worker = threadFactory.newThread(this);
+		worker.start();
+	}
+
+	/**
+	 * Waits for the handler thread to die
+	 *
+	 * @throws InterruptedException
+	 */
+	public void join() throws InterruptedException {
+		Thread thread;
+		synchronized (this) {
+			thread = worker;
+		}
+		if (thread != null && thread != Thread.currentThread()) {
+			thread.join();
+		}
+	}
+
 	/* (non-Javadoc)
-	 * @see java.lang.Thread#run()
+	 * @see java.lang.Runnable#run()
 	 */
 	public void run() {
 
@@ -198,15 +219,17 @@ public class TcpNodeController extends Thread implements ITcpNodeControllerCli,
 		
 		try {
 			
-			// prepare the input reader for the socket
-			setReader(new BufferedReader(new InputStreamReader(getControllerSocket().getInputStream())));
-			// prepare the writer for responding to Controllers requests
-			setWriter(new PrintWriter(getControllerSocket().getOutputStream(), true));
+			// prepare the connection, line mode until the controller asks for frames
+			setConnection(new FramedConnection(getControllerSocket()));
 
-			String request;
-			Object response;
-			// read one request from Controller 
-			if ((request = getReader().readLine()) != null && isAcceptCommands() && ! Thread.currentThread().isInterrupted()) {
+			byte[] received = getConnection().read();
+			if (getConnection().accept(received)) {
+				received = getConnection().read();
+			}
+			// read requests from Controller until it closes the connection
+			while (received != null && isAcceptCommands() && ! Thread.currentThread().isInterrupted()) {
+				String request = new String(received);
+				Object response;
 
 				getNodeShell().printLine("Controller sent the following request: " + request);
 				
@@ -225,18 +248,23 @@ public class TcpNodeController extends Thread implements ITcpNodeControllerCli,
 					response = getMessage().node_disconnected; 
 				}
 
-				// return one response
+				// return one response per request
 				if (response != null) {
-					getWriter().println(response);
+					getConnection().write(response.toString());
 					getNodeShell().printLine("Response sent to the controller: " + response);
 				} else {
 					getNodeShell().printLine("No response sent to the controller'.");
 				}
+
+				received = getConnection().read();
 			}
 			// reader not available any more, close
 		} catch (SocketException e) {
 			// ignore socket-error on close
 			getNodeShell().printLine("ignore socket-error on close");
+		} catch (SocketTimeoutException e) {
+			// idle too long, release the handler
+			getNodeShell().printLine("no request within the idle timeout, closing connection");
 		} catch (InterruptedIOException e) {
 			// on InterruptedIOException in readLine just continue closing thread
 			getNodeShell().printLine("on InterruptedIOException in readLine just continue closing thread");
@@ -276,10 +304,21 @@ public class TcpNodeController extends Thread implements ITcpNodeControllerCli,
 			// only entered by the first close() 
 			if (! isPlanned) {
 				// Send information to Controller
-				getWriter().println(getMessage().node_disconnected);
+				if (getConnection() != null) {
+					try {
+						getConnection().write(getMessage().node_disconnected);
+					} catch (IOException e) {
+						// do nothing
+					}
+				}
 				// but dont wait for any response
 			}
 			
+			// tagged requests still running can't send their responses any more
+			if (taggedWorkers != null) {
+				taggedWorkers.shutdown();
+			}
+
 			// close socket
 			closeTCP();
 	
@@ -357,46 +396,10 @@ public class TcpNodeController extends Thread implements ITcpNodeControllerCli,
 			response = String.format("%d", result);
 		}
 
-		String logDirName = node.getLogDir();
-		File logDir = null;
-		try {
-			logDir = new File(logDirName).getCanonicalFile();
-		} catch ( IOException e ) {
-			getNodeShell().printErrLine(String.format("!Error: Could not resolve directory-path '%s'!%n%s", logDir, e.getMessage()));
-		}
-		if (logDir != null && (! logDir.exists() || logDir.isDirectory())) {
-			if (! logDir.exists()) {
-				logDir.mkdirs();
-			}
-			if (logDir.exists()) {
-				String logFileName = String.format("%s/%s_%s.log", logDirName, DATE_FORMAT.get().format(new Date()), node.getNodeName());
-				String logRequest = String.format("%s %s %s%n", num1, operation, num2);
-				String logResponse = String.format("%s", response);		// last line has no trailing newline
-				FileWriter logFile = null;
-				try	{
-					logFile = new FileWriter(logFileName);
-					synchronized (logFile) {
-						logFile.write(logRequest);
-						logFile.append(logResponse);
-					}
-					getNodeShell().printLine(String.format("Log-file '%s' written.", logFileName));
-				}
-				catch ( IOException e ) {
-					getNodeShell().printErrLine(String.format("!Error: Could not write log-file '%s'!%n%s", logFileName, e.getMessage()));
-				}
-				if ( logFile != null ) {
-					try { 
-						logFile.close(); 
-					} catch ( IOException e ) {
-						e.printStackTrace(); 
-					}
-					logFile = null;
-				}
-			} else {
-				getNodeShell().printErrLine(String.format("!Error: Cannot make directory '%s'!", logDirName));
-			}
-		} else {
-			getNodeShell().printErrLine(String.format("!Error: '%s' is not a directory!", logDirName));
+		// appended by the writer of the log, together with the computations of other connections
+		ComputationLog computationLog = getNode().getComputationLog();
+		if (computationLog != null && ! computationLog.append(String.format("%s %s %s", num1, operation, num2), response)) {
+			getNodeShell().printErrLine("!Error: Computation not logged, the log is closed or couldn't write it!");
 		}
 		
 		getNodeShell().printLine("Response: " + response);
@@ -406,15 +409,12 @@ public class TcpNodeController extends Thread implements ITcpNodeControllerCli,
 	@Override
 	@Command
 	public String share(int ressourceLevel) {
-		String newLineString = System.getProperty("line.separator");
-		String result = "";
-		
+		// the line terminator is added by the connection, one response per request
 		if (ressourceLevel >= this.getNode().getConfig().getInt("node.rmin")) {
-			result = "!ok";
+			return "!ok";
 		} else {
-			result = "!nok";
+			return "!nok";
 		}
-		return result + newLineString;
 	}
 	
 	@Override
@@ -430,4 +430,62 @@ public class TcpNodeController extends Thread implements ITcpNodeControllerCli,
 		return String.format("Commit command received for ressource level '%s'", ressourceLevel);
 	}
 
+	/* (non-Javadoc)
+	 * @see node.tcp.ITcpNodeControllerCli#relay(java.lang.String, int, int, int, java.lang.String)
+	 */
+	@Override
+	@Command
+	public String relay(String phase, int ressourceLevel, int fanout, int timeout, String nodes) {
+		String response;
+		if ("share".equals(phase)) {
+			response = share(ressourceLevel);
+			if (! "!ok".equals(response)) {
+				// the group can't agree any more
+				return response;
+			}
+		} else if ("commit".equals(phase)) {
+			response = commit(ressourceLevel);
+		} else if ("rollback".equals(phase)) {
+			response = rollback(ressourceLevel);
+		} else {
+			return getMessage().unknown_command;
+		}
+		getNodeShell().printLine(String.format("Relaying %s command: %s", phase, response));
+		return new RessourceAgreementCollector(getNode(), Arrays.asList(nodes.split(",")), fanout, timeout).relay(phase, ressourceLevel);
+	}
+
+	/* (non-Javadoc)
+	 * @see node.tcp.ITcpNodeControllerCli#tagged(java.lang.String, java.lang.String)
+	 */
+	@Override
+	@Command
+	public String tagged(final String tag, final String request) {
+		// served concurrently, the connection reads the next request meanwhile
+		getTaggedWorkers().execute(new Runnable() {
+			@Override
+			public void run() {
+				Object response;
+				try {
+					response = getShell().invoke(request);
+				} catch (IllegalArgumentException e) {
+					response = getMessage().unknown_command;
+				} catch (InvocationTargetException e) {
+					response = "!Error: " + e.getCause().getMessage();
+				} catch (Throwable throwable) {
+					response = "!Error: " + throwable.getMessage();
+				}
+				String tagged = String.format("!tagged %s %s", tag, response);
+				try {
+					// whole frames only, the responses of other tagged requests are written concurrently
+					getConnection().write(tagged);
+					getNodeShell().printLine("Response sent to the controller: " + tagged);
+				} catch (IOException e) {
+					getNodeShell().printLine("connection closed before the response of tag " + tag + " was sent");
+				}
+			}
+		});
+		// the response is sent by the worker
+		return null;
+	}
+
 }
\ No newline at end of file
@@ -4,24 +4,68 @@ import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import node.Node;
 import cli.AdvancedShell;
+import util.HandlerThreads;
+import util.Message;
 
 /**
  * Thread to listen for incoming TCP connections on the given socket.
- */
-/**
+ * The connections are served by a bounded pool of handlers if 'tcp.workers' is set,
+ * a connection finding all handlers busy and the queue full is refused with 'node_overloaded'.
+ * A pooled handler closes its connection after 'tcp.idle' ms without a request,
+ * so idle persistent connections don't keep the handlers from serving waiting ones.
+ *
  * @author Robert Bekker (8325143)
  *
  */
 public class TcpNodeListener extends Thread {
 
+	// ms an idle handler of the pool is kept
+	private static final long WORKER_IDLE = 60000;
+
 	private ServerSocket serverSocket;
 	private Node node;
 	private AdvancedShell nodeShell;
 	private final String threadType;
 	private boolean acceptCommands = true;
+	private ThreadFactory handlerThreads;
+	private ThreadPoolExecutor workers;
+	private int idleTimeout;
+	private Message message = new Message();
+	private String newLineString = System.getProperty("line.separator");
+
+	/**
+	 * Connection waiting for a handler of the pool
+	 */
+	private class Connection implements Runnable {
+		private final Socket socket;
+
+		Connection(Socket socket) {
+			this.socket = socket;
+		}
+
+		@Override
+		public void run() {
+			try {
+				socket.setSoTimeout(getIdleTimeout());
+			} catch (SocketException e) {
+				// closed meanwhile, the handler notices it
+			}
+			// the handler serves requests until the controller closes the connection or it is idle too long
+			new TcpNodeController(getNode(), socket).run();
+			// the handler interrupts itself when done, the thread serves the next connection
+			Thread.interrupted();
+		}
+	}
 
 	/**
 	 * @param node Node object
@@ -35,6 +79,18 @@ public class TcpNodeListener extends Thread {
 		this.threadType = this.getClass().getName();
 		this.setName(getThreadType() + " " + this.getName());
 		
+		// per-connection handlers run on platform or virtual threads
+		this.setHandlerThreads(HandlerThreads.factory(node.getConfig().getString("tcp.threads"), TcpNodeController.class.getName()));
+		int workers = node.getConfig().getInt("tcp.workers");
+		if (workers > 0) {
+			int queue = node.getConfig().getInt("tcp.queue");
+			BlockingQueue<Runnable> waiting = (queue > 0 ? new ArrayBlockingQueue<Runnable>(queue) : new SynchronousQueue<Runnable>());
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(workers, workers, WORKER_IDLE, TimeUnit.MILLISECONDS, waiting, getHandlerThreads());
+			executor.allowCoreThreadTimeOut(true);
+			this.setWorkers(executor);
+			this.setIdleTimeout(node.getConfig().getInt("tcp.idle"));
+		}
+
 		// register in shared list to be accessible from outside
 		this.getNode().getThreadsMap().put(this, getThreadType());
 	}
@@ -67,6 +123,55 @@ public class TcpNodeListener extends Thread {
 		this.acceptCommands = acceptCommands;
 	}
 
+	/**
+	 * @param handlerThreads the handlerThreads to set
+	 */
+	private synchronized void setHandlerThreads(ThreadFactory handlerThreads) {
+		this.handlerThreads = handlerThreads;
+	}
+
+	/**
+	 * @param workers the workers to set
+	 */
+	private synchronized void setWorkers(ThreadPoolExecutor workers) {
+		this.workers = workers;
+	}
+
+	/**
+	 * @param idleTimeout the idleTimeout to set
+	 */
+	private synchronized void setIdleTimeout(int idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * @return time in ms a pooled handler waits for the next request
+	 */
+	private synchronized int getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * @return the workers, null for one thread per connection
+	 */
+	private synchronized ThreadPoolExecutor getWorkers() {
+		return workers;
+	}
+
+	/**
+	 * @return the message
+	 */
+	private synchronized Message getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return the handlerThreads
+	 */
+	private synchronized ThreadFactory getHandlerThreads() {
+		return handlerThreads;
+	}
+
 	/**
 	 * @return the serverSocket
 	 */
@@ -119,8 +224,16 @@ public class TcpNodeListener extends Thread {
 
 				getNodeShell().printLine("Accept connection from controller.");
 
-				// fork an own thread for each connected client
-				new TcpNodeController(getNode(), socket).start();
+				if (getWorkers() == null) {
+					// fork an own thread for each connected client
+					new TcpNodeController(getNode(), socket).start(getHandlerThreads());
+				} else {
+					try {
+						getWorkers().execute(new Connection(socket));
+					} catch (RejectedExecutionException e) {
+						refuse(socket);
+					}
+				}
 			} catch (SocketException e) {
 				// ignore socket-error on close
 				break;
@@ -133,6 +246,27 @@ public class TcpNodeListener extends Thread {
 		getNodeShell().printLine("TCP Listener-Thread shut down completed.");
 	}
 	
+	/**
+	 * Answers a connection which can't be served with 'node_overloaded' and closes it,
+	 * so the controller can try another node at once
+	 *
+	 * @param socket
+	 */
+	private void refuse(Socket socket) {
+		getNodeShell().printErrLine("All handlers busy, connection refused: " + getMessage().node_overloaded);
+		try {
+			socket.getOutputStream().write((getMessage().node_overloaded + newLineString).getBytes());
+		} catch (IOException e) {
+			// controller is gone anyway
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// do nothing
+			}
+		}
+	}
+
 	/**
 	 * Atomic method to disable the use of commands
 	 *  
@@ -153,6 +287,17 @@ public class TcpNodeListener extends Thread {
 		// disable race conditions
 		if (disableCommands()) {
 			closeTCP();
+
+			// running handlers are closed by the node, waiting connections are dropped
+			if (getWorkers() != null) {
+				for (Runnable waiting : getWorkers().shutdownNow()) {
+					try {
+						((Connection) waiting).socket.close();
+					} catch (IOException e) {
+						// do nothing
+					}
+				}
+			}
 	
 			// remove from list of active threads
 			this.getNode().getThreadsMap().remove(this);
@@ -13,6 +13,19 @@ public interface IUdpNodeSenderCli {
 	 */
 	String alive(int udpPort, String operations, String address, int tcpPort) throws IOException;
 
+	/**
+	 * Sends a compact heartbeat with the version of the operations instead of the operations.
+	 *
+	 * @param udpPort UDP port of the controller
+	 * @param address address of the controller
+	 * @param tcpPort TCP port of the node
+	 * @param version version of the operations
+	 * @return processing result
+	 * @throws IOException
+	 *			if an I/O error occurs
+	 */
+	String beat(int udpPort, String address, int tcpPort, int version) throws IOException;
+
 	/**
 	 * Sends a hello message.
 	 * 
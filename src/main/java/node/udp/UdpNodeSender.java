@@ -4,6 +4,8 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.regex.Matcher;
@@ -18,9 +20,12 @@ import node.tcp.RessourceAgreementCollector;
 import cli.Command;
 import cli.AdvancedShell;
 import util.Config;
+import util.Heartbeats;
 
 /**
  * Thread to send isAlive packages on the given UDP socket.
+ * The operations are only sent in the first package and whenever the controller asks for them,
+ * all other packages carry the version of the operations only.
  */
 public class UdpNodeSender extends Thread implements IUdpNodeSenderCli {
 
@@ -223,24 +228,63 @@ public class UdpNodeSender extends Thread implements IUdpNodeSenderCli {
 		
 		// public String alive(int udpPort, String operations, String address, int tcpPort) throws IOException {
 		String alive = "!alive " + udpPortNr + " " + operations + " " + getConfig().getString("controller.host") + " " + tcpPortNr;
+		// public String beat(int udpPort, String address, int tcpPort, int version) throws IOException {
+		String beat = "!beat " + udpPortNr + " " + getConfig().getString("controller.host") + " " + tcpPortNr + " " + Heartbeats.version(operations);
+		boolean full = true;
 		@SuppressWarnings("unused")
 		Object response = null;
 		try {
 			while (isAcceptCommands() && ! Thread.currentThread().isInterrupted()) {
-				response = getShell().invoke(alive);
+				response = getShell().invoke(full ? alive : beat);
 				if (isAcceptCommands() && ! Thread.currentThread().isInterrupted()) {
-					Thread.sleep(timeout);
+					// wait for the next package, the controller may ask for the operations meanwhile
+					full = awaitFullRequest(timeout);
 				}
 			}
-		} catch (InterruptedException e) {
-			// do nothing, just close
 		} catch (Throwable e1) {
-			throw new RuntimeException("Invalid command '" + alive + "'.", e1);
+			throw new RuntimeException("Invalid command '" + (full ? alive : beat) + "'.", e1);
 		}
 
 		close();
 	}
 	
+	/**
+	 * Waits for requests of the controller
+	 *
+	 * @param timeout time in ms to wait
+	 * @return true if the controller asked for the operations ('!full')
+	 */
+	private boolean awaitFullRequest(long timeout) {
+		DatagramSocket socket = getSocket();
+		if (socket == null) {
+			return false;
+		}
+		byte[] buffer = new byte[64];
+		DatagramPacket request = new DatagramPacket(buffer, buffer.length);
+		boolean requested = false;
+		long deadline = System.currentTimeMillis() + timeout;
+		long remaining;
+		try {
+			while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+				socket.setSoTimeout((int) remaining);
+				try {
+					socket.receive(request);
+				} catch (SocketTimeoutException e) {
+					break;
+				}
+				if (new String(buffer, 0, request.getLength()).trim().equals(Heartbeats.FULL)) {
+					requested = true;
+				}
+			}
+			socket.setSoTimeout(0);
+		} catch (SocketException e) {
+			// socket closed, just close
+		} catch (IOException e) {
+			getNodeShell().printErrLine("Error occurred while waiting for controller requests: " + e.getMessage());
+		}
+		return requested;
+	}
+
 	/**
 	 * Atomic method to disable the use of commands
 	 *  
@@ -339,6 +383,37 @@ public class UdpNodeSender extends Thread implements IUdpNodeSenderCli {
 		return "'isAlive'-package '" + alive + "' sent.";
 	}
 	
+	/* (non-Javadoc)
+	 * @see node.udp.IUdpNodeSenderCli#beat(int, java.lang.String, int, int)
+	 */
+	@Override
+	@Command
+	public String beat(int udpPort, String address, int tcpPort, int version) throws IOException {
+		InetAddress hostAddress;
+		try {
+			hostAddress = InetAddress.getByName(address);
+		} catch (UnknownHostException e) {
+			throw new RuntimeException("Unknwn host '" + address + "'.", e);
+		}
+
+		byte[] buffer = (Heartbeats.BEAT + " " + tcpPort + " " + version).getBytes();
+		try {
+			if (getSocket() == null) {
+				close();
+				return "Error occurred while sending 'isAlive' packages.";
+			} else if (isAcceptCommands() && ! Thread.currentThread().isInterrupted()) {
+				getSocket().send(new DatagramPacket(buffer, buffer.length, hostAddress, udpPort));
+			} else {
+				return null;
+			}
+		} catch (IOException e) {
+			getNodeShell().printErrLine("Error occurred while sending 'isAlive' packages: " + e.getMessage());
+			close();
+			return "Error occurred while sending 'isAlive' packages: " + e.getMessage();
+		}
+		return null;
+	}
+
 	@Override
 	@Command
 	public String hello(int udpPort, String address) throws IOException {
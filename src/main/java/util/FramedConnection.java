@@ -0,0 +1,295 @@
+package util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Message based wrapper of a TCP socket.
+ *
+ * Two wire formats are supported:
+ *   line mode   - one message per line, binary data Base64 encoded (the original protocol)
+ *   framed mode - 4 byte big-endian length header followed by the raw message bytes
+ *
+ * Every connection starts in line mode. The connecting side may send the line '!frame',
+ * if the accepting side answers '!frame ok' both switch to framed mode,
+ * any other answer means the peer only speaks line mode.
+ * If the peer is already known to speak framed mode, the negotiation can be pipelined
+ * with the first message, see {@link #startFramed()}.
+ * An overloaded peer answers the first message with 'node_overloaded' and closes the connection,
+ * the connecting side gets a {@link ConnectException}.
+ *
+ * Reads and writes are guarded by explicit locks instead of monitors,
+ * so a virtual thread blocked on the socket does not pin its carrier.
+ */
+public class FramedConnection {
+
+	public static final String FRAME_REQUEST = "!frame";
+	public static final String FRAME_ACCEPTED = "!frame ok";
+	public static final int MAX_MESSAGE_LENGTH = 16 * 1024 * 1024;
+	private static final String OVERLOADED = new Message().node_overloaded;
+
+	private static final byte[] NEWLINE = System.getProperty("line.separator").getBytes();
+
+	private final Socket socket;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private final ReentrantLock readLock = new ReentrantLock();
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private volatile boolean framed = false;
+	private boolean acceptPending = false;
+	private byte[] buffer = new byte[1024];
+
+	/**
+	 * @param socket connected socket, starting in line mode
+	 * @throws IOException if the streams can't be opened
+	 */
+	public FramedConnection(Socket socket) throws IOException {
+		this.socket = socket;
+		this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+	}
+
+	/**
+	 * @return the socket
+	 */
+	public Socket getSocket() {
+		return socket;
+	}
+
+	/**
+	 * @return true if messages are length prefixed
+	 */
+	public boolean isFramed() {
+		return framed;
+	}
+
+	/**
+	 * @param framed switch between framed and line mode
+	 */
+	public void setFramed(boolean framed) {
+		this.framed = framed;
+	}
+
+	/**
+	 * Client side of the negotiation
+	 *
+	 * @return true if the peer switched to framed mode
+	 * @throws IOException
+	 */
+	public boolean negotiate() throws IOException {
+		write(FRAME_REQUEST);
+		byte[] answer = read();
+		if (answer != null && OVERLOADED.equals(new String(answer))) {
+			throw new ConnectException(OVERLOADED);
+		}
+		setFramed(answer != null && FRAME_ACCEPTED.equals(new String(answer)));
+		return isFramed();
+	}
+
+	/**
+	 * Client side of the negotiation without waiting for the answer,
+	 * for peers known to speak framed mode.
+	 * The answer is checked before the first framed message is read.
+	 *
+	 * @throws IOException
+	 */
+	public void startFramed() throws IOException {
+		write(FRAME_REQUEST);
+		readLock.lock();
+		try {
+			acceptPending = true;
+		} finally {
+			readLock.unlock();
+		}
+		setFramed(true);
+	}
+
+	/**
+	 * Server side of the negotiation, to be called with the first received message
+	 *
+	 * @param first the first message received in line mode
+	 * @return true if it was a negotiation request which has been accepted
+	 * @throws IOException
+	 */
+	public boolean accept(byte[] first) throws IOException {
+		if (first != null && FRAME_REQUEST.equals(new String(first))) {
+			write(FRAME_ACCEPTED);
+			setFramed(true);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Reads the next message
+	 *
+	 * @return the message without line terminator, or null at end of stream
+	 * @throws IOException
+	 */
+	public byte[] read() throws IOException {
+		readLock.lock();
+		try {
+			if (acceptPending) {
+				// the answer to the pipelined negotiation is still a line
+				acceptPending = false;
+				byte[] answer = readLine();
+				if (answer == null) {
+					return null;
+				}
+				if (OVERLOADED.equals(new String(answer))) {
+					throw new ConnectException(OVERLOADED);
+				}
+				if (! FRAME_ACCEPTED.equals(new String(answer))) {
+					throw new IOException("Peer refused framed mode: " + new String(answer));
+				}
+			}
+			if (framed) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException e) {
+					return null;
+				}
+				if (length < 0 || length > MAX_MESSAGE_LENGTH) {
+					throw new IOException("Invalid message length " + length);
+				}
+				byte[] message = new byte[length];
+				in.readFully(message);
+				return message;
+			}
+			return readLine();
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	/**
+	 * Collects the next line into the reusable buffer, called with the read lock held
+	 *
+	 * @return the line without terminator, or null at end of stream
+	 * @throws IOException
+	 */
+	private byte[] readLine() throws IOException {
+		int length = 0;
+		int next;
+		while ((next = in.read()) != '\n') {
+			if (next == -1) {
+				if (length == 0) {
+					return null;
+				}
+				break;
+			}
+			if (length == buffer.length) {
+				if (length >= MAX_MESSAGE_LENGTH) {
+					throw new IOException("Line too long");
+				}
+				buffer = Arrays.copyOf(buffer, length * 2);
+			}
+			buffer[length++] = (byte) next;
+		}
+		if (length > 0 && buffer[length - 1] == '\r') {
+			length--;
+		}
+		return Arrays.copyOf(buffer, length);
+	}
+
+	/**
+	 * @return the next message as string, or null at end of stream
+	 * @throws IOException
+	 */
+	public String readString() throws IOException {
+		byte[] message = read();
+		if (message == null) {
+			return null;
+		}
+		return new String(message);
+	}
+
+	/**
+	 * Writes one message
+	 *
+	 * @param data
+	 * @throws IOException
+	 */
+	public void write(byte[] data) throws IOException {
+		write(data, 0, data.length);
+	}
+	public void write(String data) throws IOException {
+		write(data.getBytes());
+	}
+	public void write(byte[] data, int offset, int length) throws IOException {
+		writeLock.lock();
+		try {
+			if (framed) {
+				out.writeInt(length);
+				out.write(data, offset, length);
+			} else {
+				out.write(data, offset, length);
+				out.write(NEWLINE);
+			}
+			out.flush();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Binary data has to be Base64 encoded in line mode only
+	 *
+	 * @param data
+	 * @return data ready to be written
+	 */
+	public byte[] encode(byte[] data) {
+		if (framed || data == null) {
+			return data;
+		}
+		return SecurityUtils.encodeB64(data);
+	}
+
+	/**
+	 * @param data
+	 * @return binary data of a received message
+	 */
+	public byte[] decode(byte[] data) {
+		if (framed || data == null) {
+			return data;
+		}
+		return SecurityUtils.decodeB64(data);
+	}
+
+	/**
+	 * Health check of an unused connection, e.g. before reusing it from a pool.
+	 * Data waiting on an unused connection can only be a disconnect notice of the peer.
+	 *
+	 * @return true if the socket is open and nothing is waiting to be read
+	 */
+	public boolean isIdle() {
+		if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+			return false;
+		}
+		try {
+			return in.available() == 0;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Closes the socket
+	 */
+	public void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// do nothing
+		}
+	}
+}
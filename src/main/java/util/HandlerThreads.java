@@ -0,0 +1,74 @@
+package util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates the threads running the per-connection handlers of the listeners.
+ *
+ * Supported modes:
+ *   platform - one ordinary thread per connection (default)
+ *   virtual  - one virtual thread per connection, if the running JVM supports them,
+ *              otherwise falls back to platform threads
+ */
+public final class HandlerThreads {
+
+	public static final String PLATFORM = "platform";
+	public static final String VIRTUAL = "virtual";
+
+	private HandlerThreads() {
+	}
+
+	/**
+	 * @param mode 'platform' or 'virtual'
+	 * @param prefix name prefix of the created threads
+	 * @return a thread factory for the given mode
+	 */
+	public static ThreadFactory factory(String mode, String prefix) {
+		if (VIRTUAL.equalsIgnoreCase(mode.trim())) {
+			ThreadFactory virtualFactory = virtualFactory(prefix);
+			if (virtualFactory != null) {
+				return virtualFactory;
+			}
+		}
+		return platformFactory(prefix);
+	}
+
+	/**
+	 * @param prefix name prefix of the created threads
+	 * @return a factory for ordinary threads
+	 */
+	public static ThreadFactory platformFactory(final String prefix) {
+		return new ThreadFactory() {
+			private final AtomicLong counter = new AtomicLong();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				return new Thread(runnable, prefix + " " + counter.getAndIncrement());
+			}
+		};
+	}
+
+	/**
+	 * The virtual thread builder is looked up by reflection,
+	 * so the sources still compile and run on JVMs without virtual threads.
+	 *
+	 * @param prefix name prefix of the created threads
+	 * @return a factory for virtual threads or null if not supported
+	 */
+	public static ThreadFactory virtualFactory(String prefix) {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix + " ", 0L);
+			Method factory = builderClass.getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			// not available on this JVM (or preview not enabled)
+			return null;
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+}
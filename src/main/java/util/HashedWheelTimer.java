@@ -0,0 +1,209 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Timer for many timeouts on one thread, e.g. the liveness of all nodes.
+ * The timeouts are hashed by their deadline into the buckets of a wheel,
+ * every tick the thread only looks at the bucket of the current tick.
+ * A timeout is created once and its deadline is moved forward without allocation,
+ * the wheel notices the new deadline lazily when it reaches the old one.
+ * Timeouts fire up to one tick late.
+ */
+public class HashedWheelTimer {
+
+	/**
+	 * Resettable timeout of one task
+	 */
+	public final class Timeout {
+		private final Runnable task;
+		private volatile long deadline;		// ms since start of the wheel
+		private volatile boolean cancelled = true;
+		private final AtomicBoolean queued = new AtomicBoolean();
+		private long rounds;				// only used by the wheel thread
+
+		/**
+		 * @param task runs on the wheel thread, must not block
+		 */
+		private Timeout(Runnable task) {
+			this.task = task;
+		}
+
+		/**
+		 * (Re)starts the timeout
+		 *
+		 * @param delay time in ms from now on
+		 */
+		public void reset(long delay) {
+			deadline = elapsed() + delay;
+			cancelled = false;
+			if (queued.compareAndSet(false, true)) {
+				incoming.add(this);
+			}
+		}
+
+		/**
+		 * Stops the timeout, it can be reset again
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+	}
+
+	private final long tick;			// ms
+	private final List<Timeout>[] wheel;
+	private final int mask;
+	private final Queue<Timeout> incoming = new ConcurrentLinkedQueue<Timeout>();
+	private final long startTime = System.nanoTime();
+	private final Thread worker;
+	private volatile boolean running = true;
+	private long ticks = 0;				// only used by the wheel thread
+
+	/**
+	 * @param threadFactory creates the wheel thread
+	 * @param tick duration of one tick in ms
+	 * @param wheelSize number of buckets, rounded up to a power of 2
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public HashedWheelTimer(ThreadFactory threadFactory, long tick, int wheelSize) {
+		int size = 1;
+		while (size < wheelSize) {
+			size <<= 1;
+		}
+		this.tick = Math.max(1, tick);
+		this.wheel = new List[size];
+		for (int index = 0; index < size; index++) {
+			this.wheel[index] = new ArrayList<Timeout>();
+		}
+		this.mask = size - 1;
+		this.worker = threadFactory.newThread(new Runnable() {
+			@Override
+			public void run() {
+				turn();
+			}
+		});
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	/**
+	 * @param task runs on the wheel thread when the timeout expires, must not block
+	 * @return a new timeout, not started until it is reset
+	 */
+	public Timeout newTimeout(Runnable task) {
+		return new Timeout(task);
+	}
+
+	/**
+	 * @return ms since the start of the wheel
+	 */
+	private long elapsed() {
+		return (System.nanoTime() - startTime) / 1000000L;
+	}
+
+	/**
+	 * Loop of the wheel thread
+	 */
+	private void turn() {
+		List<Timeout> expired = new ArrayList<Timeout>();
+		while (running) {
+			long next = (ticks + 1) * tick;
+			long sleep;
+			while ((sleep = next - elapsed()) > 0) {
+				try {
+					Thread.sleep(sleep);
+				} catch (InterruptedException e) {
+					if (! running) {
+						return;
+					}
+				}
+			}
+			Timeout timeout;
+			while ((timeout = incoming.poll()) != null) {
+				insert(timeout, ticks);
+			}
+			expire(wheel[(int) (ticks & mask)], elapsed(), expired);
+			for (Timeout fired : expired) {
+				try {
+					fired.task.run();
+				} catch (RuntimeException e) {
+					// one failing task must not stop the others
+				}
+			}
+			expired.clear();
+			ticks++;
+		}
+	}
+
+	/**
+	 * Puts a timeout into the bucket of its deadline, called by the wheel thread
+	 *
+	 * @param timeout
+	 * @param from the first tick whose bucket is not processed yet
+	 */
+	private void insert(Timeout timeout, long from) {
+		// the bucket of tick t is processed at (t + 1) * tick, so the last tick ending before the deadline
+		long due = Math.max((timeout.deadline + tick - 1) / tick - 1, from);
+		timeout.rounds = (due - from) / wheel.length;
+		wheel[(int) (due & mask)].add(timeout);
+	}
+
+	/**
+	 * Removes cancelled and expired timeouts from a bucket,
+	 * timeouts reset meanwhile are moved to the bucket of their new deadline
+	 *
+	 * @param bucket
+	 * @param now ms since the start of the wheel
+	 * @param expired collects the timeouts to fire
+	 */
+	private void expire(List<Timeout> bucket, long now, List<Timeout> expired) {
+		List<Timeout> moved = null;
+		int index = 0;
+		while (index < bucket.size()) {
+			Timeout timeout = bucket.get(index);
+			if (! timeout.cancelled && timeout.rounds > 0) {
+				timeout.rounds--;
+				index++;
+				continue;
+			}
+			// remove by swapping with the last one, the order does not matter
+			bucket.set(index, bucket.get(bucket.size() - 1));
+			bucket.remove(bucket.size() - 1);
+			timeout.queued.set(false);
+			if (timeout.cancelled) {
+				// a reset from now on queues it again by itself
+				continue;
+			}
+			if (timeout.deadline > now) {
+				// reset since it was inserted
+				if (timeout.queued.compareAndSet(false, true)) {
+					if (moved == null) {
+						moved = new ArrayList<Timeout>();
+					}
+					moved.add(timeout);
+				}
+				continue;
+			}
+			expired.add(timeout);
+		}
+		if (moved != null) {
+			for (Timeout timeout : moved) {
+				// the current bucket is already done
+				insert(timeout, ticks + 1);
+			}
+		}
+	}
+
+	/**
+	 * Stops the wheel thread, pending timeouts never fire
+	 */
+	public void close() {
+		running = false;
+		worker.interrupt();
+	}
+}
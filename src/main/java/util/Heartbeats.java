@@ -0,0 +1,26 @@
+package util;
+
+/**
+ * Format of the heartbeats of the nodes, shared by node and controller.
+ * A node sends its operations ('!alive <tcpPort> <operations>') only when the controller
+ * doesn't know them, otherwise the compact '!beat <tcpPort> <version>' is enough.
+ * The controller answers a beat it can't match with '!full'.
+ */
+public final class Heartbeats {
+
+	public static final String ALIVE = "!alive";
+	public static final String BEAT = "!beat";
+	public static final String FULL = "!full";
+
+	private Heartbeats() {
+	}
+
+	/**
+	 * @param operations supported operations, e.g. '+-'
+	 * @return version of the operations, changes whenever the operations change
+	 */
+	public static int version(String operations) {
+		// the hash code of a string is the same on every JVM
+		return operations.hashCode() & Integer.MAX_VALUE;
+	}
+}
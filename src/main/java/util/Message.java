@@ -15,6 +15,7 @@ public class Message {
 	public final String login_success;
 	public final String unknown_command;
 	public final String node_disconnected; 
+	public final String node_overloaded;
 	public final String unsupported_operation;
 	public final String zero_division;
 	public final String shutdown;
@@ -34,6 +35,7 @@ public class Message {
 			login_success = message.getString("login_success");
 			unknown_command = message.getString("unknown_command");
 			node_disconnected = message.getString("node_disconnected");
+			node_overloaded = message.getString("node_overloaded");
 			unsupported_operation = message.getString("unsupported_operation");
 			zero_division = message.getString("zero_division");
 			shutdown = message.getString("shutdown");
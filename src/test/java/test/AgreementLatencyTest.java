@@ -0,0 +1,238 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import node.Node;
+import node.tcp.RessourceAgreementCollector;
+import node.tcp.TcpNodeController;
+import util.Config;
+import util.NullOutputStream;
+
+/**
+ * Measures how long a node waits for the ressource agreement when it joins.
+ * The other nodes are simulated by sockets answering the agreement commands.
+ */
+public class AgreementLatencyTest {
+
+	private static final int NODES = 8;
+	private static final int DELAY = 20;
+
+	private Node node;
+	private final List<Participant> participants = new ArrayList<Participant>();
+
+	/**
+	 * Simulated node answering every command after a delay
+	 */
+	private static class Participant extends Thread {
+		private final ServerSocket serverSocket;
+		private final String vote;
+		private final int delay;
+		private final List<String> commands = new CopyOnWriteArrayList<String>();
+
+		Participant(String vote, int delay) throws IOException {
+			this.serverSocket = new ServerSocket(0);
+			this.vote = vote;
+			this.delay = delay;
+			setDaemon(true);
+			start();
+		}
+
+		String getAddress() {
+			return "127.0.0.1:" + serverSocket.getLocalPort();
+		}
+
+		@Override
+		public void run() {
+			while (! serverSocket.isClosed()) {
+				try (Socket socket = serverSocket.accept()) {
+					String command = new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine();
+					commands.add(command);
+					Thread.sleep(delay);
+					PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+					writer.println(command.startsWith("!share") ? vote : "Received " + command);
+				} catch (IOException e) {
+					// closed
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		void close() throws IOException {
+			serverSocket.close();
+		}
+	}
+
+	/**
+	 * Node serving the agreement commands with the node's own handler, so it relays them
+	 */
+	private static class RelayNode extends Thread {
+		private final ServerSocket serverSocket;
+		private final Node node;
+		private final AtomicInteger connections = new AtomicInteger();
+
+		RelayNode() throws IOException {
+			PrintStream out = new PrintStream(NullOutputStream.getInstance());
+			this.node = new Node("node1", new Config("node1"), new ByteArrayInputStream(new byte[0]), out, out);
+			this.serverSocket = new ServerSocket(0, 200);
+			setDaemon(true);
+			start();
+		}
+
+		String getAddress() {
+			return "127.0.0.1:" + serverSocket.getLocalPort();
+		}
+
+		@Override
+		public void run() {
+			while (! serverSocket.isClosed()) {
+				try {
+					Socket socket = serverSocket.accept();
+					connections.incrementAndGet();
+					Thread handler = new Thread(new TcpNodeController(node, socket));
+					handler.setDaemon(true);
+					handler.start();
+				} catch (IOException e) {
+					// closed
+				}
+			}
+		}
+
+		void close() throws IOException {
+			serverSocket.close();
+		}
+	}
+
+	@Before
+	public void setUp() {
+		PrintStream out = new PrintStream(NullOutputStream.getInstance());
+		node = new Node("node1", new Config("node1"), new ByteArrayInputStream(new byte[0]), out, out);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		for (Participant participant : participants) {
+			participant.close();
+		}
+	}
+
+	private ArrayList<String> participants(String... votes) throws IOException {
+		ArrayList<String> nodeList = new ArrayList<String>();
+		for (String vote : votes) {
+			Participant participant = new Participant(vote, DELAY);
+			participants.add(participant);
+			nodeList.add(participant.getAddress());
+		}
+		return nodeList;
+	}
+
+	@Test
+	public void joinsWithoutPolling() throws Exception {
+		String[] votes = new String[NODES];
+		Arrays.fill(votes, "!ok");
+		ArrayList<String> nodeList = participants(votes);
+
+		long start = System.nanoTime();
+		boolean agreed = new RessourceAgreementCollector(node, nodeList).doCollection(250);
+		long joined = System.nanoTime() - start;
+
+		System.out.println(String.format("Agreement with %d nodes answering after %d ms took %.1f ms", NODES, DELAY, joined / 1000000.0));
+		assertTrue(agreed);
+		assertEquals(Integer.valueOf(250), node.getRessourceLevel());
+		for (Participant participant : participants) {
+			assertEquals("!share 250", participant.commands.get(0));
+			assertEquals("!commit 250", participant.commands.get(1));
+		}
+		// share and commit are sent to all nodes in parallel, no second of polling
+		assertTrue("join took " + joined / 1000000 + " ms", joined < 500 * 1000000L);
+	}
+
+	@Test
+	public void rollsBackOnRefusal() throws Exception {
+		ArrayList<String> nodeList = participants("!ok", "!nok", "!ok");
+
+		boolean agreed = new RessourceAgreementCollector(node, nodeList).doCollection(250);
+
+		assertFalse(agreed);
+		for (Participant participant : participants) {
+			assertTrue(participant.commands.contains("!rollback 250"));
+			assertFalse(participant.commands.contains("!commit 250"));
+		}
+	}
+
+	@Test
+	public void rollsBackOnTimeout() throws Exception {
+		ArrayList<String> nodeList = participants("!ok");
+		Participant silent = new Participant("!ok", 60000);
+		participants.add(silent);
+		nodeList.add(silent.getAddress());
+
+		long start = System.nanoTime();
+		boolean agreed = new RessourceAgreementCollector(node, nodeList).doCollection(250);
+		long joined = System.nanoTime() - start;
+
+		assertFalse(agreed);
+		assertTrue(participants.get(0).commands.contains("!rollback 250"));
+		// one timeout for the share, one for the rollback acknowledgements
+		assertTrue("join took " + joined / 1000000 + " ms", joined < 3 * node.getConfig().getInt("node.agreement.timeout") * 1000000L);
+	}
+
+	@Test
+	public void relaysThroughTree() throws Exception {
+		int fanout = 3;
+		List<RelayNode> relays = new ArrayList<RelayNode>();
+		ArrayList<String> nodeList = new ArrayList<String>();
+		try {
+			for (int index = 0; index < 40; index++) {
+				RelayNode relay = new RelayNode();
+				relays.add(relay);
+				nodeList.add(relay.getAddress());
+			}
+
+			long start = System.nanoTime();
+			boolean agreed = new RessourceAgreementCollector(node, nodeList, fanout, 2000).doCollection(600);
+			long joined = System.nanoTime() - start;
+
+			System.out.println(String.format("Agreement with %d nodes relayed with fan-out %d took %.1f ms", relays.size(), fanout, joined / 1000000.0));
+			assertTrue(agreed);
+			for (RelayNode relay : relays) {
+				assertEquals(Integer.valueOf(600), relay.node.getRessourceLevel());
+				// share and commit, each node is asked once
+				assertEquals(2, relay.connections.get());
+			}
+
+			// one node deep in the tree refusing rolls back the whole tree
+			ArrayList<String> refusing = participants("!nok");
+			nodeList.set(nodeList.size() - 1, refusing.get(0));
+			assertFalse(new RessourceAgreementCollector(node, nodeList, fanout, 2000).doCollection(700));
+			assertTrue(participants.get(0).commands.contains("!share 700"));
+			for (RelayNode relay : relays) {
+				assertEquals(Integer.valueOf(600), relay.node.getRessourceLevel());
+			}
+		} finally {
+			for (RelayNode relay : relays) {
+				relay.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import node.Node;
+import node.log.ComputationLog;
+import node.log.LogRecord;
+import node.log.LogStore;
+import util.Config;
+import util.NullOutputStream;
+
+/**
+ * Round trip of the computation log: records appended by the writer
+ * are found by the queries of the store, also after a restart with a torn last record.
+ */
+public class ComputationLogTest {
+
+	private static final int RECORDS = 1000;
+	private static final long SEGMENT_SIZE = 8 * 1024;
+
+	private Node node;
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		PrintStream out = new PrintStream(NullOutputStream.getInstance());
+		node = new Node("node1", new Config("node1"), new ByteArrayInputStream(new byte[0]), out, out);
+		directory = Files.createTempDirectory("computation-log").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void queriesAppendedRecords() throws Exception {
+		ComputationLog log = open();
+		for (int index = 0; index < RECORDS; index++) {
+			assertTrue(log.append(index + " + 0", String.valueOf(index)));
+		}
+		assertTrue("records were not spread over segments", ComputationLog.segments(directory, "node1").length > 1);
+
+		List<LogRecord> last = log.getStore().last(10);
+		assertEquals(10, last.size());
+		for (int index = 0; index < 10; index++) {
+			assertEquals(String.valueOf(RECORDS - 10 + index), last.get(index).getResponse());
+		}
+
+		List<LogRecord> all = log.getStore().last(Integer.MAX_VALUE);
+		assertEquals(RECORDS, all.size());
+		for (int index = 0; index < RECORDS; index++) {
+			assertEquals(index + " + 0", all.get(index).getRequest());
+			if (index > 0) {
+				assertTrue(all.get(index).getTimestamp() >= all.get(index - 1).getTimestamp());
+			}
+		}
+
+		LogRecord middle = all.get(RECORDS / 2);
+		List<LogRecord> between = log.getStore().between(middle.getTimestamp(), middle.getTimestamp());
+		assertTrue(between.size() >= 1);
+		for (LogRecord record : between) {
+			assertEquals(middle.getTimestamp(), record.getTimestamp());
+		}
+		assertTrue(containsResponse(between, middle.getResponse()));
+		assertTrue(log.getStore().between(all.get(RECORDS - 1).getTimestamp() + 1, Long.MAX_VALUE).isEmpty());
+		close(log);
+
+		// the store of a restarted node indexes the written segments
+		LogStore store = new LogStore(directory, "node1");
+		assertEquals(RECORDS, store.last(Integer.MAX_VALUE).size());
+		assertEquals(String.valueOf(RECORDS - 1), store.last(1).get(0).getResponse());
+		assertEquals(between.size(), store.between(middle.getTimestamp(), middle.getTimestamp()).size());
+	}
+
+	@Test
+	public void ignoresTornRecordAfterRestart() throws Exception {
+		ComputationLog log = open();
+		for (int index = 0; index < RECORDS; index++) {
+			log.append(index + " + 0", String.valueOf(index));
+		}
+		close(log);
+
+		// a crash while writing the last record
+		File[] segments = ComputationLog.segments(directory, "node1");
+		File newest = segments[segments.length - 1];
+		try (RandomAccessFile file = new RandomAccessFile(newest, "rw")) {
+			file.setLength(file.length() - 3);
+		}
+
+		LogStore store = new LogStore(directory, "node1");
+		List<LogRecord> last = store.last(2);
+		assertEquals(2, last.size());
+		assertEquals(String.valueOf(RECORDS - 3), last.get(0).getResponse());
+		assertEquals(String.valueOf(RECORDS - 2), last.get(1).getResponse());
+		assertEquals(RECORDS - 1, store.last(Integer.MAX_VALUE).size());
+	}
+
+	@Test
+	public void continuesAfterLaterTimestamps() throws Exception {
+		// records of a run with a clock ahead of the current one
+		long future = System.currentTimeMillis() + 3600000L;
+		String name = new SimpleDateFormat("yyyyMMdd_HHmmss.SSS").format(new Date(future)) + "_node1" + ComputationLog.SEGMENT_SUFFIX;
+		try (FileOutputStream segment = new FileOutputStream(new File(directory, name))) {
+			for (int index = 0; index < 3; index++) {
+				segment.write(new LogRecord(future + index, "1 + " + index, String.valueOf(1 + index)).encode());
+			}
+		}
+
+		ComputationLog log = open();
+		log.append("2 + 2", "4");
+		List<LogRecord> all = log.getStore().last(Integer.MAX_VALUE);
+		close(log);
+
+		assertEquals(4, all.size());
+		assertEquals("4", all.get(3).getResponse());
+		assertTrue(all.get(3).getTimestamp() >= future + 2);
+		// the new record is found behind the old ones
+		assertEquals(2, log.getStore().between(future + 2, Long.MAX_VALUE).size());
+
+		// also by a restarted node, the new segment sorts after the old one
+		File[] segments = ComputationLog.segments(directory, "node1");
+		assertEquals(2, segments.length);
+		assertEquals(name, segments[0].getName());
+		assertEquals("4", new LogStore(directory, "node1").last(1).get(0).getResponse());
+	}
+
+	@Test
+	public void reportsRecordsNotWritten() throws Exception {
+		// the log directory can't be made, so no segment can be started
+		File blocked = new File(directory, "blocked");
+		assertTrue(blocked.createNewFile());
+		ComputationLog log = new ComputationLog(node, blocked, ComputationLog.Durability.BATCH, SEGMENT_SIZE);
+		log.start();
+		assertFalse(log.append("1 + 1", "2"));
+		assertFalse(log.append("2 + 2", "4"));
+		close(log);
+		blocked.delete();
+	}
+
+	/**
+	 * @return a started log in the temporary directory, forced once per group
+	 * @throws IOException
+	 */
+	private ComputationLog open() throws IOException {
+		ComputationLog log = new ComputationLog(node, directory, ComputationLog.Durability.BATCH, SEGMENT_SIZE);
+		log.start();
+		return log;
+	}
+
+	/**
+	 * @param log
+	 * @throws InterruptedException
+	 */
+	private void close(ComputationLog log) throws InterruptedException {
+		log.close();
+		log.join();
+	}
+
+	/**
+	 * @param records
+	 * @param response
+	 * @return true if one of the records has the response
+	 */
+	private boolean containsResponse(List<LogRecord> records, String response) {
+		for (LogRecord record : records) {
+			if (record.getResponse().equals(response)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
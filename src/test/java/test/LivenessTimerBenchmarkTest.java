@@ -0,0 +1,96 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import controller.CloudController;
+import controller.ControllerNode;
+import util.Config;
+import util.NullOutputStream;
+
+/**
+ * Benchmark of the controller holding many registered nodes.
+ * All node timeouts share one timer thread, so neither registering nodes
+ * nor their alive packets create threads.
+ */
+public class LivenessTimerBenchmarkTest {
+
+	private static final int NODES = 10000;
+	private static final int HEARTBEATS = 10;
+	private static final int TIMEOUT = 3000;
+
+	private CloudController controller;
+	private final List<ControllerNode> nodes = new ArrayList<ControllerNode>();
+
+	@Before
+	public void setUp() throws Exception {
+		PrintStream out = new PrintStream(NullOutputStream.getInstance());
+		controller = new CloudController("controller", new Config("controller"), new ByteArrayInputStream(new byte[0]), out, out);
+	}
+
+	@After
+	public void tearDown() {
+		controller.close();
+		// close() interrupts the calling thread to stop the shell
+		Thread.interrupted();
+	}
+
+	@Test
+	public void holdsTenThousandNodes() throws Exception {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		int threadsBefore = threads.getThreadCount();
+		long startedBefore = threads.getTotalStartedThreadCount();
+
+		long start = System.nanoTime();
+		for (int index = 0; index < NODES; index++) {
+			nodes.add(new ControllerNode(controller, "127.0.0.1", String.valueOf(20000 + index), "+-*/", TIMEOUT));
+		}
+		long registered = System.nanoTime();
+
+		// every node sends its alive packets
+		for (int round = 0; round < HEARTBEATS; round++) {
+			for (ControllerNode node : nodes) {
+				node.setActive(TIMEOUT);
+			}
+		}
+		long alive = System.nanoTime();
+
+		System.out.println(String.format("Registered %d nodes in %.1f ms, %d alive packets in %.1f ms (%.0f ns each), %d threads started",
+				NODES, (registered - start) / 1000000.0, NODES * HEARTBEATS, (alive - registered) / 1000000.0,
+				(double) (alive - registered) / (NODES * HEARTBEATS), threads.getTotalStartedThreadCount() - startedBefore));
+
+		assertEquals(NODES, controller.getNodeRegistry().getActiveNodes().size());
+		assertTrue("threads were created per node", threads.getThreadCount() - threadsBefore < 10);
+		assertTrue("threads were created per alive packet", threads.getTotalStartedThreadCount() - startedBefore < 10);
+	}
+
+	@Test
+	public void timesOutSilentNodes() throws Exception {
+		for (int index = 0; index < NODES; index++) {
+			nodes.add(new ControllerNode(controller, "127.0.0.1", String.valueOf(20000 + index), "+", 500));
+		}
+		// keep the first half alive, the other half goes silent
+		long end = System.currentTimeMillis() + 5000;
+		while (System.currentTimeMillis() < end && controller.getNodeRegistry().getActiveNodes().size() > NODES / 2) {
+			for (int index = 0; index < NODES / 2; index++) {
+				nodes.get(index).setActive(500);
+			}
+			Thread.sleep(100);
+		}
+		assertEquals(NODES / 2, controller.getNodeRegistry().getActiveNodes().size());
+		for (int index = 0; index < NODES / 2; index++) {
+			assertTrue(nodes.get(index).isActive());
+		}
+	}
+}
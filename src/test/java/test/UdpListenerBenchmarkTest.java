@@ -0,0 +1,146 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import controller.CloudController;
+import controller.udp.NioUdpControllerListener;
+import util.Config;
+import util.Heartbeats;
+import util.NullOutputStream;
+
+/**
+ * Benchmark of the nio front end for node packets.
+ * Many nodes send their '!alive' and '!beat' packets over loopback,
+ * known nodes only restart their timeout, so the listener keeps up with a high packet rate.
+ * The senders share the cores with the listener, so the rate is measured
+ * on the CPU time of the receiving thread and the shards.
+ */
+public class UdpListenerBenchmarkTest {
+
+	private static final int NODES = 500;
+	private static final int ROUNDS = 400;
+	private static final int SHARDS = 4;
+	private static final String OPERATIONS = "+-*/";
+	// about 350k packets per second of CPU time were measured on a single core
+	private static final double MIN_RATE = 100000;
+
+	private CloudController controller;
+	private DatagramChannel channel;
+	private NioUdpControllerListener listener;
+	private final DatagramChannel[] nodes = new DatagramChannel[NODES];
+
+	@Before
+	public void setUp() throws Exception {
+		PrintStream out = new PrintStream(NullOutputStream.getInstance());
+		controller = new CloudController("controller", new Config("controller"), new ByteArrayInputStream(new byte[0]), out, out);
+		channel = DatagramChannel.open();
+		channel.setOption(StandardSocketOptions.SO_RCVBUF, 8 * 1024 * 1024);
+		channel.bind(new InetSocketAddress("127.0.0.1", 0));
+		listener = new NioUdpControllerListener(controller, channel, SHARDS);
+		listener.start();
+		for (int index = 0; index < NODES; index++) {
+			nodes[index] = DatagramChannel.open();
+			nodes[index].connect(channel.getLocalAddress());
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (DatagramChannel node : nodes) {
+			if (node != null) {
+				node.close();
+			}
+		}
+		listener.close();
+		listener.join();
+		controller.close();
+		// close() interrupts the calling thread to stop the shell
+		Thread.interrupted();
+	}
+
+	@Test
+	public void handlesHeartbeatsOfManyNodes() throws Exception {
+		ByteBuffer[] alive = new ByteBuffer[NODES];
+		ByteBuffer[] beat = new ByteBuffer[NODES];
+		for (int index = 0; index < NODES; index++) {
+			alive[index] = ByteBuffer.wrap(String.format("%s %d %s", Heartbeats.ALIVE, 20000 + index, OPERATIONS).getBytes());
+			beat[index] = ByteBuffer.wrap(String.format("%s %d %d", Heartbeats.BEAT, 20000 + index, Heartbeats.version(OPERATIONS)).getBytes());
+		}
+
+		// register all nodes
+		for (int index = 0; index < NODES; index++) {
+			nodes[index].write(alive[index].duplicate());
+		}
+		long end = System.currentTimeMillis() + 5000;
+		while (controller.getNodeRegistry().getActiveNodes().size() < NODES && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		assertEquals(NODES, controller.getNodeRegistry().getActiveNodes().size());
+
+		// every node alternates between both kinds of packets
+		long handledBefore = listener.getHandledPackets();
+		long cpuBefore = listenerCpuTime();
+		long start = System.nanoTime();
+		for (int round = 0; round < ROUNDS; round++) {
+			ByteBuffer[] packets = (round % 2 == 0 ? alive : beat);
+			for (int index = 0; index < NODES; index++) {
+				nodes[index].write(packets[index].duplicate());
+			}
+			if (round % 20 == 19) {
+				// let the listener drain the socket buffer
+				Thread.sleep(1);
+			}
+		}
+		// wait until the shards are idle
+		long handled = listener.getHandledPackets();
+		long last = System.nanoTime();
+		while (handled - handledBefore < (long) NODES * ROUNDS) {
+			Thread.sleep(20);
+			long now = listener.getHandledPackets();
+			if (now == handled) {
+				break;
+			}
+			handled = now;
+			last = System.nanoTime();
+		}
+		handled -= handledBefore;
+		long cpu = listenerCpuTime() - cpuBefore;
+		double rate = handled / (cpu / 1000000000.0);
+
+		System.out.println(String.format("Handled %d of %d packets in %.1f ms, %.1f ms CPU time of the listener, %.0f packets/s",
+				handled, (long) NODES * ROUNDS, (last - start) / 1000000.0, cpu / 1000000.0, rate));
+
+		assertEquals(NODES, controller.getNodeRegistry().getActiveNodes().size());
+		assertTrue("most packets were dropped", handled > (long) NODES * ROUNDS / 2);
+		assertTrue(String.format("only %.0f packets/s", rate), rate >= MIN_RATE);
+	}
+
+	/**
+	 * @return CPU time in ns of the receiving thread and the shards of the listener
+	 */
+	private long listenerCpuTime() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long cpu = 0;
+		for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+			if (info != null && info.getThreadName().startsWith(NioUdpControllerListener.class.getName())) {
+				cpu += Math.max(0, threads.getThreadCpuTime(info.getThreadId()));
+			}
+		}
+		return cpu;
+	}
+}